@@ -0,0 +1,98 @@
+package lsp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Várias mensagens de uma conexão agrupadas em um só pacote. Cada mensagem
+ * vai no payload precedida do seu tamanho em 2 bytes.
+ *
+ * @author Wagner Macedo
+ */
+final class BatchPack extends Pack {
+	/** Bytes acrescentados a cada mensagem agrupada */
+	static final int LEN_FRAME_HEADER = 2;
+
+	private final int count;
+	private final long[] journaled;
+
+	private BatchPack(int connId, byte[] payload, int count, long[] journaled) {
+		super(connId, payload);
+		this.count = count;
+		this.journaled = journaled;
+	}
+
+	/** Agrupa as mensagens, que devem ser todas da mesma conexão */
+	static BatchPack of(List<Pack> packs) {
+		int len = 0;
+		for (Pack p : packs) {
+			len += LEN_FRAME_HEADER + p.getPayloadLength();
+		}
+
+		final ByteBuffer buf = ByteBuffer.allocate(len);
+		for (Pack p : packs) {
+			buf.putShort((short) p.getPayloadLength()).put(p.payloadView());
+		}
+
+		return new BatchPack(packs.get(0).getConnectionId(), buf.array(), packs.size(), journaled(packs));
+	}
+
+	@Override
+	long[] journaled() {
+		return this.journaled;
+	}
+
+	/** Posições no diário de todas as mensagens agrupadas ou null se nenhuma */
+	private static long[] journaled(List<Pack> packs) {
+		int n = 0;
+		for (Pack p : packs) {
+			final long[] journaled = p.journaled();
+			n += (journaled == null) ? 0 : journaled.length;
+		}
+		if (n == 0) {
+			return null;
+		}
+
+		final long[] positions = new long[n];
+		n = 0;
+		for (Pack p : packs) {
+			final long[] journaled = p.journaled();
+			if (journaled != null) {
+				System.arraycopy(journaled, 0, positions, n, journaled.length);
+				n += journaled.length;
+			}
+		}
+		return positions;
+	}
+
+	/**
+	 * Separa as mensagens de um payload agrupado
+	 *
+	 * @return As mensagens ou null se o payload estiver malformado
+	 */
+	static List<byte[]> split(ByteBuffer buf) {
+		final List<byte[]> messages = new ArrayList<>();
+		while (buf.hasRemaining()) {
+			if (buf.remaining() < LEN_FRAME_HEADER) {
+				return null;
+			}
+
+			final int len = buf.getShort() & 0xffff;
+			if (len > buf.remaining()) {
+				return null;
+			}
+
+			final byte[] payload = new byte[len];
+			buf.get(payload);
+			messages.add(payload);
+		}
+
+		return messages;
+	}
+
+	/** Quantidade de mensagens agrupadas */
+	int getCount() {
+		return count;
+	}
+}
@@ -0,0 +1,137 @@
+package lsp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Orçamento de memória, em bytes, das mensagens enfileiradas. Um mesmo
+ * orçamento pode ser informado nos parâmetros de vários servidores e clientes
+ * ({@link LspParams#withByteBudget(ByteBudget)}), limitando a soma de todas as
+ * suas filas de entrada e saída.
+ *
+ * Quem escreve aguarda até haver espaço no orçamento; as mensagens recebidas
+ * sem espaço são recusadas e o remetente é avisado da pressão. Uma fila de
+ * entrada vazia sempre aceita uma mensagem, de modo que o uso pode ultrapassar
+ * a capacidade em até um pacote por socket.
+ *
+ * @author Wagner Macedo
+ */
+public final class ByteBudget {
+	private final long capacity;
+	private long used;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition released = lock.newCondition();
+
+	/**
+	 * @param capacity
+	 *            Bytes disponíveis para todas as filas que usam o orçamento
+	 */
+	public ByteBudget(long capacity) {
+		if (capacity < LspSocket.LEN_WIDE_PACKAGE)
+			throw new IllegalArgumentException("O orçamento precisa comportar ao menos um pacote");
+
+		this.capacity = capacity;
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/** Bytes em uso pelas mensagens enfileiradas */
+	public long getUsed() {
+		lock.lock();
+		try {
+			return used;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Bytes contados para um pacote enfileirado: o payload mais o cabeçalho,
+	 * de modo que mensagens vazias também ocupem o orçamento
+	 */
+	static int charge(Pack p) {
+		return LspSocket.LEN_HEADER + p.getPayloadLength();
+	}
+
+	/** Reserva os bytes informados, se houver espaço */
+	boolean tryAcquire(int bytes) {
+		lock.lock();
+		try {
+			return reserve(bytes);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reserva os bytes informados, aguardando no máximo o tempo limite se não
+	 * houver espaço
+	 *
+	 * @return false se o tempo limite se esgotou
+	 */
+	boolean tryAcquire(int bytes, long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (!reserve(bytes)) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = released.awaitNanos(nanos);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Reserva os bytes informados, aguardando enquanto não houver espaço */
+	void acquire(int bytes) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (!reserve(bytes)) {
+				released.await();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Reserva os bytes informados mesmo que não haja espaço */
+	void overdraw(long bytes) {
+		lock.lock();
+		try {
+			used += bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Devolve ao orçamento bytes reservados antes */
+	void release(long bytes) {
+		if (bytes == 0) {
+			return;
+		}
+
+		lock.lock();
+		try {
+			used -= bytes;
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean reserve(int bytes) {
+		if (used + bytes > capacity) {
+			return false;
+		}
+
+		used += bytes;
+		return true;
+	}
+}
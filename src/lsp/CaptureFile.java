@@ -0,0 +1,208 @@
+package lsp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Arquivo de captura de datagramas em anel, mapeado em memória. Quando o anel
+ * se enche, os registros mais antigos são descartados.
+ *
+ * Formato: cabeçalho de {@value #LEN_HEADER} bytes (assinatura, versão,
+ * capacidade, início, fim, quantidade de registros e momento do início da
+ * captura) seguido da área de registros. Cada registro contém o tamanho do
+ * datagrama, o instante relativo ao início da captura em nanosegundos, o
+ * sentido, o endereço remoto e o datagrama. Um tamanho negativo marca que o
+ * próximo registro está no início da área.
+ *
+ * @author Wagner Macedo
+ */
+final class CaptureFile implements Closeable {
+	static final byte IN = 0;
+	static final byte OUT = 1;
+
+	private static final int MAGIC = 0x4c535043; // "LSPC"
+	private static final int VERSION = 1;
+	private static final int LEN_HEADER = 48;
+	private static final int WRAP = -1;
+
+	/* Posições dos campos do cabeçalho */
+	private static final int H_CAPACITY = 8;
+	private static final int H_HEAD = 16;
+	private static final int H_TAIL = 24;
+	private static final int H_COUNT = 32;
+	private static final int H_START = 40;
+
+	/* Tamanho, posição, instante, sentido e tamanho do endereço */
+	private static final int LEN_RECORD_HEADER = 4 + 8 + 1 + 1;
+
+	private final FileChannel channel;
+	private final MappedByteBuffer map;
+	private final int capacity;
+	private final long baseNanos;
+
+	private int head;
+	private int tail;
+	private int count;
+
+	private CaptureFile(FileChannel channel, MappedByteBuffer map, int capacity) {
+		this.channel = channel;
+		this.map = map;
+		this.capacity = capacity;
+		this.baseNanos = System.nanoTime();
+	}
+
+	/**
+	 * Cria um arquivo de captura vazio
+	 *
+	 * @param capacity Tamanho em bytes da área de registros
+	 */
+	static CaptureFile create(Path file, int capacity) throws IOException {
+		final FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		final MappedByteBuffer map = ch.map(MapMode.READ_WRITE, 0, LEN_HEADER + capacity);
+
+		map.putInt(0, MAGIC);
+		map.putInt(4, VERSION);
+		map.putLong(H_CAPACITY, capacity);
+		map.putLong(H_START, System.currentTimeMillis());
+
+		final CaptureFile capture = new CaptureFile(ch, map, capacity);
+		capture.writeState();
+		return capture;
+	}
+
+	/**
+	 * Registra um datagrama
+	 *
+	 * @param direction {@link #IN} ou {@link #OUT}
+	 */
+	synchronized void record(byte direction, SocketAddress sockAddr, byte[] data, int offset, int length) {
+		final InetSocketAddress addr = (InetSocketAddress) sockAddr;
+		final byte[] ip = addr.getAddress().getAddress();
+		final int len = LEN_RECORD_HEADER + ip.length + 2 + length;
+		if (len > capacity) {
+			return;
+		}
+
+		// Se o registro não cabe até o fim da área, continua no início
+		if (tail + len > capacity) {
+			dropWhile(tail, capacity);
+			if (capacity - tail >= 4) {
+				map.putInt(LEN_HEADER + tail, WRAP);
+			}
+			tail = 0;
+		}
+		dropWhile(tail, tail + len);
+
+		map.position(LEN_HEADER + tail);
+		map.putInt(length);
+		map.putLong(System.nanoTime() - baseNanos);
+		map.put(direction);
+		map.put((byte) ip.length);
+		map.put(ip);
+		map.putShort((short) addr.getPort());
+		map.put(data, offset, length);
+
+		tail += len;
+		count++;
+		writeState();
+	}
+
+	/** Descarta os registros mais antigos que começam na região informada */
+	private void dropWhile(int from, int to) {
+		while (count > 0 && head >= from && head < to) {
+			final int len = (capacity - head < 4) ? WRAP : map.getInt(LEN_HEADER + head);
+			if (len == WRAP) {
+				head = 0;
+				continue;
+			}
+
+			final int ipLen = map.get(LEN_HEADER + head + 13);
+			head += LEN_RECORD_HEADER + ipLen + 2 + len;
+			count--;
+			if (head >= capacity) {
+				head = 0;
+			}
+		}
+	}
+
+	private void writeState() {
+		map.putLong(H_HEAD, head);
+		map.putLong(H_TAIL, tail);
+		map.putLong(H_COUNT, count);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		map.force();
+		channel.close();
+	}
+
+	/** Registro de um datagrama capturado */
+	static final class Record {
+		final long nanos;
+		final byte direction;
+		final SocketAddress sockAddr;
+		final byte[] data;
+
+		Record(long nanos, byte direction, SocketAddress sockAddr, byte[] data) {
+			this.nanos = nanos;
+			this.direction = direction;
+			this.sockAddr = sockAddr;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * Lê os registros de um arquivo de captura, do mais antigo ao mais recente
+	 */
+	static List<Record> read(Path file) throws IOException {
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			final MappedByteBuffer map = ch.map(MapMode.READ_ONLY, 0, ch.size());
+			if (ch.size() < LEN_HEADER || map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+				throw new IOException("Arquivo de captura inválido: " + file);
+			}
+
+			final int capacity = (int) map.getLong(H_CAPACITY);
+			int pos = (int) map.getLong(H_HEAD);
+			final int count = (int) map.getLong(H_COUNT);
+
+			final List<Record> records = new ArrayList<>(count);
+			while (records.size() < count) {
+				final int len = (capacity - pos < 4) ? WRAP : map.getInt(LEN_HEADER + pos);
+				if (len == WRAP) {
+					pos = 0;
+					continue;
+				}
+
+				map.position(LEN_HEADER + pos + 4);
+				final long nanos = map.getLong();
+				final byte direction = map.get();
+				final byte[] ip = new byte[map.get()];
+				map.get(ip);
+				final int port = map.getShort() & 0xffff;
+				final byte[] data = new byte[len];
+				map.get(data);
+
+				records.add(new Record(nanos, direction,
+						new InetSocketAddress(InetAddress.getByAddress(ip), port), data));
+				pos = map.position() - LEN_HEADER;
+				if (pos >= capacity) {
+					pos = 0;
+				}
+			}
+
+			return records;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package lsp;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Relógio e agendador usados pela temporização do protocolo: épocas,
+ * esperas pela conexão e pelo encerramento. O relógio do sistema é o padrão;
+ * os testes usam o {@link VirtualClock}, em que o tempo só avança quando
+ * solicitado.
+ *
+ * @author Wagner Macedo
+ */
+abstract class Clock {
+	/** Relógio do sistema */
+	static final Clock SYSTEM = new SystemClock();
+
+	/** Momento atual em milisegundos */
+	abstract long millis();
+
+	/**
+	 * Momento atual em nanosegundos, com origem arbitrária. Serve somente para
+	 * medir intervalos, como {@link System#nanoTime()}.
+	 */
+	abstract long nanos();
+
+	/** Agenda uma tarefa periódica, com intervalo contado do fim da anterior */
+	abstract ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long delay, long period, TimeUnit unit);
+
+	/** Bloqueia a thread atual durante o tempo informado */
+	abstract void sleep(long millis) throws InterruptedException;
+
+	/**
+	 * Retira o primeiro elemento da fila, aguardando no máximo o tempo
+	 * informado
+	 *
+	 * @return O elemento ou null se o tempo se esgotou
+	 */
+	abstract <T> T poll(BlockingQueue<T> queue, long millis) throws InterruptedException;
+
+	/**
+	 * Insere um elemento na fila, se houver espaço, e acorda quem aguarda por
+	 * ela em {@link #poll(BlockingQueue, long)}
+	 */
+	abstract <T> boolean offer(BlockingQueue<T> queue, T e);
+
+	private static final class SystemClock extends Clock {
+		/* Threads de monitoramento compartilhadas por todas as conexões */
+		private final ScheduledThreadPoolExecutor exec;
+
+		SystemClock() {
+			exec = new ScheduledThreadPoolExecutor(
+					Math.max(2, Runtime.getRuntime().availableProcessors() / 2), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							final Thread t = new Thread(r, "lsp-status");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			exec.setRemoveOnCancelPolicy(true);
+		}
+
+		@Override
+		long millis() {
+			return System.currentTimeMillis();
+		}
+
+		@Override
+		long nanos() {
+			return System.nanoTime();
+		}
+
+		@Override
+		ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long delay, long period, TimeUnit unit) {
+			return exec.scheduleWithFixedDelay(task, delay, period, unit);
+		}
+
+		@Override
+		void sleep(long millis) throws InterruptedException {
+			Thread.sleep(millis);
+		}
+
+		@Override
+		<T> T poll(BlockingQueue<T> queue, long millis) throws InterruptedException {
+			return queue.poll(millis, TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		<T> boolean offer(BlockingQueue<T> queue, T e) {
+			return queue.offer(e);
+		}
+	}
+}
@@ -1,8 +1,9 @@
 package lsp;
 
 public class ClosedConnectionException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
 
-	ClosedConnectionException(short connId) {
+	ClosedConnectionException(int connId) {
 		super("Conexão id=" + connId + " não está aberta");
 	}
 
@@ -0,0 +1,170 @@
+package lsp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressão de payload de uma conexão LSP. Só existe nas conexões em que a
+ * compressão foi negociada.
+ *
+ * @author Wagner Macedo
+ */
+final class Compression {
+	/* Compressores e descompressores reaproveitados por todas as conexões */
+	private static final Queue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<>();
+	private static final Queue<Inflater> INFLATERS = new ConcurrentLinkedQueue<>();
+
+	private final byte[] dictionary;
+
+	/* Estatísticas */
+	private final AtomicLong compressedPacks = new AtomicLong();
+	private final AtomicLong skippedPacks = new AtomicLong();
+	private final AtomicLong rawBytes = new AtomicLong();
+	private final AtomicLong wireBytes = new AtomicLong();
+	private final AtomicLong deflateNanos = new AtomicLong();
+	private final AtomicLong inflateNanos = new AtomicLong();
+
+	/**
+	 * @param dictionary
+	 *            Dicionário inicial acordado entre os dois lados ou null
+	 */
+	Compression(byte[] dictionary) {
+		this.dictionary = dictionary;
+	}
+
+	/**
+	 * Identificador de um dicionário, usado na negociação. Devolve 0 se não há
+	 * dicionário.
+	 */
+	static int dictionaryId(byte[] dictionary) {
+		if (dictionary == null) {
+			return 0;
+		}
+
+		Adler32 adler = new Adler32();
+		adler.update(dictionary, 0, dictionary.length);
+		return (int) adler.getValue();
+	}
+
+	/**
+	 * Comprime um payload.
+	 *
+	 * @return O payload comprimido ou null se a compressão não o diminui
+	 */
+	byte[] deflate(byte[] payload) {
+		return deflate(ByteBuffer.wrap(payload));
+	}
+
+	/**
+	 * Comprime o conteúdo restante do buffer. Buffers sobre vetores são lidos
+	 * sem cópia; buffers diretos são copiados para a entrada do compressor.
+	 *
+	 * @return O payload comprimido ou null se a compressão não o diminui
+	 */
+	byte[] deflate(ByteBuffer payload) {
+		final long start = System.nanoTime();
+		final int length = payload.remaining();
+
+		Deflater def = DEFLATERS.poll();
+		if (def == null) {
+			def = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+
+		try {
+			if (dictionary != null) {
+				def.setDictionary(dictionary);
+			}
+			if (payload.hasArray()) {
+				def.setInput(payload.array(), payload.arrayOffset() + payload.position(), length);
+			} else {
+				def.setInput(LspSocket.payload(payload.duplicate()));
+			}
+			def.finish();
+
+			// Só interessa o resultado se for menor que o original
+			final byte[] out = new byte[Math.max(length - 1, 0)];
+			final int len = def.deflate(out);
+
+			rawBytes.addAndGet(length);
+			if (!def.finished()) {
+				skippedPacks.incrementAndGet();
+				wireBytes.addAndGet(length);
+				return null;
+			}
+
+			compressedPacks.incrementAndGet();
+			wireBytes.addAndGet(len);
+			return Arrays.copyOf(out, len);
+		} finally {
+			def.reset();
+			DEFLATERS.offer(def);
+			deflateNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Descomprime um payload.
+	 *
+	 * @return O payload original ou null se os dados são inválidos
+	 */
+	byte[] inflate(byte[] data) {
+		final long start = System.nanoTime();
+
+		Inflater inf = INFLATERS.poll();
+		if (inf == null) {
+			inf = new Inflater(true);
+		}
+
+		try {
+			if (dictionary != null) {
+				inf.setDictionary(dictionary);
+			}
+			inf.setInput(data);
+
+			final byte[] out = new byte[LspSocket.LEN_PAYLOAD];
+			final int len = inf.inflate(out);
+			if (!inf.finished()) {
+				return null;
+			}
+
+			return Arrays.copyOf(out, len);
+		} catch (DataFormatException e) {
+			return null;
+		} finally {
+			inf.reset();
+			INFLATERS.offer(inf);
+			inflateNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	long getCompressedPacks() {
+		return compressedPacks.get();
+	}
+
+	long getSkippedPacks() {
+		return skippedPacks.get();
+	}
+
+	long getRawBytes() {
+		return rawBytes.get();
+	}
+
+	long getWireBytes() {
+		return wireBytes.get();
+	}
+
+	long getDeflateNanos() {
+		return deflateNanos.get();
+	}
+
+	long getInflateNanos() {
+		return inflateNanos.get();
+	}
+}
@@ -0,0 +1,78 @@
+package lsp;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Cookies sem estado do pedido de conexão. O servidor responde ao primeiro
+ * CONNECT de um endereço com um cookie derivado do endereço, de um segredo e
+ * do período atual. Só o CONNECT que devolve um cookie válido aloca estado no
+ * servidor, o que prova que o cliente recebe datagramas no endereço
+ * informado.
+ *
+ * @author Wagner Macedo
+ */
+final class ConnectCookies {
+	static final int LEN_COOKIE = 8;
+
+	/* Validade de um cookie: o período em que foi emitido e o seguinte */
+	private static final long PERIOD_MILLIS = 10_000;
+
+	private final Mac mac;
+	private final Clock clock;
+
+	ConnectCookies(Clock clock) {
+		this.clock = clock;
+
+		final byte[] secret = new byte[32];
+		new SecureRandom().nextBytes(secret);
+
+		try {
+			this.mac = Mac.getInstance("HmacSHA256");
+			this.mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/** Emite o cookie do endereço no período atual */
+	byte[] issue(SocketAddress sockAddr) {
+		return cookie(sockAddr, period());
+	}
+
+	/** Verifica se o cookie foi emitido para o endereço e ainda é válido */
+	boolean verify(SocketAddress sockAddr, byte[] cookie) {
+		if (cookie == null || cookie.length != LEN_COOKIE) {
+			return false;
+		}
+
+		final long period = period();
+		return MessageDigest.isEqual(cookie, cookie(sockAddr, period))
+				|| MessageDigest.isEqual(cookie, cookie(sockAddr, period - 1));
+	}
+
+	private long period() {
+		return clock.millis() / PERIOD_MILLIS;
+	}
+
+	private byte[] cookie(SocketAddress sockAddr, long period) {
+		final InetSocketAddress addr = (InetSocketAddress) sockAddr;
+		final byte[] ip = addr.getAddress().getAddress();
+		final ByteBuffer msg = ByteBuffer.allocate(ip.length + 2 + 8);
+		msg.put(ip).putShort((short) addr.getPort()).putLong(period);
+
+		final byte[] digest;
+		synchronized (mac) {
+			digest = mac.doFinal(msg.array());
+		}
+		return Arrays.copyOf(digest, LEN_COOKIE);
+	}
+}
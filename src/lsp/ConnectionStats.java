@@ -0,0 +1,163 @@
+package lsp;
+
+/**
+ * Estatísticas de uma conexão LSP no momento em que foram obtidas.
+ *
+ * @author Wagner Macedo
+ */
+public final class ConnectionStats {
+	private final int connId;
+
+	/* Compressão */
+	private final boolean compression;
+	private final long compressedPacks;
+	private final long uncompressedPacks;
+	private final long rawBytes;
+	private final long wireBytes;
+	private final long deflateNanos;
+	private final long inflateNanos;
+
+	/* Envio */
+	private final int retransmits;
+	private final SendLatency latency;
+	private final long srttNanos;
+
+	/* Cópias de paridade */
+	private final long parityBytes;
+	private final int recovered;
+
+	/* Pressão na entrada do outro lado */
+	private final int pressured;
+
+	/**
+	 * @param latency Latências de envio do socket da conexão
+	 */
+	ConnectionStats(LspConnection conn, SendLatency latency) {
+		this.connId = conn.getId();
+		this.retransmits = conn.getRetransmits();
+		this.srttNanos = conn.getSrttNanos();
+		this.parityBytes = conn.getParityBytes();
+		this.recovered = conn.getRecovered();
+		this.pressured = conn.getPressured();
+
+		this.latency = latency.copy();
+
+		final Compression comp = conn.getCompression();
+		this.compression = comp != null;
+		if (comp != null) {
+			this.compressedPacks = comp.getCompressedPacks();
+			this.uncompressedPacks = comp.getSkippedPacks();
+			this.rawBytes = comp.getRawBytes();
+			this.wireBytes = comp.getWireBytes();
+			this.deflateNanos = comp.getDeflateNanos();
+			this.inflateNanos = comp.getInflateNanos();
+		} else {
+			this.compressedPacks = 0;
+			this.uncompressedPacks = 0;
+			this.rawBytes = 0;
+			this.wireBytes = 0;
+			this.deflateNanos = 0;
+			this.inflateNanos = 0;
+		}
+	}
+
+	public short getConnId() {
+		return (short) connId;
+	}
+
+	/** Id da conexão com 32 bits, necessário nas conexões de cabeçalho largo */
+	public int getConnectionId() {
+		return connId;
+	}
+
+	/** Indica se a compressão foi negociada para a conexão */
+	public boolean isCompression() {
+		return compression;
+	}
+
+	/** Pacotes enviados com payload comprimido */
+	public long getCompressedPacks() {
+		return compressedPacks;
+	}
+
+	/** Pacotes enviados sem compressão porque ela não diminuiria o payload */
+	public long getUncompressedPacks() {
+		return uncompressedPacks;
+	}
+
+	/** Bytes de payload antes da compressão */
+	public long getRawBytes() {
+		return rawBytes;
+	}
+
+	/** Bytes de payload efetivamente enviados */
+	public long getWireBytes() {
+		return wireBytes;
+	}
+
+	/**
+	 * Razão entre os bytes enviados e os bytes originais. Quanto menor, melhor
+	 * a compressão. Devolve 1 se nada foi enviado.
+	 */
+	public double getCompressionRatio() {
+		return (rawBytes == 0) ? 1.0 : (double) wireBytes / rawBytes;
+	}
+
+	/** Tempo gasto comprimindo, em nanosegundos */
+	public long getDeflateNanos() {
+		return deflateNanos;
+	}
+
+	/** Tempo gasto descomprimindo, em nanosegundos */
+	public long getInflateNanos() {
+		return inflateNanos;
+	}
+
+	/** Pacotes reenviados por falta de ACK */
+	public int getRetransmits() {
+		return retransmits;
+	}
+
+	/** Bytes acrescentados ao envio pelas cópias de paridade */
+	public long getParityBytes() {
+		return parityBytes;
+	}
+
+	/** Pacotes perdidos no caminho e substituídos pelas suas cópias de paridade */
+	public int getRecoveredPacks() {
+		return recovered;
+	}
+
+	/**
+	 * Mensagens recusadas pelo outro lado por falta de espaço na sua fila de
+	 * entrada, reenviadas quando ele avisa que há espaço
+	 */
+	public int getPressureSignals() {
+		return pressured;
+	}
+
+	/**
+	 * RTT suavizado, em nanosegundos, ou 0 se nada foi reconhecido. É a base
+	 * da taxa de envio derivada do RTT.
+	 */
+	public long getSmoothedRttNanos() {
+		return srttNanos;
+	}
+
+	/**
+	 * Latências entre o primeiro envio de um pacote e o seu ACK, somadas de
+	 * todas as conexões do socket
+	 */
+	public LatencyHistogram getAckLatency() {
+		return latency.getAckLatency();
+	}
+
+	/**
+	 * Latências de envio: espera na fila, espera pelo ACK e total. São
+	 * registradas por socket, somando todas as conexões do servidor ou do
+	 * socket do grupo de clientes.
+	 */
+	public SendLatency getSendLatency() {
+		return latency;
+	}
+}
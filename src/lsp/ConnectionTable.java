@@ -0,0 +1,171 @@
+package lsp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Tabela de conexões indexada por uma chave primitiva, com endereçamento
+ * aberto. Evita os nós e as chaves encaixotadas de um mapa comum, ocupando
+ * poucos bytes por conexão.
+ *
+ * As leituras não bloqueiam. As alterações são serializadas e, ao crescer, a
+ * tabela é copiada e publicada de uma só vez.
+ *
+ * @author Wagner Macedo
+ */
+abstract class ConnectionTable {
+	/* Marca de posição removida, que não interrompe a pesquisa */
+	private static final Object REMOVED = new Object();
+	private static final int MIN_CAPACITY = 16;
+
+	private volatile AtomicReferenceArray<Object> table = new AtomicReferenceArray<>(MIN_CAPACITY);
+	private volatile int size;
+
+	/* Posições ocupadas, incluindo as removidas */
+	private int used;
+
+	/** Chave da conexão nesta tabela */
+	abstract long keyOf(LspConnection conn);
+
+	/** Tabela indexada pelo id da conexão */
+	static ConnectionTable byId() {
+		return new ConnectionTable() {
+			@Override
+			long keyOf(LspConnection conn) {
+				return conn.getId();
+			}
+		};
+	}
+
+	/** Tabela indexada pelo id do socket remoto da conexão */
+	static ConnectionTable bySockId() {
+		return new ConnectionTable() {
+			@Override
+			long keyOf(LspConnection conn) {
+				return conn.getSockId();
+			}
+		};
+	}
+
+	private static int index(long key, int mask) {
+		final long h = key * 0x9e3779b97f4a7c15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	LspConnection get(long key) {
+		final AtomicReferenceArray<Object> t = this.table;
+		final int mask = t.length() - 1;
+		for (int i = index(key, mask);; i = (i + 1) & mask) {
+			final Object o = t.get(i);
+			if (o == null) {
+				return null;
+			}
+			if (o != REMOVED && keyOf((LspConnection) o) == key) {
+				return (LspConnection) o;
+			}
+		}
+	}
+
+	boolean containsKey(long key) {
+		return get(key) != null;
+	}
+
+	/** Insere a conexão, substituindo a que tiver a mesma chave */
+	synchronized void put(LspConnection conn) {
+		final long key = keyOf(conn);
+		remove(key);
+
+		// Mantém ao menos um quarto da tabela livre
+		AtomicReferenceArray<Object> t = this.table;
+		if ((used + 1) * 4 > t.length() * 3) {
+			t = resize();
+		}
+
+		final int mask = t.length() - 1;
+		int i = index(key, mask);
+		while (t.get(i) != null && t.get(i) != REMOVED) {
+			i = (i + 1) & mask;
+		}
+
+		if (t.get(i) == null) {
+			used++;
+		}
+		t.set(i, conn);
+		size++;
+	}
+
+	/** Remove a conexão com a chave informada, devolvendo-a */
+	synchronized LspConnection remove(long key) {
+		final AtomicReferenceArray<Object> t = this.table;
+		final int mask = t.length() - 1;
+		for (int i = index(key, mask);; i = (i + 1) & mask) {
+			final Object o = t.get(i);
+			if (o == null) {
+				return null;
+			}
+			if (o != REMOVED && keyOf((LspConnection) o) == key) {
+				t.set(i, REMOVED);
+				size--;
+				return (LspConnection) o;
+			}
+		}
+	}
+
+	/**
+	 * Copia as conexões para uma nova tabela, descartando as marcas de
+	 * remoção. A capacidade é o dobro da necessária para as conexões atuais.
+	 */
+	private AtomicReferenceArray<Object> resize() {
+		int capacity = MIN_CAPACITY;
+		while (capacity < (size + 1) * 2) {
+			capacity <<= 1;
+		}
+
+		final AtomicReferenceArray<Object> old = this.table;
+		final AtomicReferenceArray<Object> t = new AtomicReferenceArray<>(capacity);
+		final int mask = capacity - 1;
+		for (int j = 0; j < old.length(); j++) {
+			final Object o = old.get(j);
+			if (o != null && o != REMOVED) {
+				int i = index(keyOf((LspConnection) o), mask);
+				while (t.get(i) != null) {
+					i = (i + 1) & mask;
+				}
+				t.set(i, o);
+			}
+		}
+
+		this.used = this.size;
+		this.table = t;
+		return t;
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/** Cópia das conexões presentes na tabela */
+	List<LspConnection> values() {
+		final AtomicReferenceArray<Object> t = this.table;
+		final List<LspConnection> values = new ArrayList<>(size);
+		for (int i = 0; i < t.length(); i++) {
+			final Object o = t.get(i);
+			if (o != null && o != REMOVED) {
+				values.add((LspConnection) o);
+			}
+		}
+
+		return values;
+	}
+
+	synchronized void clear() {
+		this.table = new AtomicReferenceArray<>(MIN_CAPACITY);
+		this.size = 0;
+		this.used = 0;
+	}
+}
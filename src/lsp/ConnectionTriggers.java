@@ -17,23 +17,35 @@ interface ConnectionTriggers {
 		}
 
 		static void resendData(final LspSocket sock, final LspConnection conn) {
+			// O reenvio é marcado antes, pois o ACK pode chegar antes do fim
+			// do envio
 			InternalPack pack = conn.sent();
 			if (pack != null) {
+				conn.retransmitted(pack);
 				sock.dgramSendData(pack);
 			}
+
+			// Mensagens dos fluxos aguardando ACK
+			for (LspStream stream : conn.streams()) {
+				pack = stream.sent();
+				if (pack != null) {
+					conn.retransmitted(pack);
+					sock.dgramSendData(pack);
+				}
+			}
 		}
 
 		/*
 		 * Se foi recebida alguma mensagem de dados, então envia o ACK dessa
-		 * mensagem, senão envia envia ACK(seqNum=0)
+		 * mensagem, senão envia envia ACK(seqNum=0). Com a conexão ociosa, o
+		 * ACK só é enviado nas épocas de manutenção.
 		 */
 		static void resendAck(final LspSocket sock, final LspConnection conn) {
-			short seqNum = conn.receivedSeqNum();
-			if (seqNum != -1) {
-				sock.dgramSendAck(conn, seqNum);
-			} else {
-				sock.dgramSendAck(conn, (short) 0);
+			if (!conn.isKeepAliveDue()) {
+				return;
 			}
+
+			sock.dgramSendAck(conn, conn.receivedSeqNum());
 		}
 	}
 }
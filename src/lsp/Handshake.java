@@ -0,0 +1,186 @@
+package lsp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Negociação de extensões do protocolo. As extensões desejadas são enviadas
+ * no payload do pedido de conexão e as aceitas no payload do ACK da conexão.
+ * Um payload vazio, como o dos participantes que não conhecem extensões,
+ * equivale a nenhuma extensão.
+ *
+ * @author Wagner Macedo
+ */
+final class Handshake {
+	/** Compressão de payload com deflate */
+	static final byte EXT_DEFLATE = 0x01;
+	/** Fluxos independentes dentro da conexão */
+	static final byte EXT_STREAMS = 0x02;
+	/** Cabeçalho largo, com id de conexão e número de sequência de 32 bits */
+	static final byte EXT_WIDE = 0x04;
+	/** O pedido de conexão devolve o cookie recebido do servidor */
+	static final byte EXT_COOKIE = 0x08;
+	/** Várias mensagens pequenas agrupadas em um pacote DATA_BATCH */
+	static final byte EXT_BATCH = 0x10;
+	/** Cópias de paridade dos pacotes de dados, que dispensam reenvios */
+	static final byte EXT_FEC = 0x20;
+	/**
+	 * A sequência pula o 0 ao dar a volta. Sem ela, como nos participantes
+	 * antigos, o número seguinte a 0xffff é 0.
+	 */
+	static final byte EXT_SKIP_ZERO = 0x40;
+
+	/* Extensões aceitas pelo servidor, exceto a compressão */
+	private static final byte EXT_SUPPORTED = EXT_STREAMS | EXT_WIDE | EXT_BATCH | EXT_FEC | EXT_SKIP_ZERO;
+
+	/*
+	 * Extensões sempre solicitadas pelos clientes. O cabeçalho largo só é
+	 * solicitado se configurado, pois aumenta todos os datagramas.
+	 */
+	private static final byte EXT_DEFAULT = EXT_STREAMS | EXT_BATCH | EXT_FEC | EXT_SKIP_ZERO;
+
+	private static final Handshake NONE = new Handshake((byte) 0, 0);
+
+	/* Respostas sem compressão, compartilhadas por todas as conexões */
+	private static final Handshake[] SHARED = new Handshake[EXT_SUPPORTED + 1];
+	static {
+		for (int i = 0; i < SHARED.length; i++) {
+			SHARED[i] = new Handshake((byte) i, 0);
+		}
+	}
+	private static final byte[] EMPTY = new byte[0];
+
+	private final byte flags;
+	private final int dictionaryId;
+	private final byte[] cookie;
+
+	private Handshake(byte flags, int dictionaryId) {
+		this(flags, dictionaryId, null);
+	}
+
+	private Handshake(byte flags, int dictionaryId, byte[] cookie) {
+		this.flags = flags;
+		this.dictionaryId = dictionaryId;
+		this.cookie = cookie;
+	}
+
+	/** Extensões solicitadas por um cliente com os parâmetros informados */
+	static Handshake request(LspParams params) {
+		final byte flags = params.isWideHeader() ? EXT_DEFAULT | EXT_WIDE : EXT_DEFAULT;
+		if (params.isCompression()) {
+			return new Handshake((byte) (flags | EXT_DEFLATE),
+					Compression.dictionaryId(params.getDictionary()));
+		}
+
+		return SHARED[flags];
+	}
+
+	/** Cópia desta solicitação devolvendo o cookie do servidor */
+	Handshake withCookie(byte[] cookie) {
+		return new Handshake((byte) (flags | EXT_COOKIE), dictionaryId, cookie);
+	}
+
+	/** Cookie devolvido ao servidor ou null */
+	byte[] getCookie() {
+		return cookie;
+	}
+
+	/** Lê as extensões do restante do buffer */
+	static Handshake parse(ByteBuffer buf) {
+		if (!buf.hasRemaining()) {
+			return NONE;
+		}
+
+		final byte flags = buf.get();
+		int dictionaryId = 0;
+		if ((flags & EXT_DEFLATE) != 0 && buf.remaining() >= 4) {
+			dictionaryId = buf.getInt();
+		}
+
+		byte[] cookie = null;
+		if ((flags & EXT_COOKIE) != 0 && buf.remaining() >= ConnectCookies.LEN_COOKIE) {
+			cookie = new byte[ConnectCookies.LEN_COOKIE];
+			buf.get(cookie);
+		}
+
+		return new Handshake(flags, dictionaryId, cookie);
+	}
+
+	/**
+	 * Resposta do servidor com os parâmetros informados a esta solicitação,
+	 * isto é, as extensões que ambos os lados suportam.
+	 */
+	Handshake accept(LspParams params) {
+		byte accepted = (byte) (flags & EXT_SUPPORTED);
+		int dictId = 0;
+
+		if ((flags & EXT_DEFLATE) != 0 && params.isCompression()) {
+			accepted |= EXT_DEFLATE;
+
+			// O dicionário só é usado se for o mesmo dos dois lados
+			final int ownId = Compression.dictionaryId(params.getDictionary());
+			if (ownId == dictionaryId) {
+				dictId = ownId;
+			}
+		}
+
+		if ((accepted & EXT_DEFLATE) == 0) {
+			return (accepted == 0) ? NONE : SHARED[accepted];
+		}
+
+		return new Handshake(accepted, dictId);
+	}
+
+	/**
+	 * Configura uma conexão com as extensões negociadas.
+	 *
+	 * @param params
+	 *            Parâmetros do lado que está configurando a conexão
+	 */
+	void apply(LspConnection conn, LspParams params) {
+		if ((flags & EXT_STREAMS) != 0) {
+			conn.addExtension(EXT_STREAMS);
+		}
+		if ((flags & EXT_WIDE) != 0) {
+			conn.addExtension(EXT_WIDE);
+		}
+		if ((flags & EXT_BATCH) != 0) {
+			conn.addExtension(EXT_BATCH);
+		}
+		if ((flags & EXT_FEC) != 0) {
+			conn.addExtension(EXT_FEC);
+		}
+		if ((flags & EXT_SKIP_ZERO) != 0) {
+			conn.addExtension(EXT_SKIP_ZERO);
+		}
+		if ((flags & EXT_DEFLATE) != 0) {
+			final byte[] dict = params.getDictionary();
+			final boolean useDict = dictionaryId != 0
+					&& dictionaryId == Compression.dictionaryId(dict);
+			conn.setCompression(new Compression(useDict ? dict : null));
+		}
+	}
+
+	/** Indica se a extensão faz parte desta negociação */
+	boolean has(int ext) {
+		return (flags & ext) != 0;
+	}
+
+	/** Codifica as extensões para envio. Sem extensões, devolve vetor vazio */
+	byte[] encode() {
+		if (flags == 0) {
+			return EMPTY;
+		}
+
+		final ByteBuffer buf = ByteBuffer.allocate(5 + ConnectCookies.LEN_COOKIE);
+		buf.put(flags);
+		if ((flags & EXT_DEFLATE) != 0) {
+			buf.putInt(dictionaryId);
+		}
+		if ((flags & EXT_COOKIE) != 0) {
+			buf.put(cookie);
+		}
+
+		return Arrays.copyOf(buf.array(), buf.position());
+	}
+}
@@ -1,20 +1,121 @@
 package lsp;
 
+import java.nio.ByteBuffer;
+
 class InternalPack extends Pack {
 	private final LspConnection connection;
-	private final short seqNum;
+	private final short streamId;
+	private final int seqNum;
+	private final short msgType;
+
+	/* Mensagens da aplicação contidas no pacote, mais de uma se agrupadas */
+	private int messages = 1;
+
+	/* Momento da criação, que para pacotes enviados é o primeiro envio */
+	private final long createdNanos = System.nanoTime();
+
+	/* Momento em que o pacote de origem entrou na fila de saída */
+	private volatile long queuedNanos;
+
+	/* Se o pacote foi reenviado, caso em que o ACK não mede o RTT */
+	private volatile boolean retransmitted;
+
+	/* Posições no diário das mensagens do pacote de origem */
+	private volatile long[] journaled;
+
+	InternalPack(LspConnection conn, int seqNum, byte[] payload) {
+		this(conn, seqNum, payload, LspSocket.DATA);
+	}
+
+	/** Constrói um pacote sobre o payload da aplicação, sem copiá-lo */
+	InternalPack(LspConnection conn, int seqNum, ByteBuffer payload) {
+		this(conn, (short) 0, seqNum, payload, LspSocket.DATA);
+	}
 
-	InternalPack(LspConnection conn, short seqNum, byte[] payload) {
+	/**
+	 * Constrói um pacote cujo payload está codificado conforme o tipo de
+	 * mensagem informado, por exemplo, comprimido.
+	 */
+	InternalPack(LspConnection conn, int seqNum, byte[] payload, short msgType) {
+		this(conn, (short) 0, seqNum, ByteBuffer.wrap(payload), msgType);
+	}
+
+	private InternalPack(LspConnection conn, short streamId, int seqNum, ByteBuffer payload, short msgType) {
 		super(conn.getId(), payload);
 		this.connection = conn;
+		this.streamId = streamId;
+		this.seqNum = seqNum;
+		this.msgType = msgType;
+	}
+
+	/** Constrói um pacote sem conexão associada, usado como marcador interno */
+	InternalPack(int seqNum, byte[] payload) {
+		super(0, payload);
+		this.connection = null;
+		this.streamId = 0;
 		this.seqNum = seqNum;
+		this.msgType = LspSocket.DATA;
+	}
+
+	/** Constrói um pacote de um fluxo da conexão */
+	static InternalPack stream(LspConnection conn, short streamId, short seqNum, ByteBuffer payload) {
+		return new InternalPack(conn, streamId, seqNum, payload, LspSocket.STREAM_DATA);
+	}
+
+	/** Constrói o pacote de um grupo de mensagens da conexão */
+	static InternalPack batch(LspConnection conn, int seqNum, BatchPack batch) {
+		final InternalPack p = new InternalPack(conn, (short) 0, seqNum, batch.payloadView(), LspSocket.DATA_BATCH);
+		p.messages = batch.getCount();
+		return p;
 	}
 
 	LspConnection getConnection() {
 		return this.connection;
 	}
 
-	short getSeqNum() {
+	/** Fluxo do pacote ou 0 se o pacote é da sequência principal da conexão */
+	short getStreamId() {
+		return this.streamId;
+	}
+
+	int getSeqNum() {
 		return this.seqNum;
 	}
+
+	short getMsgType() {
+		return this.msgType;
+	}
+
+	int getMessages() {
+		return this.messages;
+	}
+
+	long getCreatedNanos() {
+		return this.createdNanos;
+	}
+
+	long getQueuedNanos() {
+		return this.queuedNanos;
+	}
+
+	void setQueuedNanos(long queuedNanos) {
+		this.queuedNanos = queuedNanos;
+	}
+
+	@Override
+	long[] journaled() {
+		return this.journaled;
+	}
+
+	void setJournaled(long[] journaled) {
+		this.journaled = journaled;
+	}
+
+	boolean isRetransmitted() {
+		return this.retransmitted;
+	}
+
+	void setRetransmitted() {
+		this.retransmitted = true;
+	}
 }
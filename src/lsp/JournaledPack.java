@@ -0,0 +1,24 @@
+package lsp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pacote de uma mensagem registrada no diário de envio. Criado pelo próprio
+ * cliente a cada escrita, de modo que a posição no diário nunca é
+ * compartilhada por duas escritas.
+ *
+ * @author Wagner Macedo
+ */
+final class JournaledPack extends Pack {
+	private final long[] positions;
+
+	JournaledPack(int connId, ByteBuffer payload, long position) {
+		super(connId, payload);
+		this.positions = new long[] {position};
+	}
+
+	@Override
+	long[] journaled() {
+		return this.positions;
+	}
+}
@@ -0,0 +1,149 @@
+package lsp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma de latências em nanosegundos com memória fixa e erro relativo
+ * limitado, no estilo dos histogramas de alta faixa dinâmica: cada potência de
+ * 2 é dividida em {@value #SUB_BUCKETS} baldes lineares, o que mantém o erro
+ * de cada valor abaixo de 1/{@value #SUB_BUCKETS}. Valores acima de
+ * {@link #MAX_VALUE} são contados no último balde.
+ *
+ * O registro não bloqueia e pode ser feito por várias threads.
+ *
+ * @author Wagner Macedo
+ */
+public final class LatencyHistogram {
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	/** Maior valor distinguível, cerca de 18 minutos */
+	public static final long MAX_VALUE = (1L << 40) - 1;
+
+	private static final int LEN_BUCKETS = index(MAX_VALUE) + 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(LEN_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Balde de um valor. Até 2 * {@value #SUB_BUCKETS} os baldes são exatos; a
+	 * partir daí, cada potência de 2 ocupa {@value #SUB_BUCKETS} baldes.
+	 */
+	private static int index(long value) {
+		if (value < 2 * SUB_BUCKETS) {
+			return (int) value;
+		}
+
+		final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	/** Maior valor contado no balde informado */
+	private static long highestValue(int index) {
+		if (index < 2 * SUB_BUCKETS) {
+			return index;
+		}
+
+		final int shift = index / SUB_BUCKETS - 1;
+		final long mantissa = index % SUB_BUCKETS + SUB_BUCKETS;
+		return ((mantissa + 1) << shift) - 1;
+	}
+
+	/** Registra uma latência em nanosegundos. Valores negativos contam como 0 */
+	public void record(long nanos) {
+		final long value = Math.max(0, Math.min(nanos, MAX_VALUE));
+		counts.incrementAndGet(index(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long m;
+		while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+		}
+	}
+
+	/** Soma a este histograma os registros de outro */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < LEN_BUCKETS; i++) {
+			final long c = other.counts.get(i);
+			if (c != 0) {
+				counts.addAndGet(i, c);
+			}
+		}
+		count.addAndGet(other.count.get());
+		sum.addAndGet(other.sum.get());
+
+		final long value = other.max.get();
+		long m;
+		while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+		}
+	}
+
+	/** Cópia dos registros atuais */
+	public LatencyHistogram copy() {
+		final LatencyHistogram h = new LatencyHistogram();
+		h.add(this);
+		return h;
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/** Maior latência registrada em nanosegundos */
+	public long getMax() {
+		return max.get();
+	}
+
+	/** Média das latências em nanosegundos */
+	public double getMean() {
+		final long n = count.get();
+		return (n == 0) ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * Latência em nanosegundos abaixo da qual está o percentual informado dos
+	 * registros, com o erro relativo do histograma
+	 *
+	 * @param percentile
+	 *            De 0 a 100, por exemplo 99.9
+	 */
+	public long getPercentile(double percentile) {
+		final long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+
+		final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+		long seen = 0;
+		for (int i = 0; i < LEN_BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestValue(i), max.get());
+			}
+		}
+
+		return max.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("n=%d p50=%s p99=%s p99.9=%s max=%s", getCount(),
+				format(getPercentile(50)), format(getPercentile(99)),
+				format(getPercentile(99.9)), format(getMax()));
+	}
+
+	/** Formata nanosegundos na unidade mais legível */
+	static String format(long nanos) {
+		if (nanos < TimeUnit.MICROSECONDS.toNanos(10)) {
+			return nanos + "ns";
+		}
+		if (nanos < TimeUnit.MILLISECONDS.toNanos(10)) {
+			return TimeUnit.NANOSECONDS.toMicros(nanos) + "us";
+		}
+		return TimeUnit.NANOSECONDS.toMillis(nanos) + "ms";
+	}
+}
@@ -3,6 +3,14 @@ package lsp;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 public class LspClient {
@@ -10,32 +18,121 @@ public class LspClient {
 	private final LspConnection conn;
 	private final LspParams params;
 
+	/* Grupo que compartilha o socket ou null se o socket é só deste cliente */
+	private final LspClientGroup group;
+	private final BlockingQueue<InternalPack> inputQueue;
+
+	/* Id da conexão nos pacotes enfileirados: o da conexão ou o id no grupo */
+	private final int packId;
+
+	/* Diário das mensagens não reconhecidas ou null se não há */
+	private final SendJournal journal;
+
 	private volatile boolean active = true;
 	private volatile boolean markClosed = false;
 
 	public static final short LEN_PAYLOAD = LspSocket.LEN_PAYLOAD;
+	public static final short LEN_STREAM_PAYLOAD = LspSocket.LEN_STREAM_PAYLOAD;
 
 	public LspClient(String host, int port, LspParams params) throws IOException, TimeoutException {
 		SocketAddress sockAddr = new InetSocketAddress(host, port);
 		params = (params == null) ? LspParams.defaultParams() : params;
 
-		lspSocket = new LspSocketImpl(0);
+		this.group = null;
+		final Path file = params.getJournalFile();
+		this.journal = (file == null) ? null : SendJournal.open(file, params.getJournalCapacity());
+		try {
+			lspSocket = new LspSocketImpl(0, params);
+		} catch (IOException e) {
+			closeJournal();
+			throw e;
+		}
+		lspSocket.setCoalescing(params.getCoalescingNanos());
 		try {
 			conn = lspSocket.connect(sockAddr, params, new ClientTriggers());
 			this.params = params;
+			this.inputQueue = lspSocket.inputQueue(conn);
+			this.packId = conn.getId();
+			LspEvents.opened(conn.getId());
 		} catch (TimeoutException e) {
 			lspSocket.close();
+			closeJournal();
 			throw e;
 		}
+
+		if (journal != null) {
+			conn.setJournal(journal);
+			replay();
+		}
+	}
+
+	/**
+	 * Reenvia as mensagens que ficaram sem ACK no diário, na ordem em que
+	 * foram registradas e antes de qualquer nova mensagem
+	 */
+	private void replay() {
+		final List<Pack> packs = new ArrayList<>();
+		for (SendJournal.Record r : journal.pending()) {
+			packs.add(new JournaledPack(packId, ByteBuffer.wrap(r.payload), r.position));
+		}
+
+		if (!packs.isEmpty()) {
+			conn.addSendMissing(packs.size());
+			int accepted = 0;
+			try {
+				accepted = lspSocket.send(packs, -1, TimeUnit.MILLISECONDS);
+			} finally {
+				conn.addSendMissing(accepted - packs.size());
+			}
+		}
+	}
+
+	/**
+	 * Conecta um cliente de um grupo pelo socket informado, que é do grupo
+	 */
+	LspClient(LspClientGroup group, LspSocket socket, SocketAddress sockAddr, LspParams params)
+			throws TimeoutException {
+		this.group = group;
+		this.lspSocket = socket;
+		this.params = params;
+		this.journal = null;
+		this.conn = socket.connect(sockAddr, params, new ClientTriggers());
+
+		final LspClientGroup.Member member = group.register(this, socket, conn);
+		this.inputQueue = member.inputQueue;
+		this.packId = member.localId;
+		LspEvents.opened(conn.getId());
 	}
 
 	/**
-	 * Devolve o Id da conexão
+	 * Devolve o Id da conexão no formato de 16 bits
+	 *
+	 * @see #getConnectionId()
 	 */
 	public short getConnId() {
+		return (short) conn.getId();
+	}
+
+	/**
+	 * Devolve o Id da conexão com 32 bits. O servidor atribui ids maiores que
+	 * 16 bits às conexões que negociaram o cabeçalho largo.
+	 */
+	public int getConnectionId() {
 		return conn.getId();
 	}
 
+	/**
+	 * Devolve as estatísticas da conexão
+	 */
+	public ConnectionStats getStats() {
+		return new ConnectionStats(conn, lspSocket.getSendLatency());
+	}
+
+	/** Mensagens enfileiradas ou aguardando ACK */
+	int getSendMissing() {
+		return conn.getSendMissing();
+	}
+
 	/**
 	 * Devolve um vetor de bytes de uma mensagem enviada pelo lado servidor.
 	 * Devolve null se a conexão for perdida.
@@ -43,22 +140,330 @@ public class LspClient {
 	public byte[] read() {
 		try {
 			checkActive();
-			return lspSocket.receive().getPayload();
+			return lspSocket.receive(inputQueue).getPayload();
 		} catch (ClosedConnectionException | NullPointerException e) {
 			return null;
 		}
 	}
 
+	/**
+	 * Devolve uma mensagem enviada pelo lado servidor como buffer somente
+	 * leitura, sem cópia. Devolve null se a conexão for perdida.
+	 */
+	public ByteBuffer readBuffer() {
+		try {
+			checkActive();
+			return lspSocket.receive(inputQueue).getPayloadBuffer();
+		} catch (ClosedConnectionException | NullPointerException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Lê em lote as mensagens enviadas pelo lado servidor. Bloqueia até que
+	 * haja ao menos uma mensagem e então preenche o vetor, a partir da posição
+	 * 0, com as mensagens já disponíveis.
+	 *
+	 * @return Quantidade de mensagens lidas ou 0 se a conexão for perdida
+	 */
+	public int read(byte[][] dst) {
+		final List<byte[]> msgs = new ArrayList<>(dst.length);
+		final int count = drainTo(msgs, dst.length);
+		for (int i = 0; i < count; i++) {
+			dst[i] = msgs.get(i);
+		}
+
+		return count;
+	}
+
+	/**
+	 * Transfere para a coleção as mensagens já recebidas do lado servidor, até
+	 * o limite informado. Bloqueia até que haja ao menos uma mensagem.
+	 *
+	 * @return Quantidade de mensagens transferidas ou 0 se a conexão for
+	 *         perdida
+	 */
+	public int drainTo(Collection<? super byte[]> dst, int maxMsgs) {
+		try {
+			checkActive();
+		} catch (ClosedConnectionException e) {
+			return 0;
+		}
+
+		final List<InternalPack> packs = new ArrayList<>();
+		final int count = lspSocket.receive(inputQueue, packs, maxMsgs);
+		for (int i = 0; i < count; i++) {
+			dst.add(packs.get(i).getPayload());
+		}
+
+		return count;
+	}
+
+	/**
+	 * Transfere para a coleção todas as mensagens já recebidas do lado
+	 * servidor. Bloqueia até que haja ao menos uma mensagem.
+	 *
+	 * @see #drainTo(Collection, int)
+	 */
+	public int drainTo(Collection<? super byte[]> dst) {
+		return drainTo(dst, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Devolve um vetor de bytes de uma mensagem enviada pelo lado servidor por
+	 * um fluxo da conexão. Devolve null se a conexão for perdida.
+	 *
+	 * @param streamId
+	 *            Fluxo da conexão, de 1 a {@link Short#MAX_VALUE}
+	 */
+	public byte[] read(short streamId) {
+		try {
+			checkActive();
+			return LspStream.of(conn, streamId).receive();
+		} catch (ClosedConnectionException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Envia uma mensagem para o lado servidor por um fluxo da conexão. Os
+	 * fluxos têm sequências independentes: a perda de um pacote de um fluxo
+	 * não atrasa os demais. Um fluxo é criado no primeiro uso por qualquer dos
+	 * lados. Devolve exceção se a conexão for perdida.
+	 *
+	 * @param streamId
+	 *            Fluxo da conexão, de 1 a {@link Short#MAX_VALUE}
+	 * @throws IllegalStateException
+	 *             se o servidor não suporta fluxos ou se a fila de saída
+	 *             estiver cheia
+	 */
+	public void write(short streamId, byte[] payload) {
+		checkActive();
+
+		LspStream.of(conn, streamId);
+		lspSocket.send(new StreamPack(packId, streamId, payload));
+		conn.incSendMissing();
+	}
+
+	/**
+	 * Envia uma mensagem por um fluxo da conexão, aguardando no máximo o tempo
+	 * limite se a fila de saída estiver cheia. Com tempo limite negativo,
+	 * aguarda até haver espaço.
+	 *
+	 * @return false se o tempo limite se esgotou ou a conexão foi perdida
+	 * @see #write(short, byte[])
+	 */
+	public boolean write(short streamId, byte[] payload, long timeout, TimeUnit unit) {
+		return write(streamId, ByteBuffer.wrap(payload), timeout, unit);
+	}
+
+	/**
+	 * Envia o trecho restante do buffer por um fluxo da conexão, sem cópia. O
+	 * trecho não deve ser alterado até a mensagem ser reconhecida.
+	 *
+	 * @see #write(short, byte[], long, TimeUnit)
+	 */
+	boolean write(short streamId, ByteBuffer payload, long timeout, TimeUnit unit) {
+		checkActive();
+
+		LspStream.of(conn, streamId);
+		conn.incSendMissing();
+		final Pack pack = new StreamPack(packId, streamId, payload);
+		boolean accepted = false;
+		try {
+			accepted = lspSocket.send(Collections.singletonList(pack), timeout, unit) == 1;
+		} finally {
+			if (!accepted) {
+				conn.addSendMissing(-1);
+			}
+		}
+		return accepted;
+	}
+
 	/**
 	 * Envia uma mensagen para o lado servidor como um vetor de bytes. Devolve
 	 * exceção se a conexão for perdida.
 	 */
 	public void write(byte[] payload) {
+		write(payload, Priority.NORMAL);
+	}
+
+	/**
+	 * Envia uma mensagem para o lado servidor com a prioridade informada. A
+	 * mensagem é enviada antes das mensagens de menor prioridade já
+	 * enfileiradas. Devolve exceção se a conexão for perdida.
+	 */
+	public void write(byte[] payload, Priority priority) {
+		write(new Pack(packId, payload), priority);
+	}
+
+	/**
+	 * Envia um trecho de um vetor como mensagem para o lado servidor. O
+	 * trecho não é copiado e não deve ser alterado até a mensagem ser
+	 * reconhecida. Devolve exceção se a conexão for perdida.
+	 */
+	public void write(byte[] array, int offset, int length) {
+		write(new Pack(packId, array, offset, length), Priority.NORMAL);
+	}
+
+	private void write(Pack pack, Priority priority) {
 		checkActive();
 
-		Pack p = new Pack(conn.getId(), payload);
-		lspSocket.send(p);
+		final Pack p = journal(pack);
+		try {
+			lspSocket.send(p, priority);
+		} catch (RuntimeException e) {
+			discard(p);
+			throw e;
+		}
 		conn.incSendMissing();
+		sync();
+	}
+
+	/**
+	 * Envia em lote mensagens para o lado servidor. As mensagens são
+	 * enfileiradas de forma contígua e, se a fila de saída estiver cheia, o
+	 * chamador é bloqueado até haver espaço.
+	 *
+	 * @return Quantidade de mensagens aceitas, sempre as primeiras do lote
+	 */
+	public int write(Collection<byte[]> payloads) {
+		return write(payloads, -1, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Envia em lote mensagens para o lado servidor, aguardando no máximo o
+	 * tempo limite se a fila de saída estiver cheia.
+	 *
+	 * @return Quantidade de mensagens aceitas, sempre as primeiras do lote
+	 */
+	public int write(Collection<byte[]> payloads, long timeout, TimeUnit unit) {
+		return write(payloads, Priority.NORMAL, timeout, unit);
+	}
+
+	/**
+	 * Envia em lote mensagens para o lado servidor com a prioridade informada.
+	 *
+	 * @see #write(Collection, long, TimeUnit)
+	 */
+	public int write(Collection<byte[]> payloads, Priority priority, long timeout, TimeUnit unit) {
+		final List<Pack> packs = new ArrayList<>(payloads.size());
+		for (byte[] payload : payloads) {
+			packs.add(new Pack(packId, payload));
+		}
+
+		return write(packs, priority, timeout, unit);
+	}
+
+	private int write(List<Pack> packs, Priority priority, long timeout, TimeUnit unit) {
+		checkActive();
+
+		for (int i = 0; i < packs.size(); i++) {
+			packs.set(i, journal(packs.get(i)));
+		}
+
+		// Contabiliza antes de enfileirar e desconta as mensagens recusadas,
+		// inclusive quando o lote é rejeitado com exceção
+		conn.addSendMissing(packs.size());
+		int accepted = 0;
+		try {
+			accepted = lspSocket.send(packs, priority, timeout, unit);
+		} finally {
+			conn.addSendMissing(accepted - packs.size());
+			for (Pack p : packs.subList(accepted, packs.size())) {
+				discard(p);
+			}
+		}
+		sync();
+
+		return accepted;
+	}
+
+	/**
+	 * Registra a mensagem no diário, se houver
+	 *
+	 * @return O pacote a enfileirar: um novo pacote com a posição no diário ou
+	 *         o próprio pacote se não há diário
+	 */
+	private Pack journal(Pack p) {
+		if (journal == null) {
+			return p;
+		}
+		return new JournaledPack(p.getConnectionId(), p.payloadView(), journal.append(p.payloadView()));
+	}
+
+	/** Retira do diário uma mensagem que não foi enfileirada */
+	private void discard(Pack p) {
+		final long[] journaled = p.journaled();
+		if (journaled != null) {
+			journal.acked(journaled);
+		}
+	}
+
+	/**
+	 * Aguarda a gravação em disco das mensagens registradas no diário, se as
+	 * ainda não gravadas atingiram o limite de agrupamento
+	 */
+	private void sync() {
+		if (journal != null) {
+			journal.sync(params.getJournalSyncBytes());
+		}
+	}
+
+	/**
+	 * Aguarda a gravação em disco de todas as mensagens já escritas. Só é
+	 * necessário com as gravações do diário agrupadas; sem diário, não faz
+	 * nada.
+	 *
+	 * @see LspParams#withJournalSync(int)
+	 */
+	public void flush() {
+		if (journal != null) {
+			journal.sync();
+		}
+	}
+
+	private void closeJournal() {
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Envia em lote mensagens para o lado servidor. O conteúdo restante de
+	 * cada buffer forma uma mensagem, que segue até o datagrama sem cópia e
+	 * por isso não deve ser alterada até ser reconhecida. Se a fila de saída
+	 * estiver cheia, o chamador é bloqueado até haver espaço.
+	 *
+	 * @return Quantidade de mensagens aceitas. A posição dos buffers aceitos é
+	 *         avançada até o limite
+	 */
+	public int write(ByteBuffer... payloads) {
+		return write(-1, TimeUnit.MILLISECONDS, payloads);
+	}
+
+	/**
+	 * Envia em lote mensagens para o lado servidor, aguardando no máximo o
+	 * tempo limite se a fila de saída estiver cheia.
+	 *
+	 * @see #write(ByteBuffer...)
+	 */
+	public int write(long timeout, TimeUnit unit, ByteBuffer... payloads) {
+		final List<Pack> packs = new ArrayList<>(payloads.length);
+		for (ByteBuffer buf : payloads) {
+			packs.add(new Pack(packId, buf));
+		}
+
+		final int accepted = write(packs, Priority.NORMAL, timeout, unit);
+		for (int i = 0; i < accepted; i++) {
+			payloads[i].position(payloads[i].limit());
+		}
+
+		return accepted;
 	}
 
 	/**
@@ -78,7 +483,7 @@ public class LspClient {
 
 		while (!conn.isInterrupted()) {
 			try {
-				Thread.sleep(params.getEpoch());
+				params.getClock().sleep(params.getEpoch());
 			} catch (InterruptedException e) {
 				realClose();
 				return;
@@ -89,7 +494,20 @@ public class LspClient {
 	private void realClose() {
 		this.active = false;
 		this.conn.close();
-		this.lspSocket.close();
+		if (group == null) {
+			this.lspSocket.close();
+			closeJournal();
+		} else {
+			group.unregister(this, lspSocket, conn);
+		}
+		LspEvents.closed(conn.getId());
+	}
+
+	/** Encerra a conexão sem aguardar as mensagens pendentes */
+	void abort() {
+		if (active) {
+			realClose();
+		}
 	}
 
 	private void checkActive() {
@@ -98,8 +516,8 @@ public class LspClient {
 	}
 
 	private final class LspSocketImpl extends LspSocket {
-		LspSocketImpl(int port) throws IOException {
-			super(port);
+		LspSocketImpl(int port, LspParams params) throws IOException {
+			super(port, params);
 		}
 
 		@Override
@@ -108,7 +526,7 @@ public class LspClient {
 		}
 
 		@Override
-		LspConnection usedConnection(short connId) {
+		LspConnection usedConnection(int connId) {
 			if (conn != null && conn.getId() == connId) {
 				return conn;
 			} else {
@@ -0,0 +1,269 @@
+package lsp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Grupo de clientes LSP que compartilham poucos sockets UDP. Cada socket tem
+ * uma só thread de entrada e uma de saída, seja qual for o número de
+ * clientes conectados por ele; as épocas de todas as conexões são disparadas
+ * pelo agendador compartilhado do relógio.
+ *
+ * Os pacotes recebidos por um socket do grupo são encaminhados à conexão
+ * pelo endereço do servidor e pelo id de conexão, pois servidores diferentes
+ * atribuem os mesmos ids. Cada cliente tem a sua própria fila de entrada.
+ *
+ * O servidor identifica as conexões pelo endereço do cliente, então cada
+ * socket do grupo mantém no máximo uma conexão com cada servidor. Para
+ * conectar N clientes ao mesmo servidor, o grupo precisa de N sockets.
+ *
+ * @author Wagner Macedo
+ */
+public final class LspClientGroup {
+	/** Capacidade da fila de saída de cada socket, dividida pelos clientes */
+	private static final int OUTPUT_QUEUE_SIZE = 1024;
+
+	private final LspParams params;
+	private final GroupSocket[] sockets;
+	private final AtomicInteger nextSocket = new AtomicInteger();
+
+	/* Clientes conectados, encerrados junto com o grupo */
+	private final Set<LspClient> clients =
+			Collections.newSetFromMap(new ConcurrentHashMap<LspClient, Boolean>());
+
+	private volatile boolean active = true;
+
+	/**
+	 * Cria um grupo de clientes
+	 *
+	 * @param sockets
+	 *            Quantidade de sockets UDP, cada um com duas threads
+	 * @param params
+	 *            Parâmetros de todas as conexões do grupo
+	 */
+	public LspClientGroup(int sockets, LspParams params) throws IOException {
+		if (sockets <= 0)
+			throw new IllegalArgumentException("O grupo precisa de ao menos um socket");
+		if (params != null && params.getJournalFile() != null)
+			throw new IllegalArgumentException("Clientes de um grupo não usam o diário de envio");
+
+		this.params = (params == null) ? LspParams.defaultParams() : params;
+		this.sockets = new GroupSocket[sockets];
+		try {
+			for (int i = 0; i < sockets; i++) {
+				this.sockets[i] = new GroupSocket();
+				this.sockets[i].setCoalescing(this.params.getCoalescingNanos());
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Conecta um novo cliente do grupo a um servidor LSP. Os clientes são
+	 * distribuídos entre os sockets do grupo em rodízio, pulando os sockets
+	 * que já têm uma conexão com o mesmo servidor.
+	 *
+	 * @throws TimeoutException
+	 *             se o servidor não responder dentro do limite de épocas
+	 * @throws IllegalStateException
+	 *             se todos os sockets já estiverem conectados ao servidor
+	 */
+	public LspClient connect(String host, int port) throws TimeoutException {
+		if (!active)
+			throw new IllegalStateException("Grupo encerrado");
+
+		final InetSocketAddress sockAddr = new InetSocketAddress(host, port);
+		final int first = (nextSocket.getAndIncrement() & Integer.MAX_VALUE) % sockets.length;
+		for (int n = 0; n < sockets.length; n++) {
+			final GroupSocket socket = sockets[(first + n) % sockets.length];
+			if (!socket.reserve(sockAddr)) {
+				continue;
+			}
+
+			boolean connected = false;
+			try {
+				final LspClient client = new LspClient(this, socket, sockAddr, params);
+				connected = true;
+				return client;
+			} finally {
+				if (!connected) {
+					socket.servers.remove(sockAddr);
+				}
+			}
+		}
+		throw new IllegalStateException("Todos os sockets do grupo já estão conectados a " + sockAddr);
+	}
+
+	/** Quantidade de clientes conectados */
+	public int getClientCount() {
+		return clients.size();
+	}
+
+	/** Portas locais dos sockets do grupo */
+	public List<Integer> getLocalPorts() {
+		final List<Integer> ports = new ArrayList<>(sockets.length);
+		for (GroupSocket s : sockets) {
+			ports.add(s.getPort());
+		}
+		return ports;
+	}
+
+	/**
+	 * Encerra imediatamente todos os clientes do grupo, sem aguardar as
+	 * mensagens pendentes, e fecha os sockets.
+	 */
+	public void close() {
+		active = false;
+		for (LspClient client : clients) {
+			client.abort();
+		}
+		for (GroupSocket s : sockets) {
+			if (s != null) {
+				s.close();
+			}
+		}
+	}
+
+	/** Registra no socket a conexão recém estabelecida de um cliente */
+	Member register(LspClient client, LspSocket socket, LspConnection conn) {
+		final Member member = ((GroupSocket) socket).add(conn);
+		clients.add(client);
+		return member;
+	}
+
+	/** Remove a conexão de um cliente e acorda os seus leitores */
+	void unregister(LspClient client, LspSocket socket, LspConnection conn) {
+		final Member member = ((GroupSocket) socket).remove(conn);
+		clients.remove(client);
+		if (member != null) {
+			socket.close(member.inputQueue);
+		}
+	}
+
+	/** Conexão de um cliente em um socket do grupo */
+	static final class Member {
+		final LspConnection conn;
+		final int localId;
+		final BlockingQueue<InternalPack> inputQueue;
+
+		Member(LspConnection conn, int localId, BlockingQueue<InternalPack> inputQueue) {
+			this.conn = conn;
+			this.localId = localId;
+			this.inputQueue = inputQueue;
+		}
+	}
+
+	/** Endereço do servidor e id atribuído por ele a uma conexão */
+	private static final class Remote {
+		private final SocketAddress sockAddr;
+		private final int connId;
+
+		Remote(SocketAddress sockAddr, int connId) {
+			this.sockAddr = sockAddr;
+			this.connId = connId;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Remote)) {
+				return false;
+			}
+			final Remote other = (Remote) obj;
+			return connId == other.connId && sockAddr.equals(other.sockAddr);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * sockAddr.hashCode() + connId;
+		}
+	}
+
+	private final class GroupSocket extends LspSocket {
+		/*
+		 * Conexões pelo id local, que identifica os pacotes enfileirados, e
+		 * pelo remetente, que identifica os pacotes recebidos
+		 */
+		private final ConcurrentMap<Integer, Member> byLocalId = new ConcurrentHashMap<>();
+		private final ConcurrentMap<Remote, Member> byRemote = new ConcurrentHashMap<>();
+		private final AtomicInteger nextLocalId = new AtomicInteger();
+
+		/*
+		 * Servidores com uma conexão por este socket e o instante em que o
+		 * socket volta a ficar livre para cada um: Long.MAX_VALUE enquanto a
+		 * conexão está aberta e, depois de encerrada, o limite de épocas em
+		 * que o servidor ainda a considera ativa
+		 */
+		private final ConcurrentMap<SocketAddress, Long> servers = new ConcurrentHashMap<>();
+
+		GroupSocket() throws IOException {
+			super(0, OUTPUT_QUEUE_SIZE, params);
+		}
+
+		/** Reserva o socket para uma nova conexão ao servidor, se estiver livre */
+		boolean reserve(SocketAddress sockAddr) {
+			final Long until = servers.putIfAbsent(sockAddr, Long.MAX_VALUE);
+			if (until == null) {
+				return true;
+			}
+			return until <= params.getClock().millis() && servers.replace(sockAddr, until, Long.MAX_VALUE);
+		}
+
+		Member add(LspConnection conn) {
+			// O id local nunca é 0 e não se repete entre as conexões abertas
+			int id;
+			Member member;
+			do {
+				id = nextLocalId.incrementAndGet();
+				member = new Member(conn, id, newInputQueue(QUEUE_ZISE));
+			} while (id == 0 || byLocalId.putIfAbsent(id, member) != null);
+
+			byRemote.put(new Remote(conn.getSockAddr(), conn.getId()), member);
+			return member;
+		}
+
+		Member remove(LspConnection conn) {
+			final Member member = byRemote.remove(new Remote(conn.getSockAddr(), conn.getId()));
+			if (member != null) {
+				byLocalId.remove(member.localId);
+				servers.put(conn.getSockAddr(), params.getClock().millis()
+						+ params.getEpoch() * params.getEpochLimit());
+			}
+			return member;
+		}
+
+		@Override
+		boolean isActive() {
+			return active;
+		}
+
+		@Override
+		LspConnection usedConnection(int localId) {
+			final Member member = byLocalId.get(localId);
+			return (member == null) ? null : member.conn;
+		}
+
+		@Override
+		LspConnection usedConnection(SocketAddress sockAddr, int connId) {
+			final Member member = byRemote.get(new Remote(sockAddr, connId));
+			return (member == null) ? null : member.conn;
+		}
+
+		@Override
+		BlockingQueue<InternalPack> inputQueue(LspConnection conn) {
+			final Member member = byRemote.get(new Remote(conn.getSockAddr(), conn.getId()));
+			return (member == null) ? super.inputQueue(conn) : member.inputQueue;
+		}
+	}
+}
@@ -2,29 +2,81 @@ package lsp;
 
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
  * Representa uma conexão LSP.
  *
+ * O estado é mantido compacto, pois um servidor pode manter dezenas de
+ * milhares de conexões ociosas: o monitoramento é feito por threads
+ * compartilhadas entre todas as conexões e o estado pouco usado (compressão,
+ * fluxos, contadores e espaçamento dos envios) só é criado quando necessário.
+ * As latências de envio são registradas pelo socket.
+ *
  * @author Wagner Macedo
  */
 class LspConnection {
-	private final short id;
+	private final int id;
 	private final long sockId;
 	private final ConnectionTriggers triggers;
 
 	private volatile boolean closed;
 	private volatile boolean markClosed;
-	private volatile short seqNum;
 	private volatile long receivedTime;
-	private volatile short receivedSeqNum;
-	private final AtomicInteger sendMissing;
-	private final Object lock = new Object();
+
+	/*
+	 * Sequências de 64 bits da última mensagem enviada e da última recebida,
+	 * 0 se nenhuma. No datagrama vão somente os bits menos significativos.
+	 */
+	private volatile long seqNum;
+	private volatile long receivedSeqNum;
+	private volatile int sendMissing;
+	private volatile byte extensions;
+
+	private static final AtomicIntegerFieldUpdater<LspConnection> SEND_MISSING =
+			AtomicIntegerFieldUpdater.newUpdater(LspConnection.class, "sendMissing");
+
+	/* Cópias de paridade a enviar com cada pacote de dados */
+	private final int redundancy;
+
+	/* Atividade desde a última época, usada pela manutenção da conexão */
+	private volatile boolean traffic;
+	private volatile boolean transmitted;
+	private volatile boolean keepAliveDue = true;
 
 	private volatile InternalPack sentMessage;
+	private volatile Compression compression;
+	private volatile Handshake handshake;
+
+	/* Diário das mensagens não reconhecidas, somente no cliente */
+	private volatile SendJournal journal;
+
+	/* A taxa de envio é derivada do RTT suavizado */
+	private final boolean rttPacing;
+
+	/* Contadores e espaçamento dos envios, criados no primeiro uso */
+	private volatile Extras extras;
+
+	/** Quantas vezes a capacidade de envio da conexão sai a cada RTT */
+	static final int PACING_GAIN = 2;
+
+	/** Quantidade máxima de fluxos por conexão */
+	static final int MAX_STREAMS = 1024;
+
+	/* Fluxos da conexão, criados somente quando usados */
+	private volatile ConcurrentMap<Short, LspStream> streams;
 	private final SocketAddress sockAddr;
-	private final Thread statusThread;
+	private final ScheduledFuture<?> statusTask;
+
+	/* Relógio das épocas, cujo agendador é compartilhado pelas conexões */
+	private final Clock clock;
 
 	/**
 	 * Constrói um objeto {@link LspConnection}
@@ -38,7 +90,7 @@ class LspConnection {
 	 * @param params
 	 *            Parâmetros de temporização da conexão
 	 */
-	LspConnection(short id, long sockId, SocketAddress sockAddr, LspParams params, ConnectionTriggers triggers) {
+	LspConnection(int id, long sockId, SocketAddress sockAddr, LspParams params, ConnectionTriggers triggers) {
 		if (sockAddr == null || params == null)
 			throw new NullPointerException("Nenhum parâmetro pode ser nulo");
 
@@ -49,12 +101,19 @@ class LspConnection {
 		this.closed = false;
 		this.seqNum = 0;
 		this.receivedTime = -1;
-		this.receivedSeqNum = -1;
-		this.sendMissing = new AtomicInteger(0);
+		this.receivedSeqNum = 0;
+		this.clock = params.getClock();
+		this.redundancy = params.getRedundancy();
+
+		final long rate = params.getPacingRate();
+		this.rttPacing = rate == LspParams.RATE_FROM_RTT;
+		if (rate > 0) {
+			extras().pacer = new TokenBucket(rate, LspSocket.PACING_BURST, clock);
+		}
 
-		this.statusThread = new Thread(new StatusChecker(params));
-		this.statusThread.setDaemon(true);
-		this.statusThread.start();
+		final int epoch = params.getEpoch();
+		this.statusTask = clock.scheduleWithFixedDelay(new StatusChecker(params), epoch, epoch,
+				TimeUnit.MILLISECONDS);
 	}
 
 	/**
@@ -67,11 +126,11 @@ class LspConnection {
 	 * @param params
 	 *            Parâmetros de temporização da conexão
 	 */
-	LspConnection(short id, SocketAddress sockAddr, LspParams params, ConnectionTriggers triggers) {
+	LspConnection(int id, SocketAddress sockAddr, LspParams params, ConnectionTriggers triggers) {
 		this(id, uniqueSockId(sockAddr), sockAddr, params, triggers);
 	}
 
-	short getId() {
+	int getId() {
 		return this.id;
 	}
 
@@ -100,12 +159,116 @@ class LspConnection {
 		return this.sockAddr;
 	}
 
+	/** Compressão negociada para essa conexão ou null */
+	Compression getCompression() {
+		return this.compression;
+	}
+
+	void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+
+	/** Diário onde os ACKs das mensagens registradas são marcados */
+	void setJournal(SendJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Extensões aceitas pelo servidor, enviadas no payload do ACK da conexão.
+	 * Esse atributo só é usado pelo servidor.
+	 */
+	Handshake getHandshake() {
+		return this.handshake;
+	}
+
+	void setHandshake(Handshake handshake) {
+		this.handshake = handshake;
+	}
+
+	/** Marca uma extensão do protocolo como negociada para essa conexão */
+	void addExtension(int ext) {
+		this.extensions |= (byte) ext;
+	}
+
+	/** Indica se a extensão do protocolo foi negociada para essa conexão */
+	boolean hasExtension(int ext) {
+		return (this.extensions & ext) != 0;
+	}
+
+	/**
+	 * Indica se a conexão usa o cabeçalho largo, com id de conexão e número
+	 * de sequência de 32 bits
+	 */
+	boolean isWide() {
+		return hasExtension(Handshake.EXT_WIDE);
+	}
+
+	/**
+	 * Indica se a sequência pula o 0 ao dar a volta. Os participantes antigos
+	 * não negociam a extensão e passam pelo 0.
+	 */
+	boolean isSkipZero() {
+		return hasExtension(Handshake.EXT_SKIP_ZERO);
+	}
+
+	/**
+	 * Obtém um fluxo da conexão, criando-o se necessário.
+	 *
+	 * @return O fluxo ou null se o limite de fluxos foi atingido ou se a
+	 *         conexão está fechada
+	 */
+	LspStream stream(short streamId) {
+		ConcurrentMap<Short, LspStream> map = this.streams;
+		if (map == null) {
+			synchronized (this) {
+				map = this.streams;
+				if (map == null) {
+					map = new ConcurrentHashMap<>(4);
+					this.streams = map;
+				}
+			}
+		}
+
+		LspStream stream = map.get(streamId);
+		if (stream == null) {
+			synchronized (this) {
+				stream = map.get(streamId);
+				if (stream == null && map.size() < MAX_STREAMS && !this.closed) {
+					stream = new LspStream(this, streamId);
+					map.put(streamId, stream);
+				}
+			}
+		}
+
+		return stream;
+	}
+
+	/** Obtém um fluxo já criado ou null */
+	LspStream findStream(short streamId) {
+		final ConcurrentMap<Short, LspStream> map = this.streams;
+		return (map == null) ? null : map.get(streamId);
+	}
+
+	/** Fluxos já criados na conexão */
+	Collection<LspStream> streams() {
+		final ConcurrentMap<Short, LspStream> map = this.streams;
+		return (map == null) ? Collections.<LspStream> emptyList() : map.values();
+	}
+
 	/**
 	 * Aumenta em um o número de mensagens na fila, mas faltam enviar. Isso é
 	 * controlado externamente.
 	 */
 	void incSendMissing() {
-		this.sendMissing.incrementAndGet();
+		SEND_MISSING.incrementAndGet(this);
+	}
+
+	/**
+	 * Altera em delta o número de mensagens na fila, mas faltam enviar. Usado
+	 * no enfileiramento em lote.
+	 */
+	void addSendMissing(int delta) {
+		SEND_MISSING.addAndGet(this, delta);
 	}
 
 	/**
@@ -113,7 +276,7 @@ class LspConnection {
 	 * externamente.
 	 */
 	int getSendMissing() {
-		return this.sendMissing.intValue();
+		return this.sendMissing;
 	}
 
 	/** Obtém a última mensagem de dados enviada (aguardando ACK) */
@@ -122,47 +285,279 @@ class LspConnection {
 	}
 
 	/**
-	 * Informa o payload da última mensagem enviada
+	 * Informa o payload da última mensagem enviada, sem passar pela fila de
+	 * saída
 	 *
 	 * @return Pacote com um novo número de sequência ou null se já há um pacote
 	 *         aguardando ACK
 	 */
 	InternalPack sent(Pack pack) {
-		synchronized (lock) {
-			if (this.sentMessage == null) {
-				InternalPack p = new InternalPack(this, ++seqNum, pack.getPayload());
+		return sent(pack, 0);
+	}
+
+	/**
+	 * Informa o payload da última mensagem enviada
+	 *
+	 * @param queuedNanos
+	 *            Momento em que o pacote entrou na fila de saída ou 0 se não
+	 *            passou por ela
+	 * @return Pacote com um novo número de sequência ou null se já há um pacote
+	 *         aguardando ACK
+	 */
+	InternalPack sent(Pack pack, long queuedNanos) {
+		final InternalPack p;
+
+		// Pacotes de fluxos seguem a sequência do próprio fluxo
+		if (pack instanceof StreamPack) {
+			final LspStream stream = stream(((StreamPack) pack).getStreamId());
+			p = (stream == null) ? null : stream.sent(pack);
+		} else {
+			synchronized (this) {
+				if (this.sentMessage != null) {
+					return null;
+				}
+
+				seqNum = SeqNum.next(seqNum, isWide(), isSkipZero());
+				final int wire = SeqNum.wire(seqNum, isWide());
+				p = (pack instanceof BatchPack) ? InternalPack.batch(this, wire, (BatchPack) pack)
+						: newPack(wire, pack);
+				p.setJournaled(pack.journaled());
 				this.sentMessage = p;
-				return p;
 			}
 		}
 
-		return null;
+		if (p != null) {
+			this.traffic = true;
+
+			// Pacotes que não passaram pela fila de saída não têm o momento
+			// de entrada e contam como enfileirados no primeiro envio
+			p.setQueuedNanos((queuedNanos != 0) ? queuedNanos : p.getCreatedNanos());
+		}
+		return p;
+	}
+
+	/**
+	 * Cria o pacote de envio, comprimindo o payload se a compressão foi
+	 * negociada e se ela diminuir o payload
+	 */
+	private InternalPack newPack(int seqNum, Pack pack) {
+		final Compression comp = this.compression;
+		if (comp != null) {
+			final byte[] deflated = comp.deflate(pack.payloadView());
+			if (deflated != null) {
+				return new InternalPack(this, seqNum, deflated, LspSocket.DATA_DEFLATE);
+			}
+		}
+
+		return new InternalPack(this, seqNum, pack.payloadView());
 	}
 
-	/** Informa que o ACK do número de sequência informado foi recebido */
-	void ack(short seqNum) {
+	/**
+	 * Informa que o ACK do número de sequência informado foi recebido
+	 *
+	 * @param latency Latências do socket, onde o pacote reconhecido é
+	 *            registrado antes de deixar de faltar, ou null
+	 */
+	void ack(int seqNum, SendLatency latency) {
 		// Atualiza o momento de recebimento
 		received();
 
-		synchronized (lock) {
+		synchronized (this) {
 			// Marca dados como recebidos, se o número de sequência é igual ao atual
-			if (this.seqNum == seqNum) {
+			final InternalPack sent = this.sentMessage;
+			if (sent != null && sent.getSeqNum() == seqNum) {
 				this.sentMessage = null;
+				acked(sent, latency);
+
+				// Diminuição da quantidade de mensagens faltando entregar.
+				// ACKs repetidos e de manutenção não contam.
+				SEND_MISSING.addAndGet(this, -sent.getMessages());
+			}
+		}
+	}
+
+	/**
+	 * Informa que o ACK de uma mensagem de um fluxo foi recebido. A mensagem
+	 * só deixa de faltar se o ACK a reconhecer.
+	 *
+	 * @see #ack(int, SendLatency)
+	 */
+	void ackStream(short streamId, short seqNum, SendLatency latency) {
+		// Atualiza o momento de recebimento
+		received();
+
+		final LspStream stream = findStream(streamId);
+		if (stream == null) {
+			return;
+		}
+
+		final InternalPack sent = stream.sent();
+		if (stream.ack(seqNum)) {
+			if (sent != null) {
+				acked(sent, latency);
 			}
+			SEND_MISSING.decrementAndGet(this);
+		}
+	}
+
+	/**
+	 * Registra as latências de um pacote reconhecido pelo outro lado, mede o
+	 * RTT e marca as suas mensagens no diário. Um pacote reenviado não mede o
+	 * RTT, pois não se sabe a qual dos envios o ACK responde (algoritmo de
+	 * Karn).
+	 */
+	private void acked(InternalPack pack, SendLatency latency) {
+		final long now = System.nanoTime();
+		if (latency != null) {
+			latency.acked(pack.getQueuedNanos(), pack.getCreatedNanos(), now);
+		}
+		if (!pack.isRetransmitted()) {
+			sampleRtt(now - pack.getCreatedNanos());
+		}
+
+		final SendJournal journal = this.journal;
+		final long[] journaled = pack.journaled();
+		if (journal != null && journaled != null) {
+			journal.acked(journaled);
+		}
+	}
+
+	/**
+	 * Atualiza o RTT suavizado e, se a taxa é derivada dele, a taxa de envio:
+	 * {@link #PACING_GAIN} vezes o que a conexão pode ter aguardando ACK (um
+	 * pacote na sequência principal e um em cada fluxo) a cada RTT
+	 */
+	private void sampleRtt(long rtt) {
+		final Extras x = extras();
+		final long old = x.srttNanos;
+		final long srtt = Math.max(1, (old == 0) ? rtt : (7 * old + rtt) / 8);
+		x.srttNanos = srtt;
+		if (!rttPacing) {
+			return;
+		}
+
+		final long window = (1 + streams().size()) * (long) LspSocket.LEN_WIDE_PACKAGE;
+		final long rate = Math.max(1, PACING_GAIN * window * 1_000_000_000L / srtt);
+		final TokenBucket b = x.pacer;
+		if (b == null) {
+			x.pacer = new TokenBucket(rate, LspSocket.PACING_BURST, clock);
+		} else {
+			b.setRate(rate);
+		}
+	}
+
+	/** RTT suavizado em nanosegundos ou 0 se nada foi reconhecido */
+	long getSrttNanos() {
+		final Extras x = this.extras;
+		return (x == null) ? 0 : x.srttNanos;
+	}
+
+	/** Balde do espaçamento dos envios ou null se não há */
+	private TokenBucket pacer() {
+		final Extras x = this.extras;
+		return (x == null) ? null : x.pacer;
+	}
+
+	/**
+	 * Tempo, em nanosegundos, até que a conexão possa enviar os bytes
+	 * informados sem ultrapassar a sua taxa, ou 0 se já pode
+	 */
+	long pacingDelay(int bytes) {
+		final TokenBucket b = pacer();
+		return (b == null) ? 0 : b.delayNanos(bytes);
+	}
+
+	/** Informa os bytes enviados, que contam para a taxa da conexão */
+	void paced(int bytes) {
+		final TokenBucket b = pacer();
+		if (b != null) {
+			b.consume(bytes);
+		}
+	}
+
+	/** Informa que um pacote aguardando ACK foi reenviado */
+	void retransmitted(InternalPack pack) {
+		pack.setRetransmitted();
+		Extras.RETRANSMITS.incrementAndGet(extras());
+		LspEvents.sampled(LspEvent.Type.RETRANSMIT, id, pack.getSeqNum());
+	}
+
+	int getRetransmits() {
+		final Extras x = this.extras;
+		return (x == null) ? 0 : x.retransmits;
+	}
+
+	/**
+	 * Cópias de paridade a enviar com cada pacote de dados, 0 se o outro lado
+	 * não as reconhece
+	 */
+	int parityCopies() {
+		return hasExtension(Handshake.EXT_FEC) ? this.redundancy : 0;
+	}
+
+	/** Informa que uma cópia de paridade com o tamanho informado foi enviada */
+	void parityTransmitted(int bytes) {
+		Extras.PARITY_BYTES.addAndGet(extras(), bytes);
+	}
+
+	/** Informa que uma cópia de paridade substituiu um pacote perdido */
+	void recovered() {
+		Extras.RECOVERED.incrementAndGet(extras());
+	}
+
+	long getParityBytes() {
+		final Extras x = this.extras;
+		return (x == null) ? 0 : x.parityBytes;
+	}
+
+	int getRecovered() {
+		final Extras x = this.extras;
+		return (x == null) ? 0 : x.recovered;
+	}
+
+	/** Informa que o outro lado recusou a mensagem aguardando ACK */
+	void pressured() {
+		Extras.PRESSURED.incrementAndGet(extras());
+	}
 
-			// Diminuição da quantidade de mensagens faltando entregar.
-			this.sendMissing.decrementAndGet();
+	int getPressured() {
+		final Extras x = this.extras;
+		return (x == null) ? 0 : x.pressured;
+	}
+
+	private Extras extras() {
+		Extras x = this.extras;
+		if (x == null) {
+			synchronized (this) {
+				x = this.extras;
+				if (x == null) {
+					x = new Extras();
+					this.extras = x;
+				}
+			}
 		}
+
+		return x;
+	}
+
+	/**
+	 * Número de sequência, no formato do datagrama, da última mensagem DATA
+	 * recebida por essa conexão. Esse número é gerenciado externamente através
+	 * do método received(int). Se receber 0, quer dizer que não chegou nenhuma
+	 * mensagem depois do pedido de conexão.
+	 */
+	int receivedSeqNum() {
+		return SeqNum.wire(receivedSeqNum, isWide());
 	}
 
 	/**
-	 * Número de sequência da última mensagem DATA recebida por essa conexão.
-	 * Esse número é gerenciado externamente através do método received(short).
-	 * Se receber -1, quer dizer que não chegou nenhuma mensagem depois do
-	 * pedido de conexão.
+	 * Classifica o número de sequência de uma mensagem DATA recebida em
+	 * relação à última recebida
+	 *
+	 * @return {@link SeqNum#NEXT}, {@link SeqNum#OLD} ou {@link SeqNum#FUTURE}
 	 */
-	short receivedSeqNum() {
-		return receivedSeqNum;
+	int classify(int seqNum) {
+		return SeqNum.classify(receivedSeqNum, seqNum, isWide(), isSkipZero());
 	}
 
 	/**
@@ -170,18 +565,45 @@ class LspConnection {
 	 * tem como único propósito a atualização do momento de recebimento.
 	 */
 	void received() {
-		this.receivedTime = System.currentTimeMillis();
+		this.receivedTime = clock.millis();
 	}
 
 	/**
 	 * Informa o número de sequência em que uma mensagem DATA foi recebida. Esse
 	 * método atualiza o último momento de recebimento
 	 */
-	void received(short seqNum) {
+	void received(int seqNum) {
 		// Atualiza o momento de recebimento
 		received();
-		// Altera o número de sequência atual
-		this.receivedSeqNum = seqNum;
+		// Altera o número de sequência atual, estendido a partir do esperado
+		final boolean wide = isWide();
+		this.receivedSeqNum = SeqNum.extend(SeqNum.next(receivedSeqNum, wide, isSkipZero()), seqNum, wide);
+		this.traffic = true;
+	}
+
+	/**
+	 * Informa que uma mensagem de dados de um fluxo foi recebida. Atualiza o
+	 * momento de recebimento.
+	 */
+	void receivedStream() {
+		received();
+		this.traffic = true;
+	}
+
+	/**
+	 * Informa que um datagrama foi enviado ao outro lado da conexão, o que já
+	 * mostra que este lado está ativo
+	 */
+	void transmitted() {
+		this.transmitted = true;
+	}
+
+	/**
+	 * Indica se a época atual deve enviar o ACK de manutenção. Com a conexão
+	 * ociosa e o outro lado ativo, o ACK é enviado em intervalos crescentes.
+	 */
+	boolean isKeepAliveDue() {
+		return this.keepAliveDue;
 	}
 
 	boolean isInterrupted() {
@@ -198,8 +620,15 @@ class LspConnection {
 
 	void close(boolean interrupt) {
 		if (interrupt) {
-			this.statusThread.interrupt();
-			this.closed = true;
+			this.statusTask.cancel(false);
+			synchronized (this) {
+				this.closed = true;
+			}
+
+			// Acorda os leitores dos fluxos
+			for (LspStream stream : streams()) {
+				stream.close();
+			}
 		} else {
 			this.markClosed = true;
 		}
@@ -208,52 +637,145 @@ class LspConnection {
 	/**
 	 * Monitoramento da conexão LSP. Verifica se está ativa. Este processo é
 	 * feito através de callbacks definidos em uma instância de {@link ConnectionActions}.
+	 *
+	 * Executado a cada época pelas threads compartilhadas de monitoramento.
 	 */
 	private final class StatusChecker implements Runnable {
 		private final LspParams params;
 
+		/* Horário da última mensagem recebida em milisegundos */
+		private long lastTime;
+		private int limit;
+		private boolean done;
+
+		/*
+		 * Intervalo em épocas entre os ACKs de manutenção de uma conexão
+		 * ociosa e épocas desde o último datagrama enviado
+		 */
+		private int interval = 1;
+		private int quiet;
+
+		/*
+		 * Intervalo máximo. O outro lado encerra a conexão após epochLimit
+		 * épocas sem receber nada, então mesmo com a perda de um ACK de
+		 * manutenção o seguinte chega a tempo.
+		 */
+		private final int maxInterval;
+
 		private StatusChecker(LspParams params) {
 			this.params = params;
+			this.lastTime = receivedTime;
+			this.limit = params.getEpochLimit();
+			this.maxInterval = Math.max(1, (params.getEpochLimit() - 1) / 2);
 		}
 
 		@Override
 		public void run() {
-			// Obtém o horário da última mensagem recebida em milisegundos
-			long lastTime = receivedTime;
+			if (done) {
+				return;
+			}
+			if (closed) {
+				finish();
+				return;
+			}
 
-			// Obtém parâmetros da conexão
-			int limit = params.getEpochLimit();
-			final int epoch = params.getEpoch();
+			// Dispara as ações da época
+			limit--;
+			keepAliveDue = keepAlive();
+			triggers.doEpochActions();
+			transmitted = false;
+
+			// Reinicia contagem de épocas se houve mensagens recebidas
+			// desde a última época
+			final long time = receivedTime;
+			if (time != lastTime) {
+				lastTime = time;
+				limit = params.getEpochLimit();
+			}
 
 			// Monitora a conexão continuamente até que o limite de épocas seja
-			// atingido ou a conexão seja fechada
-			while (!closed && limit-- > 0) {
-				// ..ou quando a conexão está no estado de encerramento, até que
-				// não haja mais mensagens para enviar.
-				if (markClosed && sendMissing.get() <= 0) {
-					break;
+			// atingido ou a conexão seja fechada, ou quando a conexão está no
+			// estado de encerramento, até que não haja mais mensagens para
+			// enviar.
+			if (closed) {
+				finish();
+			} else if (limit <= 0 || (markClosed && sendMissing <= 0)) {
+				finish();
+				if (limit <= 0) {
+					LspEvents.epochTimeout(id);
 				}
 
-				try {
-					Thread.sleep(epoch);
-				} catch (InterruptedException e) {
-					return;
-				}
+				// Encerra formalmente a conexão
+				triggers.doCloseConnection();
+			}
+		}
 
-				// Dispara as ações da época
-				triggers.doEpochActions();
+		/**
+		 * Decide se esta época envia o ACK de manutenção. Enquanto o outro
+		 * lado não deu sinal de vida ou há dados em trânsito, o ACK segue a
+		 * cada época, exceto se outro datagrama já foi enviado na época. Com
+		 * a conexão ociosa, o intervalo dobra a cada ACK até o máximo.
+		 */
+		private boolean keepAlive() {
+			final boolean sentSomething = transmitted;
+			transmitted = false;
+
+			if (receivedTime == -1) {
+				return true;
+			}
 
-				// Reinicia contagem de épocas se houve mensagens recebidas
-				// desde a última época
-				final long time = receivedTime;
-				if (time != lastTime) {
-					lastTime = time;
-					limit = params.getEpochLimit();
-				}
+			if (traffic || sendMissing > 0) {
+				traffic = false;
+				interval = 1;
+				quiet = 0;
+				return !sentSomething;
 			}
 
-			// Encerra formalmente a conexão
-			triggers.doCloseConnection();
+			if (sentSomething) {
+				quiet = 0;
+				return false;
+			}
+
+			if (++quiet < interval) {
+				return false;
+			}
+
+			quiet = 0;
+			interval = Math.min(interval * 2, maxInterval);
+			return true;
+		}
+
+		private void finish() {
+			done = true;
+
+			// Pode executar antes do fim do construtor se a época for curta
+			final ScheduledFuture<?> task = statusTask;
+			if (task != null) {
+				task.cancel(false);
+			}
 		}
 	}
+
+	/**
+	 * Estado pouco usado de uma conexão: os contadores de envio e de
+	 * paridade, o RTT suavizado e o balde do espaçamento dos envios. Uma
+	 * conexão ociosa não o tem.
+	 */
+	private static final class Extras {
+		volatile int retransmits;
+		volatile long parityBytes;
+		volatile int recovered;
+		volatile int pressured;
+		volatile long srttNanos;
+		volatile TokenBucket pacer;
+
+		static final AtomicIntegerFieldUpdater<Extras> RETRANSMITS =
+				AtomicIntegerFieldUpdater.newUpdater(Extras.class, "retransmits");
+		static final AtomicLongFieldUpdater<Extras> PARITY_BYTES =
+				AtomicLongFieldUpdater.newUpdater(Extras.class, "parityBytes");
+		static final AtomicIntegerFieldUpdater<Extras> RECOVERED =
+				AtomicIntegerFieldUpdater.newUpdater(Extras.class, "recovered");
+		static final AtomicIntegerFieldUpdater<Extras> PRESSURED =
+				AtomicIntegerFieldUpdater.newUpdater(Extras.class, "pressured");
+	}
 }
@@ -0,0 +1,59 @@
+package lsp;
+
+/**
+ * Evento da atividade do protocolo, entregue ao {@link LspEventListener}
+ * registrado em {@link LspEvents}.
+ *
+ * @author Wagner Macedo
+ */
+public final class LspEvent {
+	public enum Type {
+		/** Conexão estabelecida */
+		CONNECTION_OPENED,
+		/** Conexão encerrada */
+		CONNECTION_CLOSED,
+		/** Conexão encerrada por ficar epochLimit épocas sem receber nada */
+		EPOCH_TIMEOUT,
+		/** Pacote reenviado por falta de ACK */
+		RETRANSMIT,
+		/** Mensagem recebida descartada porque a fila de entrada estava cheia */
+		INPUT_DROPPED,
+		/** Mensagem recusada porque a fila de saída estava cheia */
+		OUTPUT_DROPPED
+	}
+
+	private final Type type;
+	private final int connId;
+	private final int seqNum;
+	private final long nanos;
+
+	LspEvent(Type type, int connId, int seqNum) {
+		this.type = type;
+		this.connId = connId;
+		this.seqNum = seqNum;
+		this.nanos = System.nanoTime();
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public int getConnectionId() {
+		return connId;
+	}
+
+	/** Número de sequência do pacote ou 0 se o evento não é de um pacote */
+	public int getSeqNum() {
+		return seqNum;
+	}
+
+	/** Momento do evento, conforme {@link System#nanoTime()} */
+	public long getNanos() {
+		return nanos;
+	}
+
+	@Override
+	public String toString() {
+		return type + " conexão=" + connId + (seqNum != 0 ? " seq=" + seqNum : "");
+	}
+}
@@ -0,0 +1,12 @@
+package lsp;
+
+/**
+ * Receptor dos eventos do protocolo. É chamado pelas threads do protocolo,
+ * então deve retornar rapidamente, por exemplo, repassando o evento a um
+ * gravador de perfil como o Java Flight Recorder.
+ *
+ * @author Wagner Macedo
+ */
+public interface LspEventListener {
+	void onEvent(LspEvent event);
+}
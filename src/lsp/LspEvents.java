@@ -0,0 +1,90 @@
+package lsp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lsp.LspEvent.Type;
+
+/**
+ * Registro do receptor de eventos do protocolo, compartilhado por todos os
+ * clientes e servidores da JVM. Sem receptor, cada ponto de evento custa
+ * somente a leitura de um campo.
+ *
+ * Os eventos de abertura, encerramento e fim de épocas são sempre entregues.
+ * Os reenvios e descartes, que podem ser muito frequentes sob carga, são
+ * amostrados: somente um a cada N é entregue.
+ *
+ * @author Wagner Macedo
+ */
+public final class LspEvents {
+	private static volatile LspEventListener listener;
+	private static volatile int sampling = 1;
+	private static final AtomicInteger sampleCounter = new AtomicInteger();
+
+	// Classe utilitária, nunca instanciável
+	private LspEvents() {
+	}
+
+	/** Registra o receptor de eventos, entregando todos os eventos */
+	public static void setListener(LspEventListener listener) {
+		setListener(listener, 1);
+	}
+
+	/**
+	 * Registra o receptor de eventos
+	 *
+	 * @param listener
+	 *            Receptor ou null para desabilitar os eventos
+	 * @param sampling
+	 *            Entrega um a cada sampling reenvios e descartes
+	 */
+	public static void setListener(LspEventListener listener, int sampling) {
+		if (sampling <= 0)
+			throw new IllegalArgumentException("Amostragem deve ser positiva");
+
+		LspEvents.sampling = sampling;
+		LspEvents.listener = listener;
+	}
+
+	public static boolean isEnabled() {
+		return listener != null;
+	}
+
+	static void opened(int connId) {
+		if (listener != null) {
+			fire(new LspEvent(Type.CONNECTION_OPENED, connId, 0));
+		}
+	}
+
+	static void closed(int connId) {
+		if (listener != null) {
+			fire(new LspEvent(Type.CONNECTION_CLOSED, connId, 0));
+		}
+	}
+
+	static void epochTimeout(int connId) {
+		if (listener != null) {
+			fire(new LspEvent(Type.EPOCH_TIMEOUT, connId, 0));
+		}
+	}
+
+	/** Evento amostrado de um pacote */
+	static void sampled(Type type, int connId, int seqNum) {
+		if (listener != null && (sampleCounter.getAndIncrement() & Integer.MAX_VALUE) % sampling == 0) {
+			fire(new LspEvent(type, connId, seqNum));
+		}
+	}
+
+	private static void fire(LspEvent event) {
+		final LspEventListener l = listener;
+		if (l == null) {
+			return;
+		}
+
+		// Uma falha do receptor não pode interromper o protocolo
+		try {
+			l.onEvent(event);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+}
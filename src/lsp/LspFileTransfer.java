@@ -0,0 +1,251 @@
+package lsp;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Transferência de arquivos por um fluxo de uma conexão LSP. O arquivo é lido
+ * e escrito por meio de regiões mapeadas em memória, sem passar por buffers
+ * intermediários da aplicação: cada trecho enviado é uma visão da região
+ * mapeada, sem cabeçalho, e sua posição é a soma dos trechos anteriores.
+ *
+ * O recebedor registra o progresso em um arquivo auxiliar (nome do arquivo
+ * com o sufixo {@value #PART_SUFFIX}). Se a transferência for interrompida,
+ * uma nova transferência do mesmo arquivo continua a partir do último trecho
+ * confirmado.
+ *
+ * @author Wagner Macedo
+ */
+public final class LspFileTransfer {
+	/** Sufixo do arquivo auxiliar com o progresso do recebimento */
+	public static final String PART_SUFFIX = ".lsp-part";
+
+	/* Tipos de mensagem da transferência */
+	private static final byte OFFER = 'O';
+	private static final byte RESUME = 'R';
+	private static final byte END = 'E';
+	private static final byte DONE = 'D';
+
+	/** Cabeçalho das mensagens de controle: tipo e posição (ou tamanho) */
+	private static final int LEN_HEADER = 9;
+
+	/**
+	 * Tamanho dos trechos do arquivo enviados em cada mensagem. Somente o
+	 * último trecho pode ser menor.
+	 */
+	static final int LEN_CHUNK = LspSocket.LEN_STREAM_PAYLOAD;
+
+	/** Tamanho das regiões mapeadas, múltiplo do tamanho dos trechos */
+	private static final long MAP_WINDOW = (long) LEN_CHUNK * 65536;
+
+	/** Intervalo, em bytes, entre os registros de progresso do recebedor */
+	private static final long CHECKPOINT = (long) LEN_CHUNK * 1024;
+
+	private final StreamEndpoint endpoint;
+	private final short streamId;
+
+	/**
+	 * Transferência pelo fluxo informado da conexão de um cliente
+	 */
+	public LspFileTransfer(LspClient client, short streamId) {
+		this(StreamEndpoint.of(client), streamId);
+	}
+
+	/**
+	 * Transferência pelo fluxo informado de uma conexão do servidor
+	 */
+	public LspFileTransfer(LspServer server, int connId, short streamId) {
+		this(StreamEndpoint.of(server, connId), streamId);
+	}
+
+	private LspFileTransfer(StreamEndpoint endpoint, short streamId) {
+		this.endpoint = endpoint;
+		this.streamId = streamId;
+	}
+
+	/**
+	 * Envia um arquivo. Bloqueia até que o outro lado confirme o recebimento
+	 * completo, que é feito por {@link #receiveFile(Path)}.
+	 *
+	 * @return Quantidade de bytes do arquivo enviados, que é menor que o
+	 *         tamanho do arquivo quando a transferência é retomada
+	 * @throws IOException
+	 *             se houver erro de leitura, de protocolo ou se a conexão for
+	 *             encerrada
+	 */
+	public long sendFile(Path file) throws IOException {
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			final long size = ch.size();
+			write(message(OFFER, size, 0));
+
+			// O recebedor informa a partir de onde deve continuar
+			final ByteBuffer reply = read(RESUME);
+			final long start = reply.getLong();
+			if (start < 0 || start > size || (start % LEN_CHUNK != 0 && start != size)) {
+				throw new IOException("Posição de retomada inválida: " + start);
+			}
+
+			long pos = start;
+			while (pos < size) {
+				final long len = Math.min(MAP_WINDOW - pos % MAP_WINDOW, size - pos);
+				final MappedByteBuffer map = ch.map(MapMode.READ_ONLY, pos, len);
+
+				// Cada trecho é enviado como uma visão da região mapeada
+				while (map.hasRemaining()) {
+					final int chunk = Math.min(LEN_CHUNK, map.remaining());
+					final ByteBuffer data = map.slice();
+					data.limit(chunk);
+					write(data);
+					map.position(map.position() + chunk);
+					pos += chunk;
+				}
+			}
+
+			write(message(END, size, 0));
+			if (read(DONE).getLong() != size) {
+				throw new IOException("Recebimento incompleto");
+			}
+
+			return size - start;
+		}
+	}
+
+	/**
+	 * Recebe um arquivo enviado por {@link #sendFile(Path)}. Se houver um
+	 * recebimento anterior interrompido do mesmo arquivo, continua a partir do
+	 * último trecho registrado.
+	 *
+	 * @return O tamanho do arquivo
+	 * @throws IOException
+	 *             se houver erro de escrita, de protocolo ou se a conexão for
+	 *             encerrada
+	 */
+	public long receiveFile(Path file) throws IOException {
+		final long size = read(OFFER).getLong();
+		final Path part = file.resolveSibling(file.getFileName() + PART_SUFFIX);
+
+		try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw");
+				RandomAccessFile progress = new RandomAccessFile(part.toFile(), "rw")) {
+			long pos = loadProgress(progress, size);
+			if (pos == 0 || raf.length() != size) {
+				pos = 0;
+				raf.setLength(size);
+			}
+			saveProgress(progress, size, pos);
+			write(message(RESUME, pos, 0));
+
+			final FileChannel ch = raf.getChannel();
+			MappedByteBuffer map = null;
+			long mapStart = -1;
+			long checkpoint = pos + CHECKPOINT;
+
+			// Os trechos chegam em ordem, até completar o arquivo
+			while (pos < size) {
+				final byte[] msg = endpoint.read(streamId);
+				if (msg == null) {
+					throw new IOException("Conexão encerrada");
+				}
+				if (msg.length != Math.min(LEN_CHUNK, size - pos)) {
+					throw new IOException("Mensagem inesperada na transferência");
+				}
+
+				// Mapeia a região que contém o trecho, se ainda não mapeada
+				final long windowStart = pos - pos % MAP_WINDOW;
+				if (windowStart != mapStart) {
+					if (map != null) {
+						map.force();
+					}
+					map = ch.map(MapMode.READ_WRITE, windowStart, Math.min(MAP_WINDOW, size - windowStart));
+					mapStart = windowStart;
+				}
+
+				map.position((int) (pos - windowStart));
+				map.put(msg);
+				pos += msg.length;
+
+				// Registra o progresso de tempos em tempos
+				if (pos >= checkpoint) {
+					map.force();
+					saveProgress(progress, size, pos);
+					checkpoint = pos + CHECKPOINT;
+				}
+			}
+
+			if (read(END).getLong() != size) {
+				throw new IOException("Recebimento incompleto");
+			}
+			if (map != null) {
+				map.force();
+			}
+		}
+
+		Files.delete(part);
+		write(message(DONE, size, 0));
+		return size;
+	}
+
+	/**
+	 * Lê o progresso registrado. Devolve 0 se não há registro ou se ele é de
+	 * um arquivo de outro tamanho.
+	 */
+	private static long loadProgress(RandomAccessFile progress, long size) throws IOException {
+		if (progress.length() < 16) {
+			return 0;
+		}
+
+		progress.seek(0);
+		if (progress.readLong() != size) {
+			return 0;
+		}
+
+		final long pos = progress.readLong();
+		return (pos >= 0 && pos <= size) ? pos : 0;
+	}
+
+	private static void saveProgress(RandomAccessFile progress, long size, long pos) throws IOException {
+		progress.seek(0);
+		progress.writeLong(size);
+		progress.writeLong(pos);
+	}
+
+	/** Cria uma mensagem com o cabeçalho preenchido e espaço para os dados */
+	private static byte[] message(byte type, long value, int dataLength) {
+		final byte[] msg = new byte[LEN_HEADER + dataLength];
+		ByteBuffer.wrap(msg).put(type).putLong(value);
+		return msg;
+	}
+
+	private void write(byte[] msg) throws IOException {
+		write(ByteBuffer.wrap(msg));
+	}
+
+	private void write(ByteBuffer msg) throws IOException {
+		try {
+			endpoint.write(streamId, msg);
+		} catch (ClosedConnectionException e) {
+			throw new IOException("Conexão encerrada", e);
+		}
+	}
+
+	/** Recebe uma mensagem do tipo esperado, posicionada após o tipo */
+	private ByteBuffer read(byte expected) throws IOException {
+		final byte[] msg = endpoint.read(streamId);
+		if (msg == null) {
+			throw new IOException("Conexão encerrada");
+		}
+
+		final ByteBuffer buf = ByteBuffer.wrap(msg);
+		if (msg.length < LEN_HEADER || buf.get() != expected) {
+			throw new IOException("Mensagem inesperada na transferência");
+		}
+
+		return buf;
+	}
+}
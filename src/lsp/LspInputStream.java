@@ -0,0 +1,138 @@
+package lsp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Fluxo de entrada sobre um fluxo de uma conexão LSP, também utilizável como
+ * canal. Os bytes são lidos diretamente das mensagens recebidas, sem vetores
+ * intermediários. Os dados terminam na mensagem vazia enviada pelo
+ * fechamento de {@link LspOutputStream} ou no encerramento da conexão.
+ *
+ * @author Wagner Macedo
+ */
+public final class LspInputStream extends InputStream implements ReadableByteChannel {
+	/** Mensagem que marca o fim dos dados */
+	static final byte[] END_MARK = new byte[0];
+
+	private final StreamEndpoint endpoint;
+	private final short streamId;
+
+	/* Mensagem em leitura e posição nela */
+	private byte[] msg = END_MARK;
+	private int pos;
+	private boolean eof;
+	private boolean closed;
+
+	/**
+	 * Fluxo de entrada pelo fluxo informado da conexão de um cliente
+	 */
+	public LspInputStream(LspClient client, short streamId) {
+		this(StreamEndpoint.of(client), streamId);
+	}
+
+	/**
+	 * Fluxo de entrada pelo fluxo informado de uma conexão do servidor
+	 */
+	public LspInputStream(LspServer server, int connId, short streamId) {
+		this(StreamEndpoint.of(server, connId), streamId);
+	}
+
+	private LspInputStream(StreamEndpoint endpoint, short streamId) {
+		this.endpoint = endpoint;
+		this.streamId = streamId;
+	}
+
+	@Override
+	public int read() throws IOException {
+		ensureOpen();
+		return fill() ? msg[pos++] & 0xff : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		if ((off | len) < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+
+		final int n = Math.min(len, msg.length - pos);
+		System.arraycopy(msg, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+		if (!dst.hasRemaining()) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+
+		final int n = Math.min(dst.remaining(), msg.length - pos);
+		dst.put(msg, pos, n);
+		pos += n;
+		return n;
+	}
+
+	/** Bytes restantes da mensagem em leitura, lidos sem bloquear */
+	@Override
+	public int available() throws IOException {
+		ensureOpen();
+		return msg.length - pos;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	/** Fecha somente este fluxo de entrada, e não a conexão */
+	@Override
+	public void close() {
+		closed = true;
+	}
+
+	/**
+	 * Garante uma mensagem com bytes por ler, bloqueando até que chegue
+	 *
+	 * @return false no fim dos dados
+	 */
+	private boolean fill() {
+		while (pos == msg.length) {
+			if (eof) {
+				return false;
+			}
+
+			final byte[] next = endpoint.read(streamId);
+			if (next == null || next.length == 0) {
+				eof = true;
+				return false;
+			}
+			msg = next;
+			pos = 0;
+		}
+
+		return true;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Fluxo fechado");
+		}
+	}
+}
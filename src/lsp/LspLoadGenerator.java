@@ -0,0 +1,369 @@
+package lsp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gerador de carga para dimensionar servidores LSP. Abre várias conexões
+ * simultâneas com {@link LspClient} e envia mensagens em uma taxa e tamanho
+ * configuráveis a um servidor que as devolve, como o iniciado por
+ * {@link #echoServer(int, LspParams)}. Ao final, informa os percentis das
+ * latências de ida e volta e do envio até o ACK, a vazão e os reenvios.
+ *
+ * Uso: java lsp.LspLoadGenerator &lt;host|-&gt; &lt;porta&gt; [conexões]
+ * [mensagens/s por conexão] [tamanho] [segundos]
+ *
+ * Com host "-", um servidor de eco é iniciado na mesma JVM.
+ *
+ * @author Wagner Macedo
+ */
+public final class LspLoadGenerator {
+	/**
+	 * Tamanho mínimo das mensagens, que levam o instante previsto do envio.
+	 * A ida e volta é medida a partir desse instante, e não do envio efetivo,
+	 * para que um escritor atrasado não esconda a espera das mensagens que
+	 * deveriam ter saído antes (omissão coordenada).
+	 */
+	public static final int MIN_SIZE = 8;
+
+	private final String host;
+	private final int port;
+
+	/* Configuração, alterada somente em cópias (métodos with*) */
+	private int connections = 1;
+	private int rate = 100;
+	private int size = 64;
+	private long durationMillis = 10_000;
+	private LspParams params = LspParams.defaultParams();
+
+	public LspLoadGenerator(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	/** Constrói uma cópia do gerador informado */
+	private LspLoadGenerator(LspLoadGenerator other) {
+		this(other.host, other.port);
+		this.connections = other.connections;
+		this.rate = other.rate;
+		this.size = other.size;
+		this.durationMillis = other.durationMillis;
+		this.params = other.params;
+	}
+
+	/** Cópia deste gerador com a quantidade de conexões simultâneas */
+	public LspLoadGenerator withConnections(int connections) {
+		if (connections <= 0)
+			throw new IllegalArgumentException("Quantidade de conexões deve ser positiva");
+
+		LspLoadGenerator g = new LspLoadGenerator(this);
+		g.connections = connections;
+		return g;
+	}
+
+	/** Cópia deste gerador com a taxa de mensagens por segundo de cada conexão */
+	public LspLoadGenerator withRate(int perSecond) {
+		if (perSecond <= 0)
+			throw new IllegalArgumentException("Taxa deve ser positiva");
+
+		LspLoadGenerator g = new LspLoadGenerator(this);
+		g.rate = perSecond;
+		return g;
+	}
+
+	/** Cópia deste gerador com o tamanho das mensagens em bytes */
+	public LspLoadGenerator withSize(int size) {
+		if (size < MIN_SIZE || size > LspClient.LEN_PAYLOAD)
+			throw new IllegalArgumentException("Tamanho deve estar entre " + MIN_SIZE + " e "
+					+ LspClient.LEN_PAYLOAD);
+
+		LspLoadGenerator g = new LspLoadGenerator(this);
+		g.size = size;
+		return g;
+	}
+
+	/** Cópia deste gerador com a duração do envio */
+	public LspLoadGenerator withDuration(long time, TimeUnit unit) {
+		LspLoadGenerator g = new LspLoadGenerator(this);
+		g.durationMillis = unit.toMillis(time);
+		return g;
+	}
+
+	/** Cópia deste gerador com os parâmetros das conexões */
+	public LspLoadGenerator withParams(LspParams params) {
+		LspLoadGenerator g = new LspLoadGenerator(this);
+		g.params = params;
+		return g;
+	}
+
+	/**
+	 * Executa a carga. Bloqueia até o fim do envio e da espera pelas
+	 * respostas, que dura no máximo uma época.
+	 *
+	 * @throws TimeoutException
+	 *             se alguma conexão não puder ser estabelecida
+	 */
+	public Report run() throws IOException, TimeoutException, InterruptedException {
+		final List<LspClient> clients = new ArrayList<>(connections);
+		final LatencyHistogram roundTrip = new LatencyHistogram();
+		final AtomicLong sent = new AtomicLong();
+		final AtomicLong dropped = new AtomicLong();
+		final AtomicLong received = new AtomicLong();
+
+		final ScheduledExecutorService exec = Executors.newScheduledThreadPool(
+				Math.min(connections, Runtime.getRuntime().availableProcessors()), DAEMON);
+		final List<Thread> readers = new ArrayList<>(connections);
+
+		try {
+			for (int i = 0; i < connections; i++) {
+				clients.add(new LspClient(host, port, params));
+			}
+
+			// Leitores: registram a ida e volta de cada mensagem devolvida
+			for (final LspClient client : clients) {
+				final Thread reader = DAEMON.newThread(new Runnable() {
+					@Override
+					public void run() {
+						byte[] payload;
+						while ((payload = client.read()) != null) {
+							if (payload.length >= MIN_SIZE) {
+								roundTrip.record(System.nanoTime() - ByteBuffer.wrap(payload).getLong());
+								received.incrementAndGet();
+							}
+						}
+					}
+				});
+				reader.start();
+				readers.add(reader);
+			}
+
+			// Escritores: cada conexão envia na taxa configurada. Mensagens
+			// que não cabem na fila de saída ou cuja escrita falha são
+			// descartadas e contadas; uma exceção não pode escapar, pois
+			// cancelaria o agendamento sem aviso.
+			final long start = System.nanoTime();
+			final long period = Math.max(1, TimeUnit.SECONDS.toNanos(1) / rate);
+			for (final LspClient client : clients) {
+				exec.scheduleAtFixedRate(new Runnable() {
+					/* Mensagens já previstas, pois as execuções não se sobrepõem */
+					private long count;
+
+					@Override
+					public void run() {
+						final byte[] payload = new byte[size];
+						ByteBuffer.wrap(payload).putLong(start + count++ * period);
+						try {
+							if (client.write(Collections.singletonList(payload), 0, TimeUnit.MILLISECONDS) == 1) {
+								sent.incrementAndGet();
+								return;
+							}
+						} catch (RuntimeException e) {
+						}
+						dropped.incrementAndGet();
+					}
+				}, 0, period, TimeUnit.NANOSECONDS);
+			}
+
+			Thread.sleep(durationMillis);
+			exec.shutdown();
+			exec.awaitTermination(params.getEpoch(), TimeUnit.MILLISECONDS);
+			final long elapsed = System.nanoTime() - start;
+
+			// Aguarda as últimas respostas e os últimos ACKs por no máximo
+			// uma época. Uma resposta pode chegar antes do ACK da mensagem,
+			// se o ACK se perdeu e a mensagem aguarda o reenvio.
+			final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(params.getEpoch());
+			while ((received.get() < sent.get() || hasSendMissing(clients)) && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+
+			final LatencyHistogram ackLatency = new LatencyHistogram();
+			long retransmits = 0;
+			for (LspClient client : clients) {
+				final ConnectionStats stats = client.getStats();
+				ackLatency.add(stats.getAckLatency());
+				retransmits += stats.getRetransmits();
+			}
+
+			return new Report(connections, sent.get(), received.get(), dropped.get(), retransmits,
+					elapsed, roundTrip, ackLatency);
+		} finally {
+			exec.shutdownNow();
+			for (LspClient client : clients) {
+				try {
+					client.close();
+				} catch (ClosedConnectionException e) {
+				}
+			}
+			for (Thread reader : readers) {
+				reader.join(params.getEpoch());
+			}
+		}
+	}
+
+	/** Indica se algum cliente ainda tem mensagens aguardando ACK */
+	private static boolean hasSendMissing(List<LspClient> clients) {
+		for (LspClient client : clients) {
+			if (client.getSendMissing() > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Inicia um servidor que devolve a cada conexão as mensagens recebidas
+	 * dela. O servidor é encerrado com {@link LspServer#closeAll()}.
+	 */
+	public static LspServer echoServer(int port, LspParams params) throws IOException {
+		final LspServer server = new LspServer(port, params);
+
+		DAEMON.newThread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					final Pack pack;
+					try {
+						pack = server.read();
+					} catch (ClosedConnectionException e) {
+						return;
+					}
+					if (pack == null) {
+						return;
+					}
+
+					try {
+						server.write(Collections.singletonList(pack));
+					} catch (ClosedConnectionException e) {
+						// A conexão foi encerrada, a mensagem é descartada
+					}
+				}
+			}
+		}).start();
+
+		return server;
+	}
+
+	private static final ThreadFactory DAEMON = new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			final Thread t = new Thread(r, "lsp-load");
+			t.setDaemon(true);
+			return t;
+		}
+	};
+
+	/** Resultado de uma execução do gerador de carga */
+	public static final class Report {
+		private final int connections;
+		private final long sent;
+		private final long received;
+		private final long dropped;
+		private final long retransmits;
+		private final long elapsedNanos;
+		private final LatencyHistogram roundTrip;
+		private final LatencyHistogram ackLatency;
+
+		Report(int connections, long sent, long received, long dropped, long retransmits,
+				long elapsedNanos, LatencyHistogram roundTrip, LatencyHistogram ackLatency) {
+			this.connections = connections;
+			this.sent = sent;
+			this.received = received;
+			this.dropped = dropped;
+			this.retransmits = retransmits;
+			this.elapsedNanos = elapsedNanos;
+			this.roundTrip = roundTrip;
+			this.ackLatency = ackLatency;
+		}
+
+		/** Mensagens aceitas pela fila de saída */
+		public long getSent() {
+			return sent;
+		}
+
+		/** Mensagens devolvidas pelo servidor */
+		public long getReceived() {
+			return received;
+		}
+
+		/**
+		 * Mensagens descartadas porque a fila de saída estava cheia ou a
+		 * escrita falhou, por exemplo com a conexão perdida
+		 */
+		public long getDropped() {
+			return dropped;
+		}
+
+		/** Pacotes reenviados pelos clientes por falta de ACK */
+		public long getRetransmits() {
+			return retransmits;
+		}
+
+		/** Mensagens devolvidas por segundo */
+		public double getThroughput() {
+			return received * 1e9 / elapsedNanos;
+		}
+
+		/** Latências de ida e volta, do envio até a mensagem devolvida */
+		public LatencyHistogram getRoundTrip() {
+			return roundTrip;
+		}
+
+		/** Latências do primeiro envio de um pacote até o seu ACK */
+		public LatencyHistogram getAckLatency() {
+			return ackLatency;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("conexões: %d%nenviadas: %d, devolvidas: %d, descartadas: %d, reenvios: %d%n"
+					+ "vazão: %.1f msg/s%nida e volta: %s%naté o ACK:   %s", connections, sent, received,
+					dropped, retransmits, getThroughput(), roundTrip, ackLatency);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Uso: java lsp.LspLoadGenerator <host|-> <porta> [conexões] "
+					+ "[mensagens/s por conexão] [tamanho] [segundos]");
+			System.exit(1);
+		}
+
+		LspServer server = null;
+		String host = args[0];
+		int port = Integer.parseInt(args[1]);
+		if (host.equals("-")) {
+			server = echoServer(port, null);
+			host = "localhost";
+			port = server.getPort();
+		}
+
+		LspLoadGenerator gen = new LspLoadGenerator(host, port);
+		if (args.length > 2) {
+			gen = gen.withConnections(Integer.parseInt(args[2]));
+		}
+		if (args.length > 3) {
+			gen = gen.withRate(Integer.parseInt(args[3]));
+		}
+		if (args.length > 4) {
+			gen = gen.withSize(Integer.parseInt(args[4]));
+		}
+		if (args.length > 5) {
+			gen = gen.withDuration(Long.parseLong(args[5]), TimeUnit.SECONDS);
+		}
+
+		System.out.println(gen.run());
+		if (server != null) {
+			server.closeAll();
+		}
+	}
+}
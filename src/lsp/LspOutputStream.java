@@ -0,0 +1,141 @@
+package lsp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Fluxo de saída sobre um fluxo de uma conexão LSP, também utilizável como
+ * canal. Os bytes escritos são acumulados e enviados em mensagens cheias, de
+ * {@link LspSocket#LEN_STREAM_PAYLOAD} bytes; o vetor de cada mensagem cheia
+ * segue para a fila de saída sem cópia. Somente {@link #flush()} envia uma
+ * mensagem menor.
+ *
+ * O fechamento envia uma mensagem vazia, lida como fim dos dados por
+ * {@link LspInputStream}, mas não encerra a conexão.
+ *
+ * @author Wagner Macedo
+ */
+public final class LspOutputStream extends OutputStream implements WritableByteChannel {
+	private final StreamEndpoint endpoint;
+	private final short streamId;
+
+	private byte[] buf = new byte[LspSocket.LEN_STREAM_PAYLOAD];
+	private int count;
+	private boolean closed;
+
+	/**
+	 * Fluxo de saída pelo fluxo informado da conexão de um cliente
+	 */
+	public LspOutputStream(LspClient client, short streamId) {
+		this(StreamEndpoint.of(client), streamId);
+	}
+
+	/**
+	 * Fluxo de saída pelo fluxo informado de uma conexão do servidor
+	 */
+	public LspOutputStream(LspServer server, int connId, short streamId) {
+		this(StreamEndpoint.of(server, connId), streamId);
+	}
+
+	private LspOutputStream(StreamEndpoint endpoint, short streamId) {
+		this.endpoint = endpoint;
+		this.streamId = streamId;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureOpen();
+		buf[count++] = (byte) b;
+		if (count == buf.length) {
+			sendFull();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		if ((off | len) < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		while (len > 0) {
+			final int n = Math.min(len, buf.length - count);
+			System.arraycopy(b, off, buf, count, n);
+			count += n;
+			off += n;
+			len -= n;
+			if (count == buf.length) {
+				sendFull();
+			}
+		}
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+
+		final int total = src.remaining();
+		while (src.hasRemaining()) {
+			final int n = Math.min(src.remaining(), buf.length - count);
+			src.get(buf, count, n);
+			count += n;
+			if (count == buf.length) {
+				sendFull();
+			}
+		}
+
+		return total;
+	}
+
+	/** Envia os bytes acumulados, se houver, em uma mensagem menor */
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		if (count > 0) {
+			send(Arrays.copyOf(buf, count));
+			count = 0;
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	/** Envia os bytes acumulados e a marca de fim dos dados */
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			flush();
+			closed = true;
+			send(LspInputStream.END_MARK);
+		}
+	}
+
+	/** A mensagem cheia leva o próprio vetor, e um novo passa a acumular */
+	private void sendFull() throws IOException {
+		send(buf);
+		buf = new byte[LspSocket.LEN_STREAM_PAYLOAD];
+		count = 0;
+	}
+
+	private void send(byte[] msg) throws IOException {
+		try {
+			endpoint.write(streamId, msg);
+		} catch (ClosedConnectionException e) {
+			throw new IOException("Conexão encerrada", e);
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Fluxo fechado");
+		}
+	}
+}
@@ -1,14 +1,65 @@
 package lsp;
 
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
 public class LspParams {
+	/** Máximo de cópias de paridade por pacote */
+	public static final int MAX_REDUNDANCY = 4;
+
+	/** Taxa de envio de cada conexão derivada do RTT observado */
+	public static final long RATE_FROM_RTT = -1;
+
 	private final int epoch;
 	private final int epochLimit;
 
+	/* Extensões opcionais, alteradas somente em cópias (métodos with*) */
+	private boolean compression;
+	private byte[] dictionary;
+	private boolean connectCookies;
+	private int connectRate;
+	private long coalescingNanos = -1;
+	private int redundancy;
+	private int inputQueueBytes;
+	private int outputQueueBytes;
+	private ByteBudget byteBudget;
+	private Path journalFile;
+	private int journalCapacity;
+	private int journalSyncBytes;
+	private long pacingRate;
+	private long socketPacingRate;
+	private boolean wideHeader;
+
+	/* Relógio das épocas, substituído somente nos testes */
+	private Clock clock = Clock.SYSTEM;
+
 	public LspParams(int epoch, int epochLimit) {
 		this.epoch = epoch;
 		this.epochLimit = epochLimit;
 	}
 
+	/** Constrói uma cópia dos parâmetros informados */
+	private LspParams(LspParams other) {
+		this(other.epoch, other.epochLimit);
+		this.compression = other.compression;
+		this.dictionary = other.dictionary;
+		this.connectCookies = other.connectCookies;
+		this.connectRate = other.connectRate;
+		this.coalescingNanos = other.coalescingNanos;
+		this.redundancy = other.redundancy;
+		this.inputQueueBytes = other.inputQueueBytes;
+		this.outputQueueBytes = other.outputQueueBytes;
+		this.byteBudget = other.byteBudget;
+		this.journalFile = other.journalFile;
+		this.journalCapacity = other.journalCapacity;
+		this.journalSyncBytes = other.journalSyncBytes;
+		this.pacingRate = other.pacingRate;
+		this.socketPacingRate = other.socketPacingRate;
+		this.wideHeader = other.wideHeader;
+		this.clock = other.clock;
+	}
+
 	public int getEpoch() {
 		return epoch;
 	}
@@ -17,6 +68,312 @@ public class LspParams {
 		return epochLimit;
 	}
 
+	/**
+	 * Devolve uma cópia destes parâmetros com a compressão de payload
+	 * habilitada. A compressão só é usada nas conexões em que os dois lados a
+	 * habilitam, o que é negociado durante o pedido de conexão.
+	 *
+	 * @param dictionary
+	 *            Dicionário inicial do deflate ou null. Só é usado se o outro
+	 *            lado informar o mesmo dicionário.
+	 */
+	public LspParams withCompression(byte[] dictionary) {
+		LspParams p = new LspParams(this);
+		p.compression = true;
+		p.dictionary = (dictionary == null) ? null : Arrays.copyOf(dictionary, dictionary.length);
+		return p;
+	}
+
+	public boolean isCompression() {
+		return compression;
+	}
+
+	byte[] getDictionary() {
+		return dictionary;
+	}
+
+	/**
+	 * Devolve uma cópia destes parâmetros em que o servidor exige um cookie
+	 * no pedido de conexão. O servidor responde ao primeiro pedido de um
+	 * endereço com um cookie, sem guardar estado, e só abre a conexão quando
+	 * o pedido é repetido com o cookie. Clientes que não conhecem os cookies
+	 * não conseguem se conectar. Usado somente pelo servidor.
+	 */
+	public LspParams withConnectCookies() {
+		LspParams p = new LspParams(this);
+		p.connectCookies = true;
+		return p;
+	}
+
+	public boolean isConnectCookies() {
+		return connectCookies;
+	}
+
+	/**
+	 * Devolve uma cópia destes parâmetros limitando a quantidade de novas
+	 * conexões aceitas por segundo. Os pedidos excedentes são descartados e
+	 * o cliente os repete na época seguinte. Usado somente pelo servidor.
+	 *
+	 * @param perSecond
+	 *            Conexões por segundo ou 0 para não limitar
+	 */
+	public LspParams withConnectRate(int perSecond) {
+		if (perSecond < 0)
+			throw new IllegalArgumentException("Taxa não pode ser negativa");
+
+		LspParams p = new LspParams(this);
+		p.connectRate = perSecond;
+		return p;
+	}
+
+	/** Novas conexões aceitas por segundo ou 0 se não há limite */
+	public int getConnectRate() {
+		return connectRate;
+	}
+
+	/**
+	 * Devolve uma cópia destes parâmetros em que as mensagens pequenas de uma
+	 * conexão são agrupadas em um só pacote de até {@link LspSocket#LEN_PAYLOAD}
+	 * bytes. Enquanto a conexão aguarda um ACK, as mensagens se acumulam na
+	 * fila e seguem juntas no envio seguinte. O agrupamento só é usado nas
+	 * conexões em que o outro lado sabe separar as mensagens.
+	 *
+	 * @param flushDelay
+	 *            Tempo máximo que uma mensagem aguarda por outras antes de
+	 *            ser enviada sozinha. Com 0, só agrupa as que já estão na fila.
+	 */
+	public LspParams withCoalescing(long flushDelay, TimeUnit unit) {
+		if (flushDelay < 0)
+			throw new IllegalArgumentException("Tempo de espera não pode ser negativo");
+
+		LspParams p = new LspParams(this);
+		p.coalescingNanos = unit.toNanos(flushDelay);
+		return p;
+	}
+
+	public boolean isCoalescing() {
+		return coalescingNanos >= 0;
+	}
+
+	/** Tempo máximo de espera de uma mensagem por outras, em nanosegundos */
+	long getCoalescingNanos() {
+		return coalescingNanos;
+	}
+
+	/**
+	 * Devolve uma cópia destes parâmetros em que cada pacote de dados é
+	 * seguido de cópias de paridade. Se o pacote se perder, uma cópia que
+	 * chegue é aceita no lugar dele, sem esperar o reenvio da época seguinte.
+	 * Só é usado nas conexões em que o outro lado reconhece as cópias.
+	 *
+	 * As cópias repetem o pacote inteiro, e não são paridade XOR de um grupo
+	 * de pacotes: cada uma custa o mesmo que o original e só cobre a perda
+	 * dele. Os pacotes de fluxos não recebem cópias.
+	 *
+	 * @param redundancy
+	 *            Cópias enviadas por pacote, de 0 (desabilitado) a
+	 *            {@link #MAX_REDUNDANCY}. Cada cópia acrescenta o tamanho do
+	 *            pacote ao tráfego de envio.
+	 */
+	public LspParams withRedundancy(int redundancy) {
+		if (redundancy < 0 || redundancy > MAX_REDUNDANCY)
+			throw new IllegalArgumentException("Redundância deve estar entre 0 e " + MAX_REDUNDANCY);
+
+		LspParams p = new LspParams(this);
+		p.redundancy = redundancy;
+		return p;
+	}
+
+	/** Cópias de paridade enviadas por pacote de dados */
+	public int getRedundancy() {
+		return redundancy;
+	}
+
+	/**
+	 * Devolve uma cópia destes parâmetros em que o cliente solicita o
+	 * cabeçalho largo, com id de conexão e número de sequência de 32 bits. O
+	 * cabeçalho largo acrescenta 4 bytes a cada datagrama, mas permite a
+	 * conexão a um servidor que já esgotou os ids de 16 bits. Usado somente
+	 * pelo cliente; o servidor aceita o cabeçalho largo de quem o solicita.
+	 */
+	public LspParams withWideHeader() {
+		LspParams p = new LspParams(this);
+		p.wideHeader = true;
+		return p;
+	}
+
+	public boolean isWideHeader() {
+		return wideHeader;
+	}
+
+	/**
+	 * Devolve uma cópia destes parâmetros em que as filas do socket são
+	 * limitadas em bytes, e não pela quantidade de pacotes. Com a fila de
+	 * saída cheia, quem escreve aguarda até haver espaço. Com a fila de entrada
+	 * cheia, a mensagem recebida é recusada e o remetente é avisado para
+	 * reenviá-la quando houver espaço.
+	 *
+	 * @param inputBytes
+	 *            Bytes da fila de entrada, ou 0 para limitar a
+	 *            {@link LspSocket#QUEUE_ZISE} pacotes
+	 * @param outputBytes
+	 *            Bytes da fila de saída, ou 0 para limitar a
+	 *            {@link LspSocket#QUEUE_ZISE} pacotes
+	 */
+	public LspParams withQueueLimits(int inputBytes, int outputBytes) {
+		if (!isQueueLimit(inputBytes) || !isQueueLimit(outputBytes))
+			throw new IllegalArgumentException("Limite deve ser 0 ou comportar ao menos um pacote");
+
+		LspParams p = new LspParams(this);
+		p.inputQueueBytes = inputBytes;
+		p.outputQueueBytes = outputBytes;
+		return p;
+	}
+
+	private static boolean isQueueLimit(int bytes) {
+		return bytes == 0 || bytes >= LspSocket.LEN_WIDE_PACKAGE;
+	}
+
+	/** Bytes da fila de entrada ou 0 se ela é limitada em pacotes */
+	public int getInputQueueBytes() {
+		return inputQueueBytes;
+	}
+
+	/** Bytes da fila de saída ou 0 se ela é limitada em pacotes */
+	public int getOutputQueueBytes() {
+		return outputQueueBytes;
+	}
+
+	/**
+	 * Devolve uma cópia destes parâmetros em que as filas de entrada e saída
+	 * também ocupam o orçamento informado, que pode ser compartilhado com
+	 * outros servidores e clientes do processo. Assim como nos limites de
+	 * {@link #withQueueLimits(int, int)}, a escrita aguarda espaço no orçamento
+	 * e a mensagem recebida sem espaço é recusada.
+	 *
+	 * @param budget
+	 *            Orçamento compartilhado ou null para não usar
+	 */
+	public LspParams withByteBudget(ByteBudget budget) {
+		LspParams p = new LspParams(this);
+		p.byteBudget = budget;
+		return p;
+	}
+
+	public ByteBudget getByteBudget() {
+		return byteBudget;
+	}
+
+	/**
+	 * Devolve uma cópia destes parâmetros em que as mensagens do cliente são
+	 * registradas em um diário em disco até serem reconhecidas. A escrita só
+	 * retorna depois de a mensagem estar gravada, a menos que as gravações
+	 * sejam agrupadas com {@link #withJournalSync(int)}; as gravações de
+	 * escritas simultâneas são feitas juntas. Se o diário já existir, as mensagens que
+	 * ficaram sem ACK na execução anterior são reenviadas logo após a conexão,
+	 * antes das novas. Usado somente pelo cliente, fora de grupos.
+	 *
+	 * @param file
+	 *            Arquivo do diário, que não deve ser usado por dois clientes
+	 *            ao mesmo tempo
+	 * @param capacity
+	 *            Tamanho em bytes do diário, usado somente se ele não existir.
+	 *            Com o diário cheio, a escrita aguarda os ACKs.
+	 */
+	public LspParams withJournal(Path file, int capacity) {
+		if (capacity < LspSocket.LEN_WIDE_PACKAGE)
+			throw new IllegalArgumentException("O diário precisa comportar ao menos um pacote");
+
+		LspParams p = new LspParams(this);
+		p.journalFile = file;
+		p.journalCapacity = capacity;
+		return p;
+	}
+
+	/** Arquivo do diário de envio ou null se não há diário */
+	public Path getJournalFile() {
+		return journalFile;
+	}
+
+	int getJournalCapacity() {
+		return journalCapacity;
+	}
+
+	/**
+	 * Devolve uma cópia destes parâmetros em que as escritas do cliente só
+	 * aguardam a gravação do diário quando as mensagens ainda não gravadas
+	 * somam ao menos os bytes informados. As demais retornam logo depois do
+	 * registro, e uma queda do processo pode perdê-las; o chamador marca os
+	 * pontos em que precisa delas gravadas com {@link LspClient#flush()}. O
+	 * encerramento do cliente sempre grava o diário.
+	 *
+	 * @param bytes
+	 *            Bytes acumulados por gravação, ou 0 para gravar a cada
+	 *            escrita
+	 */
+	public LspParams withJournalSync(int bytes) {
+		if (bytes < 0)
+			throw new IllegalArgumentException("Limite de gravação não pode ser negativo");
+
+		LspParams p = new LspParams(this);
+		p.journalSyncBytes = bytes;
+		return p;
+	}
+
+	/** Bytes acumulados por gravação do diário, 0 se grava a cada escrita */
+	public int getJournalSyncBytes() {
+		return journalSyncBytes;
+	}
+
+	/**
+	 * Devolve uma cópia destes parâmetros em que os envios de dados são
+	 * espaçados para não ultrapassar as taxas informadas, em vez de saírem em
+	 * rajadas que transbordam os buffers do caminho. Um pacote que ainda não
+	 * pode sair aguarda na fila sem atrasar os de outras conexões. ACKs e
+	 * retransmissões não aguardam, mas contam para a taxa.
+	 *
+	 * @param connectionRate
+	 *            Bytes por segundo de cada conexão, 0 para não limitar ou
+	 *            {@link #RATE_FROM_RTT} para enviar, a cada RTT, o dobro do
+	 *            que a conexão pode ter aguardando ACK
+	 * @param socketRate
+	 *            Bytes por segundo de todas as conexões do socket, ou 0 para
+	 *            não limitar
+	 */
+	public LspParams withPacing(long connectionRate, long socketRate) {
+		if ((connectionRate < 0 && connectionRate != RATE_FROM_RTT) || socketRate < 0)
+			throw new IllegalArgumentException("Taxa não pode ser negativa");
+
+		LspParams p = new LspParams(this);
+		p.pacingRate = connectionRate;
+		p.socketPacingRate = socketRate;
+		return p;
+	}
+
+	/**
+	 * Bytes por segundo de cada conexão, 0 se não há limite ou
+	 * {@link #RATE_FROM_RTT}
+	 */
+	public long getPacingRate() {
+		return pacingRate;
+	}
+
+	/** Bytes por segundo de todas as conexões do socket ou 0 se não há limite */
+	public long getSocketPacingRate() {
+		return socketPacingRate;
+	}
+
+	/** Devolve uma cópia destes parâmetros com o relógio informado */
+	LspParams withClock(Clock clock) {
+		LspParams p = new LspParams(this);
+		p.clock = clock;
+		return p;
+	}
+
+	Clock getClock() {
+		return clock;
+	}
+
 	private static final LspParams DEFAULT_PARAMS = new LspParams(2000, 5);
 
 	static final LspParams defaultParams() {
@@ -0,0 +1,200 @@
+package lsp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reprodução de uma captura gravada por {@link LspServer#startCapture(Path, int)}.
+ * Os datagramas recebidos pelo servidor capturado são enviados a outro
+ * servidor no ritmo original ou acelerado. Cada endereço remoto da captura é
+ * reproduzido por um socket próprio, de modo que o servidor veja uma conexão
+ * para cada cliente original. Os ids de conexão são reescritos com os ids
+ * atribuídos pelo servidor na reprodução.
+ *
+ * Uso: java lsp.LspReplay &lt;captura&gt; &lt;host&gt; &lt;porta&gt; [aceleração]
+ *
+ * @author Wagner Macedo
+ */
+public final class LspReplay {
+	private final List<CaptureFile.Record> records = new ArrayList<>();
+
+	/* Clientes simulados, um por endereço remoto da captura */
+	private final Map<SocketAddress, Peer> peers = new HashMap<>();
+	private final ByteBuffer recvBuf = ByteBuffer.allocate(LspSocket.LEN_WIDE_PACKAGE);
+	private Selector selector;
+
+	/**
+	 * Carrega os datagramas recebidos de uma captura
+	 *
+	 * @throws IOException
+	 *             se o arquivo não for uma captura válida
+	 */
+	public LspReplay(Path capture) throws IOException {
+		for (CaptureFile.Record r : CaptureFile.read(capture)) {
+			if (r.direction == CaptureFile.IN) {
+				records.add(r);
+			}
+		}
+	}
+
+	/** Quantidade de datagramas a reproduzir */
+	public int size() {
+		return records.size();
+	}
+
+	/**
+	 * Reproduz a captura
+	 *
+	 * @param target
+	 *            Endereço do servidor
+	 * @param speed
+	 *            Fator de aceleração: 1 reproduz no ritmo original, 2 duas
+	 *            vezes mais rápido e 0 sem pausas
+	 * @return Quantidade de datagramas enviados
+	 */
+	public long replay(SocketAddress target, double speed) throws IOException {
+		selector = Selector.open();
+		long sent = 0;
+		try {
+			final long start = System.nanoTime();
+			final long first = records.isEmpty() ? 0 : records.get(0).nanos;
+
+			for (CaptureFile.Record r : records) {
+				// Aguarda o momento do datagrama, processando as respostas
+				if (speed > 0) {
+					final long due = start + (long) ((r.nanos - first) / speed);
+					long wait;
+					while ((wait = due - System.nanoTime()) > 0) {
+						drain(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+					}
+				}
+				drain(0);
+
+				final Peer peer = peer(r.sockAddr);
+				final ByteBuffer data = ByteBuffer.wrap(r.data.clone());
+				if (data.getShort(0) == LspSocket.CONNECT) {
+					peer.connId = 0;
+				} else if (peer.connId != 0 && isWide(data) && data.limit() >= LspSocket.LEN_WIDE_HEADER) {
+					data.putInt(2, peer.connId);
+				} else if (peer.connId != 0 && data.limit() >= LspSocket.LEN_HEADER) {
+					data.putShort(2, (short) peer.connId);
+				}
+
+				peer.channel.send(data, target);
+				sent++;
+			}
+
+			// Processa as últimas respostas
+			drain(100);
+		} finally {
+			for (Peer peer : peers.values()) {
+				peer.channel.close();
+			}
+			peers.clear();
+			selector.close();
+		}
+
+		return sent;
+	}
+
+	private Peer peer(SocketAddress sockAddr) throws IOException {
+		Peer peer = peers.get(sockAddr);
+		if (peer == null) {
+			final DatagramChannel ch = DatagramChannel.open();
+			ch.bind(null);
+			ch.configureBlocking(false);
+			peer = new Peer(ch);
+			ch.register(selector, SelectionKey.OP_READ, peer);
+			peers.put(sockAddr, peer);
+		}
+
+		return peer;
+	}
+
+	/**
+	 * Processa as respostas do servidor, aguardando no máximo o tempo
+	 * informado. Os ACKs de conexão informam os novos ids de conexão.
+	 */
+	private void drain(long millis) throws IOException {
+		final int n = (millis > 0) ? selector.select(millis) : selector.selectNow();
+		if (n == 0) {
+			return;
+		}
+
+		final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+		while (it.hasNext()) {
+			final SelectionKey key = it.next();
+			it.remove();
+
+			final Peer peer = (Peer) key.attachment();
+			recvBuf.clear();
+			while (peer.channel.receive(recvBuf) != null) {
+				recvBuf.flip();
+				if (peer.connId == 0) {
+					peer.connId = connectionAck(recvBuf);
+				}
+				recvBuf.clear();
+			}
+		}
+	}
+
+	private static boolean isWide(ByteBuffer data) {
+		return data.limit() >= 2 && (data.getShort(0) & LspSocket.WIDE) != 0;
+	}
+
+	/**
+	 * Id de conexão informado por um ACK de conexão, em qualquer formato de
+	 * cabeçalho, ou 0 se o datagrama não é um ACK de conexão
+	 */
+	private static int connectionAck(ByteBuffer data) {
+		if (isWide(data)) {
+			if (data.limit() >= LspSocket.LEN_WIDE_HEADER
+					&& data.getShort(0) == (LspSocket.ACK | LspSocket.WIDE) && data.getInt(6) == 0) {
+				return data.getInt(2);
+			}
+		} else if (data.limit() >= LspSocket.LEN_HEADER && data.getShort(0) == LspSocket.ACK
+				&& data.getShort(4) == 0) {
+			return data.getShort(2);
+		}
+
+		return 0;
+	}
+
+	private static final class Peer {
+		final DatagramChannel channel;
+		int connId;
+
+		Peer(DatagramChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3) {
+			System.err.println("Uso: java lsp.LspReplay <captura> <host> <porta> [aceleração]");
+			System.exit(1);
+		}
+
+		final LspReplay replay = new LspReplay(Paths.get(args[0]));
+		final SocketAddress target = new InetSocketAddress(args[1], Integer.parseInt(args[2]));
+		final double speed = (args.length > 3) ? Double.parseDouble(args[3]) : 1;
+
+		final long start = System.nanoTime();
+		final long sent = replay.replay(target, speed);
+		final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		System.out.println(sent + " datagramas reproduzidos em " + millis + " ms");
+	}
+}
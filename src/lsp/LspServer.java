@@ -1,10 +1,23 @@
 package lsp;
 
 import java.io.IOException;
+import java.net.DatagramPacket;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -13,8 +26,8 @@ import java.util.concurrent.atomic.AtomicInteger;
  * @author Wagner Macedo
  */
 public class LspServer {
-	/** Pool de conexões inicialmente com capacidade para 16 conexões */
-	private final ConcurrentMap<Short, LspConnection> connectionPool = new ConcurrentHashMap<>(16);
+	/** Pool de conexões indexado pelo id da conexão */
+	private final ConnectionTable connectionPool = ConnectionTable.byId();
 
 	/**
 	 * Pool de conexões rastreáveis pelo id do socket. Essa estrutura ajuda a
@@ -22,26 +35,58 @@ public class LspServer {
 	 *
 	 * @see LspConnection.uniqueSockId
 	 */
-	private final ConcurrentMap<Long, LspConnection> connectedSockets = new ConcurrentHashMap<>(16);
+	private final ConnectionTable connectedSockets = ConnectionTable.bySockId();
+
+	/** Assinantes de cada tópico, identificados pelo id da conexão */
+	private final ConcurrentMap<String, Set<Integer>> topics = new ConcurrentHashMap<>();
+
+	/** Quantidade mínima de destinatários por tarefa de difusão */
+	private static final int FANOUT_BATCH = 256;
+
+	/* Threads de difusão, criadas somente quando necessárias */
+	private volatile ExecutorService fanOutExec;
+	private final Object fanOutLock = new Object();
 
 	// Variáveis de controle do servidor
 	private final AtomicInteger idCounter = new AtomicInteger();
+
+	/*
+	 * Quando os ids de 16 bits se esgotam, as conexões de cabeçalho largo
+	 * recebem ids após essa faixa
+	 */
+	private final AtomicInteger wideIdCounter = new AtomicInteger(FIRST_WIDE_ID - 1);
+	private static final int FIRST_WIDE_ID = 0x10000;
+
+	/* Quantidade de conexões com id de 16 bits, controlada em idCounter */
+	private int narrowIds;
+
 	private volatile boolean active = true;
 	private volatile boolean markClosed;
 
 	/* Parâmetros do servidor */
 	private final LspParams params;
 
+	/* Proteção do pedido de conexão, conforme os parâmetros */
+	private final ConnectCookies cookies;
+	private final TokenBucket admission;
+
 	/* Socket LSP */
 	private final LspSocket lspSocket;
 	private final int port;
 
 	public static final short LEN_PAYLOAD = LspSocket.LEN_PAYLOAD;
+	public static final short LEN_STREAM_PAYLOAD = LspSocket.LEN_STREAM_PAYLOAD;
 
 	public LspServer(int port, LspParams params) throws IOException {
-		this.lspSocket = new LspSocketImpl(port);
-		this.port = this.lspSocket.getPort();
 		this.params = params == null ? LspParams.defaultParams() : params;
+		this.cookies = this.params.isConnectCookies() ? new ConnectCookies(this.params.getClock()) : null;
+
+		final int rate = this.params.getConnectRate();
+		this.admission = (rate > 0) ? new TokenBucket(rate, rate, this.params.getClock()) : null;
+
+		this.lspSocket = new LspSocketImpl(port, this.params);
+		this.lspSocket.setCoalescing(this.params.getCoalescingNanos());
+		this.port = this.lspSocket.getPort();
 	}
 
 	/**
@@ -59,6 +104,52 @@ public class LspServer {
 		return lspSocket.receive();
 	}
 
+	/**
+	 * Lê em lote os dados da fila de entrada do servidor. Bloqueia o chamador
+	 * até que haja ao menos um pacote recebido e então preenche o vetor, a
+	 * partir da posição 0, com os pacotes já disponíveis.
+	 *
+	 * @return Quantidade de pacotes lidos ou 0 se o servidor foi encerrado
+	 * @throws ClosedConnectionException
+	 *             se o servidor não estiver ativo
+	 */
+	public int read(Pack[] dst) {
+		checkActive();
+
+		final List<Pack> packs = new ArrayList<>(dst.length);
+		final int count = lspSocket.receive(packs, dst.length);
+		for (int i = 0; i < count; i++) {
+			dst[i] = packs.get(i);
+		}
+
+		return count;
+	}
+
+	/**
+	 * Transfere para a coleção todos os pacotes disponíveis na fila de
+	 * entrada, até o limite informado. Bloqueia o chamador até que haja ao
+	 * menos um pacote recebido.
+	 *
+	 * @return Quantidade de pacotes transferidos ou 0 se o servidor foi
+	 *         encerrado
+	 * @throws ClosedConnectionException
+	 *             se o servidor não estiver ativo
+	 */
+	public int drainTo(Collection<? super Pack> dst, int maxPacks) {
+		checkActive();
+		return lspSocket.receive(dst, maxPacks);
+	}
+
+	/**
+	 * Transfere para a coleção todos os pacotes disponíveis na fila de
+	 * entrada. Bloqueia o chamador até que haja ao menos um pacote recebido.
+	 *
+	 * @see #drainTo(Collection, int)
+	 */
+	public int drainTo(Collection<? super Pack> dst) {
+		return drainTo(dst, Integer.MAX_VALUE);
+	}
+
 	/**
 	 * Envia dados para um determinado cliente.
 	 *
@@ -66,17 +157,352 @@ public class LspServer {
 	 *             se a conexão estiver encerrada
 	 */
 	public void write(Pack pack) {
+		write(pack, Priority.NORMAL);
+	}
+
+	/**
+	 * Envia dados para um determinado cliente com a prioridade informada. A
+	 * mensagem é enviada antes das mensagens de menor prioridade já
+	 * enfileiradas.
+	 *
+	 * @throws ClosedConnectionException
+	 *             se a conexão estiver encerrada
+	 */
+	public void write(Pack pack, Priority priority) {
 		checkActive();
 
-		final LspConnection conn = connectionPool.get(pack.getConnId());
+		final LspConnection conn = connectionPool.get(pack.getConnectionId());
 		if (conn == null || conn.isClosed()) {
-			throw new ClosedConnectionException(pack.getConnId());
+			throw new ClosedConnectionException(pack.getConnectionId());
 		}
 
-		lspSocket.send(pack);
+		lspSocket.send(pack, priority);
 		conn.incSendMissing();
 	}
 
+	/**
+	 * Envia em lote dados para um ou mais clientes. Os pacotes são
+	 * enfileirados de forma contígua e, se a fila de saída estiver cheia, o
+	 * chamador é bloqueado até haver espaço.
+	 *
+	 * @return Quantidade de pacotes aceitos, sempre os primeiros do lote
+	 * @throws ClosedConnectionException
+	 *             se alguma das conexões estiver encerrada
+	 */
+	public int write(Collection<? extends Pack> packs) {
+		return write(packs, -1, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Envia em lote dados para um ou mais clientes. Os pacotes são
+	 * enfileirados de forma contígua e, se a fila de saída estiver cheia,
+	 * aguarda até haver espaço ou até o tempo limite se esgotar.
+	 *
+	 * @return Quantidade de pacotes aceitos, sempre os primeiros do lote
+	 * @throws ClosedConnectionException
+	 *             se alguma das conexões estiver encerrada
+	 */
+	public int write(Collection<? extends Pack> packs, long timeout, TimeUnit unit) {
+		return write(packs, Priority.NORMAL, timeout, unit);
+	}
+
+	/**
+	 * Envia em lote dados para um ou mais clientes com a prioridade informada.
+	 *
+	 * @see #write(Collection, long, TimeUnit)
+	 */
+	public int write(Collection<? extends Pack> packs, Priority priority, long timeout, TimeUnit unit) {
+		checkActive();
+
+		// Obtém as conexões dos pacotes, aproveitando a última pesquisa já
+		// que os lotes costumam ser destinados a uma mesma conexão
+		final LspConnection[] conns = new LspConnection[packs.size()];
+		LspConnection conn = null;
+		int i = 0;
+		for (Pack pack : packs) {
+			if (conn == null || conn.getId() != pack.getConnectionId()) {
+				conn = connectionPool.get(pack.getConnectionId());
+				if (conn == null || conn.isClosed()) {
+					throw new ClosedConnectionException(pack.getConnectionId());
+				}
+			}
+			conns[i++] = conn;
+		}
+
+		// As mensagens são contabilizadas antes do enfileiramento, e as
+		// recusadas descontadas depois, para que a conexão não seja encerrada
+		// com mensagens pendentes. Um lote rejeitado com exceção é descontado
+		// por inteiro.
+		for (LspConnection c : conns) {
+			c.incSendMissing();
+		}
+		int accepted = 0;
+		try {
+			accepted = lspSocket.send(packs, priority, timeout, unit);
+		} finally {
+			for (i = accepted; i < conns.length; i++) {
+				conns[i].addSendMissing(-1);
+			}
+		}
+
+		return accepted;
+	}
+
+	/**
+	 * Envia em lote dados para um determinado cliente. O conteúdo restante de
+	 * cada buffer forma uma mensagem, que segue até o datagrama sem cópia e
+	 * por isso não deve ser alterada até ser reconhecida. Se a fila de saída
+	 * estiver cheia, o chamador é bloqueado até haver espaço.
+	 *
+	 * @return Quantidade de mensagens aceitas. A posição dos buffers aceitos é
+	 *         avançada até o limite
+	 * @throws ClosedConnectionException
+	 *             se a conexão estiver encerrada
+	 */
+	public int write(int connId, ByteBuffer... payloads) {
+		return write(connId, -1, TimeUnit.MILLISECONDS, payloads);
+	}
+
+	/**
+	 * Envia em lote dados para um determinado cliente, aguardando no máximo o
+	 * tempo limite se a fila de saída estiver cheia.
+	 *
+	 * @see #write(int, ByteBuffer...)
+	 */
+	public int write(int connId, long timeout, TimeUnit unit, ByteBuffer... payloads) {
+		final List<Pack> packs = new ArrayList<>(payloads.length);
+		for (ByteBuffer buf : payloads) {
+			packs.add(new Pack(connId, buf));
+		}
+
+		final int accepted = write(packs, timeout, unit);
+		for (int i = 0; i < accepted; i++) {
+			payloads[i].position(payloads[i].limit());
+		}
+
+		return accepted;
+	}
+
+	/**
+	 * Lê uma mensagem de um fluxo de uma conexão. Se não houver mensagens,
+	 * bloqueia o chamador até que uma mensagem seja recebida pelo fluxo.
+	 *
+	 * @param streamId
+	 *            Fluxo da conexão, de 1 a {@link Short#MAX_VALUE}
+	 * @return A mensagem ou null se a conexão for encerrada
+	 * @throws ClosedConnectionException
+	 *             se a conexão estiver encerrada
+	 */
+	public byte[] read(int connId, short streamId) {
+		return stream(connId, streamId).receive();
+	}
+
+	/**
+	 * Envia dados por um fluxo de uma conexão. Os fluxos de uma conexão têm
+	 * sequências independentes: a perda de um pacote de um fluxo não atrasa
+	 * os demais. Um fluxo é criado no primeiro uso por qualquer dos lados.
+	 *
+	 * @param streamId
+	 *            Fluxo da conexão, de 1 a {@link Short#MAX_VALUE}
+	 * @throws ClosedConnectionException
+	 *             se a conexão estiver encerrada
+	 * @throws IllegalStateException
+	 *             se o cliente não suporta fluxos ou se a fila de saída estiver
+	 *             cheia
+	 */
+	public void write(int connId, short streamId, byte[] payload) {
+		final LspConnection conn = stream(connId, streamId).getConnection();
+		lspSocket.send(new StreamPack(connId, streamId, payload));
+		conn.incSendMissing();
+	}
+
+	/**
+	 * Envia dados por um fluxo de uma conexão, aguardando no máximo o tempo
+	 * limite se a fila de saída estiver cheia. Com tempo limite negativo,
+	 * aguarda até haver espaço.
+	 *
+	 * @return false se o tempo limite se esgotou ou o servidor foi encerrado
+	 * @throws ClosedConnectionException
+	 *             se a conexão estiver encerrada
+	 * @see #write(int, short, byte[])
+	 */
+	public boolean write(int connId, short streamId, byte[] payload, long timeout, TimeUnit unit) {
+		return write(connId, streamId, ByteBuffer.wrap(payload), timeout, unit);
+	}
+
+	/**
+	 * Envia o trecho restante do buffer por um fluxo de uma conexão, sem
+	 * cópia. O trecho não deve ser alterado até a mensagem ser reconhecida.
+	 *
+	 * @see #write(int, short, byte[], long, TimeUnit)
+	 */
+	boolean write(int connId, short streamId, ByteBuffer payload, long timeout, TimeUnit unit) {
+		final LspConnection conn = stream(connId, streamId).getConnection();
+
+		conn.incSendMissing();
+		final Pack pack = new StreamPack(connId, streamId, payload);
+		boolean accepted = false;
+		try {
+			accepted = lspSocket.send(Collections.singletonList(pack), timeout, unit) == 1;
+		} finally {
+			if (!accepted) {
+				conn.addSendMissing(-1);
+			}
+		}
+		return accepted;
+	}
+
+	private LspStream stream(int connId, short streamId) {
+		checkActive();
+
+		final LspConnection conn = connectionPool.get(connId);
+		if (conn == null || conn.isClosed()) {
+			throw new ClosedConnectionException(connId);
+		}
+
+		return LspStream.of(conn, streamId);
+	}
+
+	/**
+	 * Inscreve uma conexão em um tópico. As mensagens publicadas no tópico por
+	 * {@link #publish(String, byte[])} serão enviadas a essa conexão.
+	 *
+	 * @throws ClosedConnectionException
+	 *             se a conexão estiver encerrada
+	 */
+	public void subscribe(int connId, String topic) {
+		checkActive();
+
+		final LspConnection conn = connectionPool.get(connId);
+		if (conn == null || conn.isClosed()) {
+			throw new ClosedConnectionException(connId);
+		}
+
+		Set<Integer> subscribers = topics.get(topic);
+		if (subscribers == null) {
+			final Set<Integer> newSet = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+			subscribers = topics.putIfAbsent(topic, newSet);
+			if (subscribers == null) {
+				subscribers = newSet;
+			}
+		}
+		subscribers.add(connId);
+	}
+
+	/**
+	 * Cancela a inscrição de uma conexão em um tópico.
+	 */
+	public void unsubscribe(int connId, String topic) {
+		final Set<Integer> subscribers = topics.get(topic);
+		if (subscribers != null) {
+			subscribers.remove(connId);
+		}
+	}
+
+	/**
+	 * Envia a mesma mensagem a todas as conexões inscritas no tópico. O
+	 * payload é codificado uma única vez e somente os campos de cabeçalho são
+	 * escritos para cada destinatário. Com muitos destinatários, a difusão é
+	 * dividida entre os processadores disponíveis. Se a fila de saída não
+	 * tiver espaço durante as épocas em que uma conexão é dada como perdida,
+	 * a mensagem é descartada para os destinatários restantes.
+	 *
+	 * @return Quantidade de conexões destinatárias
+	 * @throws ClosedConnectionException
+	 *             se o servidor não estiver ativo
+	 */
+	public int publish(String topic, byte[] payload) {
+		checkActive();
+
+		final Set<Integer> subscribers = topics.get(topic);
+		if (subscribers == null) {
+			return 0;
+		}
+
+		final List<LspConnection> conns = new ArrayList<>(subscribers.size());
+		for (Integer connId : subscribers) {
+			final LspConnection conn = connectionPool.get(connId);
+			if (conn != null && !conn.isClosed()) {
+				conns.add(conn);
+			}
+		}
+
+		return fanOut(conns, payload);
+	}
+
+	/**
+	 * Envia a mesma mensagem a todas as conexões abertas.
+	 *
+	 * @return Quantidade de conexões destinatárias
+	 * @throws ClosedConnectionException
+	 *             se o servidor não estiver ativo
+	 * @see #publish(String, byte[])
+	 */
+	public int broadcast(byte[] payload) {
+		checkActive();
+
+		final List<LspConnection> conns = connectionPool.values();
+		for (Iterator<LspConnection> it = conns.iterator(); it.hasNext();) {
+			if (it.next().isClosed()) {
+				it.remove();
+			}
+		}
+
+		return fanOut(conns, payload);
+	}
+
+	private int fanOut(final List<LspConnection> conns, final byte[] payload) {
+		final DatagramPacket frame = LspSocket.encodeFrame(payload);
+
+		// Poucos destinatários: a difusão é feita pela própria thread
+		final int nTasks = Math.min(Runtime.getRuntime().availableProcessors(),
+				conns.size() / FANOUT_BATCH);
+		if (nTasks <= 1) {
+			new FanOutTask(conns, payload, frame).call();
+			return conns.size();
+		}
+
+		// Divide os destinatários entre as threads de difusão. Cada tarefa usa
+		// sua própria cópia do quadro, pois o cabeçalho é sobrescrito.
+		final List<FanOutTask> tasks = new ArrayList<>(nTasks);
+		final int chunk = (conns.size() + nTasks - 1) / nTasks;
+		for (int i = 0; i < conns.size(); i += chunk) {
+			final List<LspConnection> part = conns.subList(i, Math.min(i + chunk, conns.size()));
+			final byte[] copy = frame.getData().clone();
+			tasks.add(new FanOutTask(part, payload, new DatagramPacket(copy, copy.length)));
+		}
+
+		try {
+			fanOutExecutor().invokeAll(tasks);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		return conns.size();
+	}
+
+	private ExecutorService fanOutExecutor() {
+		ExecutorService exec = fanOutExec;
+		if (exec == null) {
+			synchronized (fanOutLock) {
+				exec = fanOutExec;
+				if (exec == null) {
+					exec = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+							new ThreadFactory() {
+								public Thread newThread(Runnable r) {
+									Thread t = new Thread(r);
+									t.setDaemon(true);
+									return t;
+								}
+							});
+					fanOutExec = exec;
+				}
+			}
+		}
+
+		return exec;
+	}
+
 	/**
 	 * Encerra uma conexão com o identificador connId.
 	 *
@@ -86,7 +512,7 @@ public class LspServer {
 	 * @throws ClosedConnectionException
 	 *             se a conexão estiver encerrada.
 	 */
-	public void closeConn(short connId) {
+	public void closeConn(int connId) {
 		checkActive();
 
 		final LspConnection conn = connectionPool.get(connId);
@@ -105,17 +531,24 @@ public class LspServer {
 
 		while (!conn.isInterrupted()) {
 			try {
-				Thread.sleep(params.getEpoch());
+				params.getClock().sleep(params.getEpoch());
 			} catch (InterruptedException e) {
 				return;
 			}
 		}
 	}
 
-	private void realCloseConn(short connId, final LspConnection conn) {
+	private void realCloseConn(int connId, final LspConnection conn) {
 		conn.close();
-		connectionPool.remove(connId);
+		if (connectionPool.remove(connId) != null) {
+			releaseConnId(connId);
+			LspEvents.closed(connId);
+		}
 		connectedSockets.remove(conn.getSockId());
+
+		for (Set<Integer> subscribers : topics.values()) {
+			subscribers.remove(connId);
+		}
 	}
 
 	/**
@@ -138,7 +571,7 @@ public class LspServer {
 		// Aguarda o pool de conexão se esvaziar
 		while (!connectionPool.isEmpty()) {
 			try {
-				Thread.sleep(params.getEpoch());
+				params.getClock().sleep(params.getEpoch());
 			} catch (InterruptedException e) {
 				break;
 			}
@@ -147,10 +580,17 @@ public class LspServer {
 		// Marca servidor como inativo e fecha socket lsp
 		this.active = false;
 		this.lspSocket.close();
+		stopCapture();
+
+		final ExecutorService exec = fanOutExec;
+		if (exec != null) {
+			exec.shutdown();
+		}
 
 		// Limpeza de memória
 		this.connectionPool.clear();
 		this.connectedSockets.clear();
+		this.topics.clear();
 	}
 
 	private void checkActive() {
@@ -162,18 +602,91 @@ public class LspServer {
 		return this.port;
 	}
 
-	private Short newConnId() {
+	/**
+	 * Inicia a gravação dos datagramas recebidos e enviados pelo servidor em
+	 * um arquivo de captura em anel, mapeado em memória. Quando o anel se
+	 * enche, os datagramas mais antigos são descartados. A captura pode ser
+	 * reproduzida por {@link LspReplay}.
+	 *
+	 * @param capacity
+	 *            Tamanho em bytes do anel de registros
+	 * @throws IOException
+	 *             se não for possível criar o arquivo
+	 */
+	public void startCapture(Path file, int capacity) throws IOException {
+		checkActive();
+		closeCapture(lspSocket.setCapture(CaptureFile.create(file, capacity)));
+	}
+
+	/**
+	 * Encerra a gravação iniciada por {@link #startCapture(Path, int)}.
+	 */
+	public void stopCapture() {
+		closeCapture(lspSocket.setCapture(null));
+	}
+
+	private static void closeCapture(CaptureFile capture) {
+		if (capture != null) {
+			try {
+				capture.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Devolve as estatísticas de uma conexão.
+	 *
+	 * @throws ClosedConnectionException
+	 *             se a conexão não existir
+	 */
+	public ConnectionStats getStats(int connId) {
+		final LspConnection conn = connectionPool.get(connId);
+		if (conn == null) {
+			throw new ClosedConnectionException(connId);
+		}
+
+		return new ConnectionStats(conn, lspSocket.getSendLatency());
+	}
+
+	/**
+	 * Devolve as latências de envio somadas de todas as conexões do servidor,
+	 * incluindo as já encerradas.
+	 */
+	public SendLatency getSendLatency() {
+		return lspSocket.getSendLatency().copy();
+	}
+
+	/**
+	 * Obtém um id livre. Os ids de 16 bits, mantidos como short estendido,
+	 * são usados primeiro por todas as conexões, de modo que
+	 * {@link Pack#getConnId()} continue válido enquanto houver até 65535
+	 * conexões. Esgotados, só as conexões de cabeçalho largo são aceitas, com
+	 * ids de 31 bits.
+	 *
+	 * @return O id ou null se não há id livre
+	 */
+	private Integer newConnId(boolean wide) {
 		synchronized (idCounter) {
-			// Se a quantidade de conexões já é o máximo suportado não vale a
-			// pena pesquisar por um id livre
-			if (connectionPool.size() == 65535) {
+			if (narrowIds < 0xffff) {
+				while (true) {
+					final short id = (short) idCounter.incrementAndGet();
+					if (id != 0 && !connectionPool.containsKey(id)) {
+						narrowIds++;
+						return (int) id;
+					}
+				}
+			}
+
+			if (!wide) {
 				return null;
 			}
 
-			// Pesquisa por um id livre
 			while (true) {
-				final short id = (short) idCounter.incrementAndGet();
-				if (id == 0) {
+				final int id = wideIdCounter.incrementAndGet();
+				if (id < FIRST_WIDE_ID) {
+					wideIdCounter.set(FIRST_WIDE_ID - 1);
 					continue;
 				}
 				if (!connectionPool.containsKey(id)) {
@@ -183,9 +696,18 @@ public class LspServer {
 		}
 	}
 
+	/** Libera o id de uma conexão removida do pool */
+	private void releaseConnId(int connId) {
+		if (connId == (short) connId) {
+			synchronized (idCounter) {
+				narrowIds--;
+			}
+		}
+	}
+
 	private final class LspSocketImpl extends LspSocket {
-		LspSocketImpl(final int port) throws IOException {
-			super(port);
+		LspSocketImpl(final int port, final LspParams params) throws IOException {
+			super(port, params);
 		}
 
 		@Override
@@ -198,14 +720,31 @@ public class LspServer {
 			// Somente serão aceitos pedidos de conexão bem formados, isto é,
 			// aqueles em que Connection ID e Sequence Number são iguais a zero
 			if (buf.getInt() == 0) {
+				final Handshake request = Handshake.parse(buf);
 				final long sockId = LspConnection.uniqueSockId(sockAddr);
 
 				// A abertura de novas conexões é feita a seguir. A condição
 				// garante não abrir nova conexão se esta já está aberta
 				LspConnection conn = connectedSockets.get(sockId);
 				if (conn == null) {
+					// Sem um cookie válido, responde com um cookie e não
+					// guarda nenhum estado
+					if (cookies != null && !cookies.verify(sockAddr, request.getCookie())) {
+						dgramSendCookie(sockAddr, cookies.issue(sockAddr));
+						return;
+					}
+
+					// Acima da taxa de admissão, descarta o pedido. O cliente
+					// repete o pedido na época seguinte.
+					if (admission != null && !admission.tryAcquire()) {
+						return;
+					}
+
+					// Extensões aceitas, que seguem no ACK
+					final Handshake reply = request.accept(params);
+
 					// Verifica se há espaço no pool para mais conexões
-					final Short newId = newConnId();
+					final Integer newId = newConnId(reply.has(Handshake.EXT_WIDE));
 					if (newId == null) {
 						return;
 					}
@@ -214,27 +753,86 @@ public class LspServer {
 
 					// Adicionando a conexão ao pool de conexão
 					conn = new LspConnection(newId, sockId, sockAddr, params, triggers);
-					connectionPool.put(newId, conn);
-					connectedSockets.put(sockId, conn);
-					dgramSendAck(conn, (short) 0);
+					reply.apply(conn, params);
+					conn.setHandshake(reply);
+
+					connectionPool.put(conn);
+					connectedSockets.put(conn);
+					LspEvents.opened(conn.getId());
+					dgramSendAck(conn, 0);
 
 					// Adicionando referência da conexão associada a triggers
 					triggers.bindedConn = conn;
 				}
 
 				// Mesmo recebendo o pedido de conexão do mesmo socket remoto,
-				// deve ser avisado que a conexão recebeu uma mensagem.
+				// deve ser avisado que a conexão recebeu uma mensagem. O
+				// pedido repetido indica que o ACK da conexão se perdeu, então
+				// ele é reenviado sem esperar a época.
 				else {
 					conn.received();
+					dgramSendAck(conn, 0);
 				}
 			}
 		}
 
-		LspConnection usedConnection(short connId) {
+		LspConnection usedConnection(int connId) {
 			return connectionPool.get(connId);
 		}
 	}
 
+	/**
+	 * Tarefa de difusão de uma mensagem a um grupo de conexões. Conexões
+	 * ociosas recebem o quadro imediatamente. As demais têm a mensagem
+	 * enfileirada, compartilhando o mesmo payload.
+	 */
+	private final class FanOutTask implements Callable<Void> {
+		private final List<LspConnection> conns;
+		private final byte[] payload;
+		private final DatagramPacket frame;
+
+		FanOutTask(List<LspConnection> conns, byte[] payload, DatagramPacket frame) {
+			this.conns = conns;
+			this.payload = payload;
+			this.frame = frame;
+		}
+
+		@Override
+		public Void call() {
+			final List<Pack> queued = new ArrayList<>();
+			final List<LspConnection> queuedConns = new ArrayList<>();
+
+			for (LspConnection conn : conns) {
+				final Pack pack = new Pack(conn.getId(), payload);
+				conn.incSendMissing();
+
+				// Se não há outras mensagens da conexão, tenta enviar já
+				if (conn.getSendMissing() == 1 && lspSocket.sendFrameNow(frame, conn, pack)) {
+					continue;
+				}
+
+				queued.add(pack);
+				queuedConns.add(conn);
+			}
+
+			// As mensagens restantes seguem pela fila de saída, aguardando por
+			// espaço no máximo o tempo em que uma conexão é dada como perdida
+			if (!queued.isEmpty()) {
+				final long timeout = (long) params.getEpoch() * params.getEpochLimit();
+				int accepted = 0;
+				try {
+					accepted = lspSocket.send(queued, timeout, TimeUnit.MILLISECONDS);
+				} finally {
+					for (int i = accepted; i < queuedConns.size(); i++) {
+						queuedConns.get(i).addSendMissing(-1);
+					}
+				}
+			}
+
+			return null;
+		}
+	}
+
 	private final class ServerTriggers implements ConnectionTriggers {
 		public LspConnection bindedConn;
 
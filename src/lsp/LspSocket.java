@@ -5,18 +5,24 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Serviço de entrada e saída de pacotes. Classe abstrata.
@@ -27,26 +33,103 @@ abstract class LspSocket {
 	protected static final byte CONNECT = 0;
 	protected static final byte DATA = 1;
 	protected static final byte ACK = 2;
+	protected static final byte DATA_DEFLATE = 3;
+	protected static final byte STREAM_DATA = 4;
+	protected static final byte STREAM_ACK = 5;
+	protected static final byte COOKIE = 6;
+	protected static final byte DATA_BATCH = 7;
+
+	/**
+	 * Aviso de pressão na fila de entrada, com o número de sequência da
+	 * mensagem de dados recusada e um byte de estado: {@link #PRESSURE_FULL}
+	 * quando ela é recusada e {@link #PRESSURE_RESUME} quando volta a haver
+	 * espaço, para que o remetente a reenvie sem esperar a época seguinte.
+	 * Implementações que não o conhecem ignoram o tipo.
+	 */
+	protected static final byte PRESSURE = 8;
+	static final byte PRESSURE_RESUME = 0;
+	static final byte PRESSURE_FULL = 1;
+
+	/**
+	 * Marca, no tipo de mensagem, do cabeçalho largo: id de conexão e número
+	 * de sequência de 32 bits. Usado nas conexões que negociaram
+	 * {@link Handshake#EXT_WIDE}.
+	 */
+	protected static final short WIDE = 0x10;
+
+	/**
+	 * Marca, no tipo de mensagem de dados, de uma cópia de paridade enviada
+	 * logo após o pacote original. A cópia repete o pacote inteiro; não há
+	 * paridade XOR entre pacotes. Usado nas conexões que negociaram
+	 * {@link Handshake#EXT_FEC}, e nunca nos pacotes de fluxos.
+	 */
+	protected static final short PARITY = 0x20;
 
 	private static final byte[] PAYLOAD_NIL = new byte[0];
 
+	/**
+	 * Marca inserida na fila de entrada quando o socket é fechado. Serve para
+	 * acordar as threads bloqueadas em {@link #receive()}.
+	 */
+	private static final InternalPack CLOSED_MARK = new InternalPack((short) 0, PAYLOAD_NIL);
+
 	static final short LEN_PACKAGE = 1024;
 	static final byte LEN_HEADER = 6;
 	static final short LEN_PAYLOAD = LEN_PACKAGE - LEN_HEADER;
 
+	/* O cabeçalho largo não diminui o payload, aumenta o datagrama */
+	static final byte LEN_WIDE_HEADER = 10;
+	static final short LEN_WIDE_PACKAGE = LEN_WIDE_HEADER + LEN_PAYLOAD;
+
+	/* Mensagens de fluxos levam o id do fluxo antes do payload */
+	static final byte LEN_STREAM_HEADER = 2;
+	static final short LEN_STREAM_PAYLOAD = LEN_PAYLOAD - LEN_STREAM_HEADER;
+
 	/** Capacidade das filas de entrada e saída em termos de pacotes de 1KB */
-	private static final byte QUEUE_ZISE = 50;
+	static final byte QUEUE_ZISE = 50;
+
+	/** Rajada, em bytes, dos envios espaçados: dois pacotes seguidos */
+	static final int PACING_BURST = 2 * LEN_WIDE_PACKAGE;
 
 	/* Filas de entrada e saída */
 	private final BlockingQueue<InternalPack> inputQueue;
-	private final BlockingDeque<Pack> outputQueue;
+	private final OutputScheduler outputQueue;
+
+	/*
+	 * Limite em bytes das filas de entrada do socket (0 se são limitadas em
+	 * pacotes), bytes enfileirados nelas e orçamento compartilhado opcional.
+	 * Com um limite em bytes, a capacidade em pacotes deixa de valer.
+	 */
+	private final long inputLimit;
+	private final AtomicLong inputBytes = new AtomicLong();
+	private final ByteBudget budget;
+
+	/* A escrita aguarda espaço na fila de saída em vez de falhar */
+	private final boolean blockingWrites;
+
+	/* Espaçamento dos envios de todas as conexões ou null se não há */
+	private final TokenBucket pacer;
+
+	/* Latências de envio de todas as conexões do socket */
+	private final SendLatency sendLatency = new SendLatency();
+
+	/* Conexões com uma mensagem recusada e o número de sequência dela */
+	private final ConcurrentMap<LspConnection, Integer> pressured = new ConcurrentHashMap<>();
 
 	/* Lock para garantir que apenas uma thread envie pacotes */
 	private final Object sendLock = new Object();
 
-	/* Usado no pedido de conexão a um servidor LSP partindo desse socket */
-	private volatile ConnectTask connectTask;
-	private final Object connectLock = new Object();
+	/* Lock para garantir que lotes de pacotes sejam enfileirados contíguos */
+	private final Object writeLock = new Object();
+
+	/*
+	 * Pedidos de conexão em curso partindo desse socket, no máximo um por
+	 * servidor LSP
+	 */
+	private final ConcurrentMap<SocketAddress, ConnectTask> connectTasks = new ConcurrentHashMap<>();
+
+	/* Captura opcional dos datagramas recebidos e enviados */
+	private volatile CaptureFile capture;
 
 	/* Socket de comunicação em uso */
 	private final DatagramSocket socket;
@@ -55,20 +138,33 @@ abstract class LspSocket {
 	/* Threads processando entradas e saídas */
 	private final Thread inputThread;
 	private final Thread outputThread;
+	private final OutputTask outputTask;
 
 	/**
 	 * Inicia um LspSocket
 	 *
 	 * @param port Porta onde o socket estará vinculado
-	 * @param queueSize Tamanho inicial das filas de entrada e saída
+	 * @param queueSize Tamanho das filas de entrada e saída em pacotes
+	 * @param params Limites das filas em bytes e orçamento compartilhado, se
+	 *            houver
 	 * @throws SocketException
 	 */
-	LspSocket(int port, int queueSize) throws IOException {
+	LspSocket(int port, int queueSize, LspParams params) throws IOException {
+		// Limites em bytes das filas
+		final int outputLimit = params.getOutputQueueBytes();
+		this.inputLimit = params.getInputQueueBytes();
+		this.budget = params.getByteBudget();
+		this.blockingWrites = outputLimit > 0 || budget != null;
+
+		final long rate = params.getSocketPacingRate();
+		this.pacer = (rate > 0) ? new TokenBucket(rate, PACING_BURST, params.getClock()) : null;
+
 		// Cria o socket e as filas
 		this.socket = new DatagramSocket(port);
 		this.port = this.socket.getLocalPort();
-		this.inputQueue = new LinkedBlockingQueue<>(queueSize);
-		this.outputQueue = new LinkedBlockingDeque<>(queueSize);
+		this.inputQueue = newInputQueue(queueSize);
+		this.outputQueue = new OutputScheduler((outputLimit > 0) ? Integer.MAX_VALUE : queueSize, outputLimit,
+				budget);
 
 		// Inicializa thread de entradas
 		this.inputThread = new Thread(new InputTask());
@@ -76,19 +172,29 @@ abstract class LspSocket {
 		this.inputThread.start();
 
 		// Inicializa thread de saídas
-		this.outputThread = new Thread(new OutputTask());
+		this.outputTask = new OutputTask();
+		this.outputThread = new Thread(outputTask);
 		this.outputThread.setDaemon(true);
 		this.outputThread.start();
 	}
 
 	/**
-	 * Inicia um LspSocket
+	 * Inicia um LspSocket com filas de {@link #QUEUE_ZISE} pacotes, se os
+	 * parâmetros não as limitam em bytes
 	 *
 	 * @param port Porta onde o socket estará vinculado
 	 * @throws SocketException
 	 */
-	LspSocket(int port) throws IOException {
-		this(port, QUEUE_ZISE);
+	LspSocket(int port, LspParams params) throws IOException {
+		this(port, QUEUE_ZISE, params);
+	}
+
+	/**
+	 * Cria uma fila de entrada do socket, com a capacidade em pacotes
+	 * informada se as filas não forem limitadas em bytes
+	 */
+	final BlockingQueue<InternalPack> newInputQueue(int queueSize) {
+		return new LinkedBlockingQueue<>((inputLimit > 0) ? Integer.MAX_VALUE : queueSize);
 	}
 
 	/**
@@ -107,8 +213,22 @@ abstract class LspSocket {
 		outputThread.interrupt();
 
 		// Limpeza de memória
-		inputQueue.clear();
 		outputQueue.clear();
+		close(inputQueue);
+	}
+
+	/**
+	 * Esvazia uma fila de entrada e acorda os leitores bloqueados nela, que
+	 * passam a receber null
+	 */
+	final void close(final BlockingQueue<InternalPack> queue) {
+		do {
+			final List<InternalPack> rest = new ArrayList<>();
+			queue.drainTo(rest);
+			for (InternalPack p : rest) {
+				released(p);
+			}
+		} while (!queue.offer(CLOSED_MARK));
 	}
 
 	/**
@@ -121,28 +241,23 @@ abstract class LspSocket {
 
 		try {
 			while (isActive()) {
-				synchronized (connectLock) {
-					// Se não há um processo de conexão em curso, registra um
-					if (this.connectTask == null) {
-						this.connectTask = task;
-					}
-
-					// Havendo um processo de conexão em curso, aguarda uma
-					// época e tenta se conectar novamente
-					else {
-						Thread.sleep(params.getEpoch());
-						continue;
-					}
+				// Havendo um processo de conexão em curso com o mesmo
+				// servidor, aguarda uma época e tenta se conectar novamente
+				if (connectTasks.putIfAbsent(sockAddr, task) != null) {
+					params.getClock().sleep(params.getEpoch());
+					continue;
 				}
 
 				// Executa o processo de conexão
 				final ExecutorService exec = Executors.newSingleThreadExecutor();
-				final Future<Short> id = exec.submit(task);
+				final Future<Integer> id = exec.submit(task);
 
 				// Se o processo concluir corretamente, uma nova conexão será gerada
 				try {
-					final short connId = id.get();
-					return new LspConnection(connId, sockAddr, params, triggers);
+					final int connId = id.get();
+					final LspConnection conn = new LspConnection(connId, sockAddr, params, triggers);
+					task.reply.apply(conn, params);
+					return conn;
 				}
 
 				// Se uma exceção foi lançada, então relança-a contextualmente
@@ -158,7 +273,7 @@ abstract class LspSocket {
 				// registra que o processo de conexão se encerrou
 				finally {
 					exec.shutdown();
-					this.connectTask = null;
+					connectTasks.remove(sockAddr, task);
 				}
 			}
 		} catch (InterruptedException e) {}
@@ -174,19 +289,64 @@ abstract class LspSocket {
 	 */
 	private void dgramReceive(final DatagramPacket pack) throws IOException {
 		this.socket.receive(pack);
+
+		final CaptureFile capture = this.capture;
+		if (capture != null) {
+			capture.record(CaptureFile.IN, pack.getSocketAddress(), pack.getData(), 0, pack.getLength());
+		}
+
 		final ByteBuffer buf = ByteBuffer.wrap(pack.getData(), 0,
 				pack.getLength()).asReadOnlyBuffer();
 		final short msgType = buf.getShort();
 
-		switch (msgType) {
-		case CONNECT:
+		// O pedido de conexão e o cookie têm sempre o cabeçalho estreito
+		if (msgType == CONNECT) {
 			dgramReceiveConnect(pack.getSocketAddress(), buf.slice());
-			break;
+			return;
+		}
+		if (msgType == COOKIE) {
+			dgramReceiveCookie(pack.getSocketAddress(), buf.slice());
+			return;
+		}
+
+		// Lê o restante do cabeçalho no formato indicado pelo tipo
+		final boolean wide = (msgType & WIDE) != 0;
+		if (buf.remaining() < (wide ? LEN_WIDE_HEADER : LEN_HEADER) - 2) {
+			return;
+		}
+		final int connId = wide ? buf.getInt() : buf.getShort();
+		final int seqNum = wide ? buf.getInt() : buf.getShort();
+
+		final SocketAddress sockAddr = pack.getSocketAddress();
+		final LspConnection conn = usedConnection(sockAddr, connId, wide);
+
+		// A cópia de paridade só interessa se o pacote original se perdeu
+		final boolean parity = (msgType & PARITY) != 0;
+		if (parity && !isRecovery(conn, msgType & ~(WIDE | PARITY), seqNum)) {
+			return;
+		}
+
+		switch (msgType & ~(WIDE | PARITY)) {
 		case DATA:
-			dgramReceiveData(pack.getSocketAddress(), buf.slice());
+			dgramReceiveData(conn, seqNum, buf.slice(), false, parity);
+			break;
+		case DATA_DEFLATE:
+			dgramReceiveData(conn, seqNum, buf.slice(), true, parity);
+			break;
+		case DATA_BATCH:
+			dgramReceiveBatch(conn, seqNum, buf.slice(), parity);
 			break;
 		case ACK:
-			dgramReceiveAck(pack.getSocketAddress(), buf.slice());
+			dgramReceiveAck(sockAddr, conn, connId, seqNum, buf.slice());
+			break;
+		case STREAM_DATA:
+			dgramReceiveStreamData(conn, (short) seqNum, buf.slice());
+			break;
+		case STREAM_ACK:
+			dgramReceiveStreamAck(conn, (short) seqNum, buf.slice());
+			break;
+		case PRESSURE:
+			dgramReceivePressure(conn, seqNum, buf.slice());
 			break;
 		}
 	}
@@ -199,61 +359,367 @@ abstract class LspSocket {
 	void dgramReceiveConnect(final SocketAddress sockAddr, final ByteBuffer buf) {
 	}
 
-	/** Tratamento de um pacote do tipo DATA recebido */
-	void dgramReceiveData(final SocketAddress sockAddr, final ByteBuffer buf) {
-		LspConnection conn = usedConnection(sockAddr, buf.getShort());
+	/**
+	 * Tratamento de um pacote do tipo COOKIE recebido. O pedido de conexão em
+	 * curso é repetido com o cookie.
+	 */
+	private void dgramReceiveCookie(final SocketAddress sockAddr, final ByteBuffer buf) {
+		final ConnectTask task = connectTasks.get(sockAddr);
+		if (task != null && buf.getInt() == 0 && buf.remaining() == ConnectCookies.LEN_COOKIE) {
+			task.cookie(payload(buf));
+		}
+	}
 
-		// Só continua se a conexão é válida e não estiver fechada
-		if (conn != null && !conn.isClosed()) {
-			short seqNum = buf.getShort();
+	/**
+	 * Tratamento de um pacote do tipo DATA recebido
+	 *
+	 * @param conn Conexão do remetente ou null se for inválida
+	 * @param deflated Indica se o payload está comprimido
+	 * @param parity Indica se é a cópia de paridade de um pacote perdido
+	 */
+	void dgramReceiveData(final LspConnection conn, final int seqNum, final ByteBuffer buf, final boolean deflated,
+			final boolean parity) {
+		if (isExpected(conn, seqNum)) {
 			byte[] payload = payload(buf);
-			InternalPack pack = new InternalPack(conn, seqNum, payload);
+
+			// Descarta payloads comprimidos inválidos ou de conexões que não
+			// negociaram a compressão
+			if (deflated) {
+				final Compression comp = conn.getCompression();
+				payload = (comp == null) ? null : comp.inflate(payload);
+				if (payload == null) {
+					return;
+				}
+			}
 
 			// Se a mensagem foi enfileirada, envia o ACK e informa o número
 			// de sequência à conexão (usado nos disparos da época).
-			if (inputQueue.offer(pack)) {
+			InternalPack pack = new InternalPack(conn, seqNum, payload);
+			if (offerInput(conn, seqNum, Collections.singletonList(pack), parity)) {
 				dgramSendAck(pack);
 				conn.received(seqNum);
 			}
+		}
+	}
 
-			// Caso contrário, mesmo que a mensagem não possa ser lida,
-			// atualiza o momento da última mensagem recebida
-			else {
-				conn.received();
+	/**
+	 * Tratamento de um pacote do tipo DATA_BATCH recebido. As mensagens do
+	 * grupo são enfileiradas todas ou nenhuma, e um único ACK reconhece o
+	 * grupo.
+	 *
+	 * @param parity Indica se é a cópia de paridade de um pacote perdido
+	 */
+	void dgramReceiveBatch(final LspConnection conn, final int seqNum, final ByteBuffer buf, final boolean parity) {
+		if (isExpected(conn, seqNum)) {
+			// Descarta grupos malformados ou de conexões que não os negociaram
+			final List<byte[]> messages = conn.hasExtension(Handshake.EXT_BATCH) ? BatchPack.split(buf) : null;
+			if (messages == null) {
+				return;
+			}
+
+			// Sem espaço para todo o grupo, o ACK não é enviado e o remetente
+			// retransmite o grupo inteiro
+			final List<InternalPack> packs = new ArrayList<>(messages.size());
+			for (byte[] payload : messages) {
+				packs.add(new InternalPack(conn, seqNum, payload));
+			}
+			if (offerInput(conn, seqNum, packs, parity)) {
+				dgramSendAck(conn, seqNum);
+				conn.received(seqNum);
 			}
 		}
 	}
 
-	/** Tratamento de um pacote do tipo ACK recebido */
-	void dgramReceiveAck(final SocketAddress sockAddr, final ByteBuffer buf) {
-		final short connId = buf.getShort();
-		final LspConnection conn = usedConnection(sockAddr, connId);
+	/**
+	 * Enfileira as mensagens de um pacote de dados, todas ou nenhuma. Sem
+	 * espaço na fila ou no orçamento, a mensagem é recusada e o remetente é
+	 * avisado da pressão. Esta thread é a única a enfileirar, então o espaço
+	 * verificado não diminui até o fim do laço. Uma cópia de paridade aceita
+	 * conta como recuperação antes de as mensagens ficarem visíveis, de modo
+	 * que quem lê a mensagem ou o ACK já vê a contagem.
+	 *
+	 * @param parity Indica se é a cópia de paridade de um pacote perdido
+	 * @return false se as mensagens foram recusadas
+	 */
+	private boolean offerInput(final LspConnection conn, final int seqNum, final List<InternalPack> packs,
+			final boolean parity) {
+		final BlockingQueue<InternalPack> queue = inputQueue(conn);
+		long charge = 0;
+		for (InternalPack p : packs) {
+			charge += ByteBudget.charge(p);
+		}
+
+		if (queue.remainingCapacity() < packs.size() || !reserveInput(charge)) {
+			// Mesmo que a mensagem não possa ser lida, atualiza o momento da
+			// última mensagem recebida
+			conn.received();
+			LspEvents.sampled(LspEvent.Type.INPUT_DROPPED, conn.getId(), seqNum);
 
+			pressured.put(conn, seqNum);
+			dgramSendPressure(conn, seqNum, PRESSURE_FULL);
+			return false;
+		}
+
+		if (parity) {
+			conn.recovered();
+		}
+		for (InternalPack p : packs) {
+			queue.offer(p);
+		}
+		return true;
+	}
+
+	/**
+	 * Reserva bytes das filas de entrada e do orçamento. Com as filas vazias,
+	 * o pacote é sempre aceito, mesmo que maior que o limite ou além do
+	 * orçamento: do contrário, escritas do mesmo processo que esgotassem o
+	 * orçamento impediriam a entrega dos ACKs que as liberam.
+	 */
+	private boolean reserveInput(final long charge) {
+		final long used = inputBytes.get();
+		if (used > 0) {
+			if (inputLimit > 0 && used + charge > inputLimit) {
+				return false;
+			}
+			if (budget != null && !budget.tryAcquire((int) charge)) {
+				return false;
+			}
+		} else if (budget != null) {
+			budget.overdraw(charge);
+		}
+
+		inputBytes.addAndGet(charge);
+		return true;
+	}
+
+	/**
+	 * Desconta uma mensagem lida das filas de entrada. Se houver conexões
+	 * com mensagens recusadas e a fila tiver se esvaziado até a metade do
+	 * limite, avisa-as de que podem reenviar.
+	 */
+	private void released(final InternalPack p) {
+		if (p == CLOSED_MARK) {
+			return;
+		}
+
+		final int charge = ByteBudget.charge(p);
+		final long used = inputBytes.addAndGet(-charge);
+		if (budget != null) {
+			budget.release(charge);
+		}
+
+		if (!pressured.isEmpty() && (inputLimit == 0 || used <= inputLimit / 2)) {
+			for (Map.Entry<LspConnection, Integer> e : pressured.entrySet()) {
+				final LspConnection conn = e.getKey();
+				if (pressured.remove(conn, e.getValue()) && isActive() && !conn.isClosed()) {
+					dgramSendPressure(conn, e.getValue(), PRESSURE_RESUME);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Verifica se uma mensagem de dados é a próxima esperada da conexão. Uma
+	 * retransmissão cujo ACK foi perdido apenas é reconhecida de novo e uma
+	 * mensagem posterior à esperada é descartada.
+	 *
+	 * @param conn Conexão do remetente ou null se for inválida
+	 */
+	private boolean isExpected(final LspConnection conn, final int seqNum) {
+		// Só continua se a conexão é válida e não estiver fechada
+		if (conn == null || conn.isClosed()) {
+			return false;
+		}
+
+		switch (conn.classify(seqNum)) {
+		case SeqNum.OLD:
+			conn.received();
+			dgramSendAck(conn, seqNum);
+			return false;
+		case SeqNum.FUTURE:
+			conn.received();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Verifica se uma cópia de paridade substitui o pacote original, isto é,
+	 * se é de dados e é a próxima mensagem esperada. As cópias de mensagens
+	 * já recebidas são descartadas sem um novo ACK.
+	 */
+	private boolean isRecovery(final LspConnection conn, final int msgType, final int seqNum) {
+		if (conn == null || conn.isClosed() || !conn.hasExtension(Handshake.EXT_FEC)) {
+			return false;
+		}
+		if (msgType != DATA && msgType != DATA_DEFLATE && msgType != DATA_BATCH) {
+			return false;
+		}
+
+		if (conn.classify(seqNum) != SeqNum.NEXT) {
+			conn.received();
+			return false;
+		}
+
+		return true;
+	}
+
+	/** Tratamento de um pacote do tipo ACK recebido */
+	void dgramReceiveAck(final SocketAddress sockAddr, final LspConnection conn, final int connId,
+			final int seqNum, final ByteBuffer buf) {
 		// Se o connId é válido, reconhece a mensagem
 		if (conn != null) {
-			final short seqNum = buf.getShort();
-			conn.ack(seqNum);
+			conn.ack(seqNum, sendLatency);
+			outputQueue.signalReady();
 		}
 
 		// Senão verifica se há uma tentativa de conexão em curso. Caso
 		// positivo, verifica também se id não é 0, número de sequência é 0,
 		// conferindo antes se o ACK vem do socket remoto correto
 		else {
-			final ConnectTask task = connectTask;
-			if (task != null && connId > 0 && buf.getShort() == 0
-					&& sockAddr.equals(task.sockAddr)) {
-				task.ack(connId);
+			final ConnectTask task = connectTasks.get(sockAddr);
+			if (task != null && connId != 0 && seqNum == 0) {
+				task.ack(connId, Handshake.parse(buf));
 			}
 		}
 	}
 
+	/**
+	 * Tratamento de um pacote do tipo PRESSURE recebido. O aviso só vale para
+	 * a mensagem que aguarda ACK: a recusa é contada e a retomada a reenvia
+	 * imediatamente.
+	 */
+	void dgramReceivePressure(final LspConnection conn, final int seqNum, final ByteBuffer buf) {
+		if (conn == null || conn.isClosed() || !buf.hasRemaining()) {
+			return;
+		}
+
+		conn.received();
+		final InternalPack sent = conn.sent();
+		if (sent == null || sent.getSeqNum() != seqNum) {
+			return;
+		}
+
+		if (buf.get() == PRESSURE_FULL) {
+			conn.pressured();
+		} else {
+			conn.retransmitted(sent);
+			dgramSendData(sent);
+		}
+	}
+
+	/** Tratamento de um pacote do tipo STREAM_DATA recebido */
+	void dgramReceiveStreamData(final LspConnection conn, final short seqNum, final ByteBuffer buf) {
+		// Só continua se a conexão é válida, aberta e negociou os fluxos
+		if (conn == null || conn.isClosed() || !conn.hasExtension(Handshake.EXT_STREAMS)) {
+			return;
+		}
+
+		final short streamId = buf.getShort();
+		final LspStream stream = (streamId > 0) ? conn.stream(streamId) : null;
+
+		// Atualiza o momento de recebimento, mesmo que a mensagem seja
+		// descartada
+		conn.receivedStream();
+		if (stream == null) {
+			return;
+		}
+
+		// Uma retransmissão cujo ACK foi perdido apenas é reconhecida de novo.
+		// A mensagem esperada é reconhecida se couber na fila do fluxo.
+		switch (stream.classify(seqNum)) {
+		case SeqNum.OLD:
+			dgramSendStreamAck(conn, streamId, seqNum);
+			break;
+		case SeqNum.NEXT:
+			if (stream.received(seqNum, payload(buf))) {
+				dgramSendStreamAck(conn, streamId, seqNum);
+			}
+			break;
+		}
+	}
+
+	/** Tratamento de um pacote do tipo STREAM_ACK recebido */
+	void dgramReceiveStreamAck(final LspConnection conn, final short seqNum, final ByteBuffer buf) {
+		if (conn == null) {
+			return;
+		}
+
+		final short streamId = buf.getShort();
+		conn.ackStream(streamId, seqNum, sendLatency);
+		outputQueue.signalReady();
+	}
+
+	/** Registra as latências do primeiro envio de um pacote */
+	private void transmitted(InternalPack p) {
+		sendLatency.transmitted(p.getQueuedNanos(), p.getCreatedNanos());
+	}
+
+
 	private void dgramSend(final SocketAddress sockAddr, final short msgType,
 			final short connId, final short seqNum, final byte[] payload) {
 		ByteBuffer buf = ByteBuffer.allocate(LEN_HEADER + payload.length);
 		buf.putShort(msgType).putShort(connId).putShort(seqNum).put(payload);
+		dgramSend(sockAddr, buf.array());
+	}
+
+	/** Envia o cookie que o pedido de conexão do endereço deve devolver */
+	final void dgramSendCookie(final SocketAddress sockAddr, final byte[] cookie) {
+		dgramSend(sockAddr, COOKIE, (short) 0, (short) 0, cookie);
+	}
+
+	/** Tamanho do cabeçalho no formato negociado pela conexão */
+	private static int headerLength(final LspConnection conn) {
+		return conn.isWide() ? LEN_WIDE_HEADER : LEN_HEADER;
+	}
+
+	/**
+	 * Bytes que um envio de dados ocupa na rede: os datagramas do pacote e,
+	 * fora dos fluxos, os das cópias de paridade. É a mesma conta para a
+	 * espera da taxa e para as fichas consumidas pelo envio.
+	 */
+	private static int wireLength(final LspConnection conn, final boolean stream, final int payloadLength) {
+		return stream ? headerLength(conn) + LEN_STREAM_HEADER + payloadLength
+				: (headerLength(conn) + payloadLength) * (1 + conn.parityCopies());
+	}
+
+	/** Escreve o cabeçalho no formato negociado pela conexão */
+	private static ByteBuffer putHeader(final ByteBuffer buf, final short msgType,
+			final LspConnection conn, final int seqNum) {
+		if (conn.isWide()) {
+			return buf.putShort((short) (msgType | WIDE)).putInt(conn.getId()).putInt(seqNum);
+		}
+
+		return buf.putShort(msgType).putShort((short) conn.getId()).putShort((short) seqNum);
+	}
+
+	/** Envia uma mensagem de um fluxo, com o id do fluxo antes do payload */
+	private void dgramSendStream(final short msgType, final LspConnection conn,
+			final short streamId, final int seqNum, final byte[] payload) {
+		dgramSendStream(msgType, conn, streamId, seqNum, ByteBuffer.wrap(payload));
+	}
+
+	private void dgramSendStream(final short msgType, final LspConnection conn,
+			final short streamId, final int seqNum, final ByteBuffer payload) {
+		ByteBuffer buf = ByteBuffer.allocate(headerLength(conn) + LEN_STREAM_HEADER + payload.remaining());
+		putHeader(buf, msgType, conn, seqNum).putShort(streamId).put(payload);
+		conn.transmitted();
+		dgramSend(conn.getSockAddr(), buf.array());
+	}
 
-		DatagramPacket packet = new DatagramPacket(buf.array(), buf.capacity());
+	private void dgramSend(final SocketAddress sockAddr, final byte[] data) {
+		DatagramPacket packet = new DatagramPacket(data, data.length);
 		packet.setSocketAddress(sockAddr);
+		dgramSend(packet);
+	}
+
+	private void dgramSend(final DatagramPacket packet) {
+		final CaptureFile capture = this.capture;
+		if (capture != null) {
+			capture.record(CaptureFile.OUT, packet.getSocketAddress(), packet.getData(),
+					packet.getOffset(), packet.getLength());
+		}
+
 		try {
 			synchronized (sendLock) {
 				socket.send(packet);
@@ -264,24 +730,156 @@ abstract class LspSocket {
 	}
 
 	private void dgramSend(final short msgType, final LspConnection conn,
-			final short seqNum, final byte[] payload) {
-		dgramSend(conn.getSockAddr(), msgType, conn.getId(), seqNum, payload);
+			final int seqNum, final byte[] payload) {
+		dgramSend(msgType, conn, seqNum, ByteBuffer.wrap(payload));
 	}
 
-	final void dgramSendData(final LspConnection conn, final short seqNum, final byte[] payload) {
-		if (payload.length > LEN_PAYLOAD) {
+	/** O payload é copiado uma única vez, direto para o datagrama */
+	private void dgramSend(final short msgType, final LspConnection conn,
+			final int seqNum, final ByteBuffer payload) {
+		ByteBuffer buf = ByteBuffer.allocate(headerLength(conn) + payload.remaining());
+		putHeader(buf, msgType, conn, seqNum).put(payload);
+		conn.transmitted();
+		dgramSend(conn.getSockAddr(), buf.array());
+	}
+
+	/**
+	 * Envia as cópias de paridade de um pacote de dados, se a conexão as
+	 * usa. Cada cópia repete o pacote com a marca {@link #PARITY} no tipo.
+	 */
+	private void dgramSendParity(final InternalPack p) {
+		final LspConnection conn = p.getConnection();
+		final short msgType = (short) (p.getMsgType() | PARITY);
+		for (int i = conn.parityCopies(); i > 0; i--) {
+			dgramSend(msgType, conn, p.getSeqNum(), p.payloadView());
+			conn.parityTransmitted(headerLength(conn) + p.getPayloadLength());
+		}
+	}
+
+	final void dgramSendData(final LspConnection conn, final int seqNum, final byte[] payload) {
+		dgramSendData(conn, DATA, seqNum, payload);
+	}
+
+	private void dgramSendData(final LspConnection conn, final short msgType,
+			final int seqNum, final byte[] payload) {
+		dgramSendData(conn, msgType, seqNum, ByteBuffer.wrap(payload));
+	}
+
+	private void dgramSendData(final LspConnection conn, final short msgType,
+			final int seqNum, final ByteBuffer payload) {
+		if (payload.remaining() > LEN_PAYLOAD) {
 			throw new IllegalArgumentException("Payload não pode ser maior que " + LEN_PAYLOAD);
 		}
 
-		dgramSend(DATA, conn, seqNum, payload);
+		dgramSend(msgType, conn, seqNum, payload);
 	}
 
 	final void dgramSendData(final InternalPack p) {
-		dgramSendData(p.getConnection(), p.getSeqNum(), p.getPayload());
+		if (p.getStreamId() != 0) {
+			dgramSendStream(STREAM_DATA, p.getConnection(), p.getStreamId(), p.getSeqNum(), p.payloadView());
+		} else {
+			dgramSendData(p.getConnection(), p.getMsgType(), p.getSeqNum(), p.payloadView());
+			dgramSendParity(p);
+		}
+	}
+
+	/**
+	 * Codifica um quadro de dados com o cabeçalho ainda não preenchido. O
+	 * quadro pode ser enviado a vários destinatários por
+	 * {@link #dgramSendFrame(DatagramPacket, InternalPack)}, que escreve apenas
+	 * os campos de cabeçalho de cada conexão. Há espaço para o cabeçalho largo;
+	 * o estreito ocupa somente o seu final.
+	 */
+	static final DatagramPacket encodeFrame(final byte[] payload) {
+		if (payload.length > LEN_PAYLOAD) {
+			throw new IllegalArgumentException("Payload não pode ser maior que " + LEN_PAYLOAD);
+		}
+
+		final byte[] frame = new byte[LEN_WIDE_HEADER + payload.length];
+		System.arraycopy(payload, 0, frame, LEN_WIDE_HEADER, payload.length);
+		return new DatagramPacket(frame, frame.length);
+	}
+
+	/**
+	 * Envia um quadro codificado por {@link #encodeFrame(byte[])} com o
+	 * cabeçalho do pacote informado. O quadro não deve ser compartilhado entre
+	 * threads.
+	 */
+	final void dgramSendFrame(final DatagramPacket frame, final InternalPack p) {
+		// Pacotes com payload codificado (comprimido) não usam o quadro comum
+		if (p.getMsgType() != DATA) {
+			dgramSendData(p);
+			return;
+		}
+
+		final LspConnection conn = p.getConnection();
+		final byte[] data = frame.getData();
+		final int offset = LEN_WIDE_HEADER - headerLength(conn);
+		putHeader(ByteBuffer.wrap(data, offset, data.length - offset), DATA, conn, p.getSeqNum());
+		frame.setData(data, offset, data.length - offset);
+		frame.setSocketAddress(conn.getSockAddr());
+		conn.transmitted();
+		dgramSend(frame);
+		dgramSendParity(p);
 	}
 
-	final void dgramSendAck(final LspConnection conn, final short seqNum) {
-		dgramSend(ACK, conn, seqNum, PAYLOAD_NIL);
+	/**
+	 * Envia já um quadro codificado por {@link #encodeFrame(byte[])}, sem
+	 * passar pela fila de saída, se isso não passa à frente de outros pacotes
+	 * nem das taxas: a fila deve estar vazia e sem agrupamento, a conexão não
+	 * pode aguardar ACK, as taxas devem permitir o envio e o orçamento deve
+	 * ter espaço para o pacote. O envio conta nas taxas como os da fila.
+	 *
+	 * @return false se o pacote deve seguir pela fila de saída
+	 */
+	final boolean sendFrameNow(final DatagramPacket frame, final LspConnection conn, final Pack p) {
+		if (outputQueue.isCoalescing() || outputQueue.size() > 0
+				|| outputTask.pacingDelay(p, p.getPayloadLength()) > 0) {
+			return false;
+		}
+
+		// O pacote não chega a ser enfileirado, mas só segue se coubesse na fila
+		final int charge = ByteBudget.charge(p);
+		if (budget != null && !budget.tryAcquire(charge)) {
+			return false;
+		}
+
+		try {
+			final InternalPack sent = conn.sent(p);
+			if (sent == null) {
+				return false;
+			}
+			transmitted(sent);
+
+			dgramSendFrame(frame, sent);
+			outputTask.paced(sent);
+			return true;
+		} finally {
+			if (budget != null) {
+				budget.release(charge);
+			}
+		}
+	}
+
+	/**
+	 * Envia um ACK. O ACK de número de sequência 0 enviado pelo servidor leva
+	 * também as extensões aceitas no pedido de conexão.
+	 */
+	final void dgramSendAck(final LspConnection conn, final int seqNum) {
+		final Handshake handshake = conn.getHandshake();
+		if (seqNum == 0 && handshake != null) {
+			dgramSend(ACK, conn, seqNum, handshake.encode());
+		} else {
+			dgramSend(ACK, conn, seqNum, PAYLOAD_NIL);
+		}
+	}
+
+	private void dgramSendPressure(final LspConnection conn, final int seqNum, final byte state) {
+		dgramSend(PRESSURE, conn, seqNum, new byte[] {state});
+	}
+
+	final void dgramSendStreamAck(final LspConnection conn, final short streamId, final short seqNum) {
+		dgramSendStream(STREAM_ACK, conn, streamId, seqNum, PAYLOAD_NIL);
 	}
 
 	final void dgramSendAck(final InternalPack p) {
@@ -291,9 +889,7 @@ abstract class LspSocket {
 	/** Helper para obter um array de bytes com o resto do {@link ByteBuffer} */
 	static final byte[] payload(final ByteBuffer buf) {
 		byte[] bs = new byte[buf.remaining()];
-		for (int i = 0; i < bs.length; i++) {
-			bs[i] = buf.get();
-		}
+		buf.get(bs);
 
 		return bs;
 	}
@@ -304,14 +900,34 @@ abstract class LspSocket {
 	 * @param connId Id de conexão para validar/pesquisar
 	 * @return Uma instância de {@link LspConnection} ou null
 	 */
-	abstract LspConnection usedConnection(short connId);
+	abstract LspConnection usedConnection(int connId);
+
+	/**
+	 * Obtém a conexão em uso com o remetente de um pacote recebido. Um socket
+	 * com conexões a vários servidores deve sobrescrever este método, pois
+	 * servidores diferentes podem atribuir o mesmo id.
+	 *
+	 * @return Uma instância de {@link LspConnection} ou null
+	 */
+	LspConnection usedConnection(SocketAddress sockAddr, int connId) {
+		return usedConnection(connId);
+	}
 
-	private LspConnection usedConnection(final SocketAddress sockAddr, final short connId) {
-		final LspConnection conn = usedConnection(connId);
+	/**
+	 * Fila de entrada das mensagens recebidas de uma conexão. Por padrão, a
+	 * mesma para todas as conexões do socket.
+	 */
+	BlockingQueue<InternalPack> inputQueue(LspConnection conn) {
+		return inputQueue;
+	}
 
-		// Descarta o pacote se não há conexão aberta com o remetente ou se
-		// o id recebido não corresponde ao id registrado com a conexão.
-		if (conn != null && conn.getId() == connId
+	private LspConnection usedConnection(final SocketAddress sockAddr, final int connId, final boolean wide) {
+		final LspConnection conn = usedConnection(sockAddr, connId);
+
+		// Descarta o pacote se não há conexão aberta com o remetente, se o id
+		// recebido não corresponde ao id registrado com a conexão ou se o
+		// formato do cabeçalho não é o negociado.
+		if (conn != null && conn.getId() == connId && conn.isWide() == wide
 				&& sockAddr.equals(conn.getSockAddr())) {
 			return conn;
 		}
@@ -319,56 +935,230 @@ abstract class LspSocket {
 		return null;
 	}
 
-	/** Recebe um pacote da fila de entrada */
+	/**
+	 * Recebe um pacote da fila de entrada. Bloqueia até que haja um pacote
+	 * disponível ou até que o socket seja fechado.
+	 *
+	 * @return O próximo pacote ou null se o socket foi fechado
+	 */
 	public InternalPack receive() {
-		while (isActive()) {
-			try {
-				InternalPack nextPack = inputQueue.poll(1, TimeUnit.SECONDS);
-				if (nextPack != null) {
-					return nextPack;
-				}
-			} catch (InterruptedException e) {
+		return receive(inputQueue);
+	}
+
+	/**
+	 * Recebe um pacote de uma fila de entrada do socket
+	 *
+	 * @return O próximo pacote ou null se a fila foi fechada
+	 * @see #close(BlockingQueue)
+	 */
+	final InternalPack receive(final BlockingQueue<InternalPack> queue) {
+		try {
+			final InternalPack nextPack = queue.take();
+			if (nextPack != CLOSED_MARK) {
+				released(nextPack);
+				return nextPack;
+			}
+
+			// Devolve a marca à fila para acordar os demais leitores
+			queue.offer(CLOSED_MARK);
+		} catch (InterruptedException e) {}
+
+		return null;
+	}
+
+	/**
+	 * Recebe em lote os pacotes da fila de entrada. Bloqueia até que haja ao
+	 * menos um pacote disponível e então transfere, sem novas esperas, os
+	 * demais pacotes já enfileirados até o limite informado.
+	 *
+	 * @param dst Coleção onde os pacotes serão inseridos
+	 * @param maxPacks Quantidade máxima de pacotes a transferir
+	 * @return Quantidade de pacotes transferidos ou 0 se o socket foi fechado
+	 */
+	final int receive(final Collection<? super InternalPack> dst, final int maxPacks) {
+		return receive(inputQueue, dst, maxPacks);
+	}
+
+	/**
+	 * Recebe em lote os pacotes de uma fila de entrada do socket
+	 *
+	 * @see #receive(Collection, int)
+	 */
+	final int receive(final BlockingQueue<InternalPack> queue, final Collection<? super InternalPack> dst,
+			final int maxPacks) {
+		if (maxPacks <= 0) {
+			return 0;
+		}
+
+		final InternalPack first = receive(queue);
+		if (first == null) {
+			return 0;
+		}
+		dst.add(first);
+
+		// Transfere o restante da fila de uma só vez
+		final List<InternalPack> rest = new ArrayList<>(Math.min(maxPacks - 1, queue.size()));
+		queue.drainTo(rest, maxPacks - 1);
+
+		int count = 1;
+		for (InternalPack p : rest) {
+			if (p == CLOSED_MARK) {
+				queue.offer(CLOSED_MARK);
 				break;
 			}
+			released(p);
+			dst.add(p);
+			count++;
 		}
 
-		return null;
+		return count;
 	}
 
 	/** Insere um pacote na fila de saída */
 	public void send(Pack p) {
-		if (p.getPayload().length > LEN_PAYLOAD) {
-			throw new IllegalArgumentException("Payload não pode ser maior que " + LEN_PAYLOAD);
+		send(p, Priority.NORMAL);
+	}
+
+	/**
+	 * Insere um pacote na faixa da fila de saída da prioridade informada. Com
+	 * a fila limitada em bytes ou por um orçamento, aguarda até haver espaço.
+	 */
+	public void send(Pack p, Priority prio) {
+		checkPayload(p);
+
+		synchronized (writeLock) {
+			if (blockingWrites) {
+				try {
+					outputQueue.put(p, prio);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Escrita interrompida aguardando espaço na fila de saída");
+				}
+			} else if (!outputQueue.offer(p, prio)) {
+				LspEvents.sampled(LspEvent.Type.OUTPUT_DROPPED, p.getConnectionId(), 0);
+				throw new IllegalStateException("Fila de saída cheia");
+			}
+		}
+	}
+
+	/**
+	 * Insere em lote pacotes na fila de saída. Os pacotes do lote são
+	 * enfileirados de forma contígua, isto é, sem pacotes de outras chamadas
+	 * intercalados. Se a fila estiver cheia, aguarda até haver espaço ou até o
+	 * tempo limite se esgotar.
+	 *
+	 * @param packs Pacotes a enfileirar, na ordem de envio
+	 * @param timeout Tempo máximo de espera. Se negativo, aguarda até que
+	 *            todos os pacotes sejam aceitos ou o socket seja fechado
+	 * @param unit Unidade de tempo do parâmetro timeout
+	 * @return Quantidade de pacotes aceitos, sempre os primeiros do lote
+	 */
+	final int send(final Collection<? extends Pack> packs, final long timeout, final TimeUnit unit) {
+		return send(packs, Priority.NORMAL, timeout, unit);
+	}
+
+	/**
+	 * Insere em lote pacotes na faixa da fila de saída da prioridade
+	 * informada.
+	 *
+	 * @see #send(Collection, long, TimeUnit)
+	 */
+	final int send(final Collection<? extends Pack> packs, final Priority prio,
+			final long timeout, final TimeUnit unit) {
+		// Valida todo o lote antes de enfileirar qualquer pacote
+		for (Pack p : packs) {
+			checkPayload(p);
+		}
+
+		final long deadline = (timeout < 0) ? 0 : System.nanoTime() + unit.toNanos(timeout);
+		int accepted = 0;
+
+		synchronized (writeLock) {
+			try {
+				for (Pack p : packs) {
+					if (!isActive()) {
+						break;
+					}
+
+					if (timeout < 0) {
+						outputQueue.put(p, prio);
+					} else if (!outputQueue.offer(p, prio, deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+						LspEvents.sampled(LspEvent.Type.OUTPUT_DROPPED, p.getConnectionId(), 0);
+						break;
+					}
+					accepted++;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
 		}
 
-		if (!outputQueue.offer(p)) {
-			throw new IllegalStateException("Fila de saída cheia");
+		return accepted;
+	}
+
+	private static void checkPayload(final Pack p) {
+		final int max = (p instanceof StreamPack) ? LEN_STREAM_PAYLOAD : LEN_PAYLOAD;
+		if (p.getPayloadLength() > max) {
+			throw new IllegalArgumentException("Payload não pode ser maior que " + max);
 		}
 	}
 
+	/**
+	 * Inicia ou encerra a captura dos datagramas recebidos e enviados
+	 *
+	 * @param capture Arquivo de captura ou null para encerrar
+	 * @return O arquivo de captura anterior, se houver
+	 */
+	final CaptureFile setCapture(CaptureFile capture) {
+		final CaptureFile old = this.capture;
+		this.capture = capture;
+		return old;
+	}
+
+	/**
+	 * Habilita o agrupamento das mensagens pequenas de cada conexão que
+	 * negociou os grupos
+	 *
+	 * @param flushDelay Espera máxima de uma mensagem por outras, em
+	 *            nanosegundos, ou -1 para desabilitar
+	 */
+	final void setCoalescing(long flushDelay) {
+		outputQueue.setCoalescing(flushDelay);
+	}
+
 	int getPort() {
 		return this.port;
 	}
 
-	private final class ConnectTask implements Callable<Short> {
+	/** Latências de envio de todas as conexões do socket, inclusive encerradas */
+	final SendLatency getSendLatency() {
+		return this.sendLatency;
+	}
+
+	private final class ConnectTask implements Callable<Integer> {
 		private final SocketAddress sockAddr;
-		private final BlockingQueue<Short> result;
+		private final BlockingQueue<Integer> result;
 		private final LspParams params;
+		private volatile byte[] request;
+
+		/* Extensões aceitas pelo servidor */
+		private volatile Handshake reply;
 
 		ConnectTask(SocketAddress sockAddr, LspParams params) {
 			this.sockAddr = sockAddr;
 			this.params = params;
+			this.request = Handshake.request(params).encode();
 			this.result = new ArrayBlockingQueue<>(1);
 		}
 
 		@Override
-		public Short call() throws TimeoutException {
+		public Integer call() throws TimeoutException {
 			// Envia e aguarda, durante o tempo das épocas, o ACK da conexão
 			int limit = params.getEpochLimit();
 			while (isActive() && limit-- > 0) {
 				try {
-					dgramSend(sockAddr, CONNECT, (short) 0, (short) 0, PAYLOAD_NIL);
-					Short id = result.poll(params.getEpoch(), TimeUnit.MILLISECONDS);
+					dgramSend(sockAddr, CONNECT, (short) 0, (short) 0, request);
+					Integer id = params.getClock().poll(result, params.getEpoch());
 					if (id != null) {
 						return id;
 					}
@@ -382,8 +1172,15 @@ abstract class LspSocket {
 			throw new TimeoutException("Servidor " + sockAddr + " não responde");
 		}
 
-		void ack(short connId) {
-			result.offer(connId);
+		/** Repete o pedido de conexão, agora com o cookie do servidor */
+		void cookie(byte[] cookie) {
+			this.request = Handshake.request(params).withCookie(cookie).encode();
+			dgramSend(sockAddr, CONNECT, (short) 0, (short) 0, request);
+		}
+
+		void ack(int connId, Handshake reply) {
+			this.reply = reply;
+			params.getClock().offer(result, connId);
 		}
 	}
 
@@ -391,7 +1188,7 @@ abstract class LspSocket {
 		@Override
 		public void run() {
 			// Configuração do pacote de entrada
-			byte[] bs = new byte[LEN_PACKAGE];
+			byte[] bs = new byte[LEN_WIDE_PACKAGE];
 			DatagramPacket pack = new DatagramPacket(bs, bs.length);
 
 			// Recebe pacotes até o servidor ser encerrado
@@ -405,7 +1202,7 @@ abstract class LspSocket {
 		}
 	}
 
-	private final class OutputTask implements Runnable {
+	private final class OutputTask implements Runnable, OutputScheduler.Assigner {
 		@Override
 		public void run() {
 			// Envia pacotes até o servidor ser encerrado
@@ -419,34 +1216,79 @@ abstract class LspSocket {
 		}
 
 		private void sendNextData() throws InterruptedException {
-			// Obtém o próximo pacote de dados da fila, se houver.
-			final Pack p = outputQueue.poll(1, TimeUnit.SECONDS);
-			if (p == null) {
-				return;
+			// Obtém o próximo pacote de dados que pode ser enviado, se houver.
+			// Pacotes de conexões aguardando ACK permanecem na fila.
+			final InternalPack sent = outputQueue.take(this, 1, TimeUnit.SECONDS);
+			if (sent != null) {
+				dgramSendData(sent);
+				paced(sent);
 			}
+		}
+
+		/** Conta os bytes do envio, com as cópias de paridade, nas taxas */
+		private void paced(InternalPack sent) {
+			final LspConnection conn = sent.getConnection();
+			final int bytes = wireLength(conn, sent.getStreamId() != 0, sent.getPayloadLength());
+			conn.paced(bytes);
+			if (pacer != null) {
+				pacer.consume(bytes);
+			}
+		}
 
-			// Se o id de conexão do pacote é inválido, encerra
-			LspConnection conn = usedConnection(p.getConnId());
+		@Override
+		public InternalPack assign(Pack p, long queuedNanos) {
+			// Se o id de conexão do pacote é inválido, descarta o pacote
+			LspConnection conn = usedConnection(p.getConnectionId());
 			if (conn == null) {
-				return;
+				return null;
 			}
 
-			// Tenta associar o pacote à conexão. Se sucesso, envia esse pacote
-			InternalPack sent = conn.sent(p);
-			if (sent != null) {
-				dgramSendData(sent);
-				return;
+			// Tenta associar o pacote à conexão, o que só é possível se não há
+			// outro pacote em espera de um ACK
+			InternalPack sent = conn.sent(p, queuedNanos);
+			if (sent == null) {
+				return OutputScheduler.BUSY;
 			}
 
-			// Se não foi possível associar à conexão (já havia outro pacote em
-			// espera de um ACK) então devolve o pacote à fila (segunda posição)
-			synchronized (outputQueue) {
-				Pack first = outputQueue.poll();
-				outputQueue.offerFirst(p);
-				if (first != null) {
-					outputQueue.offerFirst(first);
-				}
+			transmitted(sent);
+			return sent;
+		}
+
+		@Override
+		public int batchLimit(Pack p) {
+			// Somente mensagens fora de fluxos, e se o par negociou o grupo
+			LspConnection conn = usedConnection(p.getConnectionId());
+			return (conn != null && !(p instanceof StreamPack) && conn.hasExtension(Handshake.EXT_BATCH))
+					? LEN_PAYLOAD : 0;
+		}
+
+		@Override
+		public boolean isBusy(Pack p) {
+			LspConnection conn = usedConnection(p.getConnectionId());
+			if (conn == null) {
+				return false;
+			}
+
+			if (p instanceof StreamPack) {
+				LspStream stream = conn.findStream(((StreamPack) p).getStreamId());
+				return stream != null && stream.sent() != null;
+			}
+			return conn.sent() != null;
+		}
+
+		@Override
+		public long pacingDelay(Pack p, int payloadLength) {
+			// Pacotes sem conexão são descartados sem envio
+			final LspConnection conn = usedConnection(p.getConnectionId());
+			if (conn == null) {
+				return 0;
 			}
+
+			// Os mesmos bytes que paced() vai consumir; só a compressão, feita
+			// depois, pode reduzi-los
+			final int bytes = wireLength(conn, p instanceof StreamPack, payloadLength);
+			final long delay = conn.pacingDelay(bytes);
+			return (pacer == null) ? delay : Math.max(delay, pacer.delayNanos(bytes));
 		}
 
 	}
@@ -0,0 +1,167 @@
+package lsp;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Fluxo independente dentro de uma conexão LSP. Cada fluxo tem sua própria
+ * sequência de envio, seu próprio ACK e sua própria fila de entrada, de modo
+ * que a perda de um pacote de um fluxo não atrasa os demais.
+ *
+ * Os fluxos não exigem abertura: são criados no primeiro uso, por qualquer dos
+ * lados.
+ *
+ * @author Wagner Macedo
+ */
+final class LspStream {
+	/** Capacidade da fila de entrada de cada fluxo */
+	private static final int QUEUE_SIZE = 50;
+
+	/** Marca inserida na fila de entrada quando a conexão é fechada */
+	private static final byte[] CLOSED_MARK = new byte[0];
+
+	private final LspConnection connection;
+	private final short id;
+
+	/*
+	 * Estado de envio, protegido pelo monitor do fluxo. As sequências dos
+	 * fluxos têm 16 bits no datagrama, estendidas como em SeqNum.
+	 */
+	private long seqNum;
+	private volatile InternalPack sentMessage;
+
+	/* Estado de recebimento */
+	private volatile long receivedSeqNum;
+	private final BlockingQueue<byte[]> inputQueue = new LinkedBlockingQueue<>(QUEUE_SIZE);
+
+	LspStream(LspConnection conn, short id) {
+		this.connection = conn;
+		this.id = id;
+	}
+
+	/**
+	 * Obtém um fluxo de uma conexão para uso pela aplicação, criando-o se
+	 * necessário.
+	 *
+	 * @throws IllegalArgumentException
+	 *             se o id do fluxo não é positivo
+	 * @throws IllegalStateException
+	 *             se a conexão não negociou fluxos ou atingiu o limite de
+	 *             fluxos
+	 * @throws ClosedConnectionException
+	 *             se a conexão estiver encerrada
+	 */
+	static LspStream of(LspConnection conn, short streamId) {
+		if (streamId <= 0) {
+			throw new IllegalArgumentException("Id de fluxo deve ser positivo");
+		}
+		if (!conn.hasExtension(Handshake.EXT_STREAMS)) {
+			throw new IllegalStateException("Conexão id=" + conn.getId() + " não suporta fluxos");
+		}
+
+		final LspStream stream = conn.stream(streamId);
+		if (stream == null) {
+			if (conn.isInterrupted()) {
+				throw new ClosedConnectionException(conn.getId());
+			}
+			throw new IllegalStateException("Limite de " + LspConnection.MAX_STREAMS + " fluxos atingido");
+		}
+
+		return stream;
+	}
+
+	LspConnection getConnection() {
+		return this.connection;
+	}
+
+	short getId() {
+		return this.id;
+	}
+
+	/** Obtém a última mensagem enviada pelo fluxo (aguardando ACK) */
+	InternalPack sent() {
+		return this.sentMessage;
+	}
+
+	/**
+	 * Informa o payload da última mensagem enviada pelo fluxo
+	 *
+	 * @return Pacote com um novo número de sequência ou null se já há um pacote
+	 *         do fluxo aguardando ACK
+	 */
+	synchronized InternalPack sent(Pack pack) {
+		if (this.sentMessage == null) {
+			seqNum = SeqNum.next(seqNum, false);
+			InternalPack p = InternalPack.stream(connection, id, (short) seqNum, pack.payloadView());
+			this.sentMessage = p;
+			return p;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Informa que o ACK do número de sequência informado foi recebido
+	 *
+	 * @return true se o ACK reconheceu a mensagem aguardando
+	 */
+	synchronized boolean ack(short seqNum) {
+		final InternalPack p = this.sentMessage;
+		if (p != null && p.getSeqNum() == seqNum) {
+			this.sentMessage = null;
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Classifica o número de sequência de uma mensagem recebida em relação à
+	 * última recebida. {@link SeqNum#OLD} indica uma retransmissão cujo ACK
+	 * foi perdido.
+	 */
+	int classify(short seqNum) {
+		return SeqNum.classify(receivedSeqNum, seqNum, false);
+	}
+
+	/**
+	 * Enfileira uma mensagem recebida pelo fluxo
+	 *
+	 * @return false se a fila de entrada do fluxo estiver cheia
+	 */
+	boolean received(short seqNum, byte[] payload) {
+		if (inputQueue.offer(payload)) {
+			this.receivedSeqNum = SeqNum.extend(SeqNum.next(receivedSeqNum, false), seqNum, false);
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Recebe uma mensagem do fluxo. Bloqueia até que haja uma mensagem ou até
+	 * que a conexão seja fechada.
+	 *
+	 * @return A próxima mensagem ou null se a conexão foi fechada
+	 */
+	byte[] receive() {
+		try {
+			final byte[] payload = inputQueue.take();
+			if (payload != CLOSED_MARK) {
+				return payload;
+			}
+
+			// Devolve a marca à fila para acordar os demais leitores
+			inputQueue.offer(CLOSED_MARK);
+		} catch (InterruptedException e) {}
+
+		return null;
+	}
+
+	/** Acorda os leitores do fluxo quando a conexão é fechada */
+	void close() {
+		while (!inputQueue.offer(CLOSED_MARK)) {
+			inputQueue.clear();
+		}
+	}
+}
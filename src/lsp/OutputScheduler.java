@@ -0,0 +1,545 @@
+package lsp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fila de saída com uma faixa por {@link Priority}. A cada retirada é
+ * escolhida a faixa de maior prioridade com pacotes prontos para envio, a não
+ * ser que uma faixa de menor prioridade tenha sido preterida
+ * {@link #STARVATION_LIMIT} vezes seguidas. A capacidade é compartilhada entre
+ * as faixas. Além da quantidade de pacotes, a fila pode ser limitada em bytes
+ * e por um {@link ByteBudget}, reservado a cada inserção e devolvido quando o
+ * pacote deixa a fila.
+ *
+ * Há apenas um consumidor, a thread de saída do {@link LspSocket}.
+ *
+ * @author Wagner Macedo
+ */
+final class OutputScheduler {
+	/** Quantas vezes seguidas uma faixa pode ser preterida */
+	static final int STARVATION_LIMIT = 8;
+
+	/** Resultado de {@link Assigner#assign(Pack, long)} para conexões ocupadas */
+	static final InternalPack BUSY = new InternalPack((short) 0, new byte[0]);
+
+	/** Associa os pacotes da fila às suas conexões no momento do envio */
+	interface Assigner {
+		/**
+		 * @param queuedNanos Momento em que o pacote entrou na fila
+		 * @return O pacote associado à conexão, {@link OutputScheduler#BUSY} se
+		 *         a conexão aguarda o ACK de outro pacote ou null se o pacote
+		 *         deve ser descartado
+		 */
+		InternalPack assign(Pack p, long queuedNanos);
+
+		/**
+		 * @return true se a conexão do pacote aguarda o ACK de outro pacote,
+		 *         caso em que {@link #assign(Pack, long)} devolveria
+		 *         {@link OutputScheduler#BUSY}
+		 */
+		boolean isBusy(Pack p);
+
+		/**
+		 * @return Tamanho máximo do payload de um grupo de mensagens da
+		 *         conexão do pacote ou 0 se o pacote não pode ser agrupado
+		 */
+		int batchLimit(Pack p);
+
+		/**
+		 * @param payloadLength Payload a enviar: o do pacote ou o do grupo
+		 *            de mensagens iniciado por ele
+		 * @return Tempo, em nanosegundos, até que o payload possa ser enviado
+		 *         sem ultrapassar a taxa da conexão do pacote ou do socket, ou
+		 *         0 se já pode
+		 */
+		long pacingDelay(Pack p, int payloadLength);
+	}
+
+	/** Pacote na fila e o momento em que entrou nela */
+	private static final class Entry {
+		final Pack pack;
+		final long queuedNanos;
+
+		Entry(Pack pack, long queuedNanos) {
+			this.pack = pack;
+			this.queuedNanos = queuedNanos;
+		}
+	}
+
+	private final ArrayDeque<Entry>[] lanes;
+	private final int[] skipped;
+	private final int capacity;
+	private int count;
+
+	/* Limite em bytes (0 se não há) e bytes enfileirados */
+	private final long maxBytes;
+	private final ByteBudget budget;
+	private long bytes;
+
+	/*
+	 * Espera máxima de uma mensagem por outras para agrupamento, em
+	 * nanosegundos, ou -1 se não há agrupamento. O próximo vencimento de uma
+	 * espera, de agrupamento ou de espaçamento, é calculado a cada retirada.
+	 */
+	private volatile long coalescingNanos = -1;
+	private long flushAt;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	OutputScheduler(int capacity) {
+		this(capacity, 0, null);
+	}
+
+	/**
+	 * @param maxBytes Limite em bytes ou 0 para limitar somente a quantidade
+	 * @param budget Orçamento compartilhado ou null
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	OutputScheduler(int capacity, long maxBytes, ByteBudget budget) {
+		final int n = Priority.values().length;
+		this.lanes = new ArrayDeque[n];
+		for (int i = 0; i < n; i++) {
+			this.lanes[i] = new ArrayDeque<>();
+		}
+		this.skipped = new int[n];
+		this.capacity = capacity;
+		this.maxBytes = maxBytes;
+		this.budget = budget;
+	}
+
+	/**
+	 * Insere um pacote na faixa da prioridade informada
+	 *
+	 * @return false se a fila estiver cheia
+	 */
+	boolean offer(Pack p, Priority prio) {
+		final int charge = ByteBudget.charge(p);
+		if (budget != null && !budget.tryAcquire(charge)) {
+			return false;
+		}
+
+		lock.lock();
+		try {
+			if (!hasRoom(charge)) {
+				unreserve(charge);
+				return false;
+			}
+			enqueue(p, prio, charge);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Insere um pacote na faixa da prioridade informada, aguardando no máximo
+	 * o tempo limite se a fila estiver cheia
+	 *
+	 * @return false se o tempo limite se esgotou
+	 */
+	boolean offer(Pack p, Priority prio, long timeout, TimeUnit unit) throws InterruptedException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		final int charge = ByteBudget.charge(p);
+		if (budget != null && !budget.tryAcquire(charge, timeout, unit)) {
+			return false;
+		}
+
+		boolean queued = false;
+		try {
+			long nanos = deadline - System.nanoTime();
+			lock.lockInterruptibly();
+			try {
+				while (!hasRoom(charge)) {
+					if (nanos <= 0) {
+						return false;
+					}
+					nanos = notFull.awaitNanos(nanos);
+				}
+				enqueue(p, prio, charge);
+				queued = true;
+				return true;
+			} finally {
+				lock.unlock();
+			}
+		} finally {
+			if (!queued) {
+				unreserve(charge);
+			}
+		}
+	}
+
+	/**
+	 * Insere um pacote na faixa da prioridade informada, aguardando enquanto a
+	 * fila estiver cheia
+	 */
+	void put(Pack p, Priority prio) throws InterruptedException {
+		final int charge = ByteBudget.charge(p);
+		if (budget != null) {
+			budget.acquire(charge);
+		}
+
+		boolean queued = false;
+		try {
+			lock.lockInterruptibly();
+			try {
+				while (!hasRoom(charge)) {
+					notFull.await();
+				}
+				enqueue(p, prio, charge);
+				queued = true;
+			} finally {
+				lock.unlock();
+			}
+		} finally {
+			if (!queued) {
+				unreserve(charge);
+			}
+		}
+	}
+
+	/**
+	 * Indica se há espaço para um pacote. Um pacote maior que o limite em
+	 * bytes só é aceito com a fila vazia.
+	 */
+	private boolean hasRoom(int charge) {
+		if (count == capacity) {
+			return false;
+		}
+		return maxBytes == 0 || count == 0 || bytes + charge <= maxBytes;
+	}
+
+	/** Devolve ao orçamento a reserva de um pacote que não foi enfileirado */
+	private void unreserve(int charge) {
+		if (budget != null) {
+			budget.release(charge);
+		}
+	}
+
+	/**
+	 * Habilita o agrupamento das mensagens pequenas de cada conexão
+	 *
+	 * @param flushDelay Espera máxima de uma mensagem por outras, em
+	 *            nanosegundos, ou -1 para desabilitar
+	 */
+	void setCoalescing(long flushDelay) {
+		this.coalescingNanos = flushDelay;
+	}
+
+	boolean isCoalescing() {
+		return this.coalescingNanos >= 0;
+	}
+
+	private void enqueue(Pack p, Priority prio, int charge) {
+		lanes[prio.ordinal()].addLast(new Entry(p, System.nanoTime()));
+		count++;
+		bytes += charge;
+		notEmpty.signal();
+	}
+
+	/** Desconta os pacotes que deixaram a fila, devolvendo-os ao orçamento */
+	private void dequeued(List<Entry> entries) {
+		long freed = 0;
+		for (Entry e : entries) {
+			freed += ByteBudget.charge(e.pack);
+		}
+
+		count -= entries.size();
+		bytes -= freed;
+		if (budget != null) {
+			budget.release(freed);
+		}
+		notFull.signalAll();
+	}
+
+	/**
+	 * Retira o primeiro pacote que pode ser enviado, aguardando no máximo o
+	 * tempo limite se não houver nenhum. Um pacote só pode ser enviado se sua
+	 * conexão (ou fluxo) não tem outro pacote aguardando ACK. Os pacotes que
+	 * não podem ser enviados permanecem em suas posições e, dentro de uma
+	 * faixa, nenhum pacote passa à frente de outro da mesma conexão (ou fluxo).
+	 *
+	 * @param assigner Associa os pacotes às suas conexões
+	 * @return O pacote associado à conexão ou null se o tempo limite se esgotou
+	 */
+	InternalPack take(Assigner assigner, long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (true) {
+				flushAt = 0;
+				if (count > 0) {
+					final InternalPack p = assignNext(assigner);
+					if (p != null) {
+						return p;
+					}
+				}
+
+				if (nanos <= 0) {
+					return null;
+				}
+
+				// Acorda também no vencimento da espera de um agrupamento ou de um pacote espaçado
+				final long wait = (flushAt != 0) ? Math.max(1, Math.min(nanos, flushAt - System.nanoTime())) : nanos;
+				nanos -= wait - notEmpty.awaitNanos(wait);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Percorre as faixas na ordem de escolha e associa o primeiro pacote que
+	 * pode ser enviado. As faixas com pacotes não escolhidas contam mais uma
+	 * vez preterida.
+	 */
+	private InternalPack assignNext(Assigner assigner) {
+		final Set<Long> busy = new HashSet<>();
+
+		for (int lane : laneOrder()) {
+			Iterator<Entry> it = lanes[lane].iterator();
+			while (it.hasNext()) {
+				final Entry e = it.next();
+				final Pack p = e.pack;
+				final Long key = key(p);
+				if (busy.contains(key)) {
+					continue;
+				}
+				if (assigner.isBusy(p)) {
+					busy.add(key);
+					continue;
+				}
+
+				final List<Entry> batch = batch(lane, e, key, assigner);
+				if (batch == null) {
+					// Aguarda outras mensagens para agrupar
+					busy.add(key);
+					continue;
+				}
+
+				// Pacotes acima da taxa aguardam na fila, sem atrasar os demais
+				final long delay = assigner.pacingDelay(p, payloadLength(batch));
+				if (delay > 0) {
+					wakeAt(System.nanoTime() + delay);
+					busy.add(key);
+					continue;
+				}
+
+				// O grupo só é montado quando de fato pode ser enviado
+				final Pack candidate = (batch.size() > 1) ? BatchPack.of(packs(batch)) : p;
+				final InternalPack assigned = assigner.assign(candidate, e.queuedNanos);
+				if (assigned == BUSY) {
+					busy.add(key);
+					continue;
+				}
+
+				// Pacotes associados ou descartados: deixam a fila
+				it.remove();
+				for (int i = 1; i < batch.size(); i++) {
+					removeSame(lanes[lane], batch.get(i));
+				}
+				dequeued(batch);
+				if (assigned != null) {
+					served(lane);
+					return assigned;
+				}
+
+				// A faixa mudou além do iterador: recomeça, pulando as chaves
+				// já ocupadas
+				if (batch.size() > 1) {
+					it = lanes[lane].iterator();
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Reúne o pacote e os seguintes da mesma conexão na faixa, em ordem, até
+	 * o limite do payload do grupo. Sem agrupamento, devolve somente o pacote.
+	 *
+	 * @return Os pacotes a enviar juntos ou null se o grupo não está cheio e a
+	 *         espera do primeiro pacote ainda não venceu
+	 */
+	private List<Entry> batch(int lane, Entry first, Long key, Assigner assigner) {
+		final long delay = this.coalescingNanos;
+		final int limit = (delay < 0) ? 0 : assigner.batchLimit(first.pack);
+		int len = BatchPack.LEN_FRAME_HEADER + first.pack.getPayloadLength();
+		if (limit == 0 || len > limit) {
+			return Collections.singletonList(first);
+		}
+
+		final List<Entry> batch = new ArrayList<>();
+		batch.add(first);
+		boolean full = false;
+		boolean found = false;
+		for (Entry e : lanes[lane]) {
+			if (e == first) {
+				found = true;
+				continue;
+			}
+			if (!found || !key.equals(key(e.pack))) {
+				continue;
+			}
+
+			len += BatchPack.LEN_FRAME_HEADER + e.pack.getPayloadLength();
+			if (len > limit) {
+				full = true;
+				break;
+			}
+			batch.add(e);
+		}
+
+		// Um grupo incompleto aguarda outras mensagens até o vencimento
+		if (!full && delay > 0) {
+			final long due = first.queuedNanos + delay;
+			if (due - System.nanoTime() > 0) {
+				wakeAt(due);
+				return null;
+			}
+		}
+
+		return batch;
+	}
+
+	/** Payload do pacote ou do grupo de mensagens montado por {@link BatchPack#of(List)} */
+	private static int payloadLength(List<Entry> batch) {
+		if (batch.size() == 1) {
+			return batch.get(0).pack.getPayloadLength();
+		}
+
+		int len = 0;
+		for (Entry e : batch) {
+			len += BatchPack.LEN_FRAME_HEADER + e.pack.getPayloadLength();
+		}
+		return len;
+	}
+
+	private static List<Pack> packs(List<Entry> batch) {
+		final List<Pack> packs = new ArrayList<>(batch.size());
+		for (Entry e : batch) {
+			packs.add(e.pack);
+		}
+		return packs;
+	}
+
+	/** Antecipa o próximo vencimento de uma espera, se necessário */
+	private void wakeAt(long due) {
+		flushAt = (flushAt == 0 || due - flushAt < 0) ? due : flushAt;
+	}
+
+	/** Remove da faixa a própria entrada, e não uma igual a ela */
+	private static void removeSame(ArrayDeque<Entry> lane, Entry e) {
+		final Iterator<Entry> it = lane.iterator();
+		while (it.hasNext()) {
+			if (it.next() == e) {
+				it.remove();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Ordem em que as faixas são percorridas: a primeira faixa preterida vezes
+	 * demais, se houver, e depois as demais em ordem de prioridade
+	 */
+	private int[] laneOrder() {
+		final int[] order = new int[lanes.length];
+		int starving = -1;
+		for (int i = 1; i < lanes.length; i++) {
+			if (skipped[i] >= STARVATION_LIMIT && !lanes[i].isEmpty()) {
+				starving = i;
+				break;
+			}
+		}
+
+		int n = 0;
+		if (starving != -1) {
+			order[n++] = starving;
+		}
+		for (int i = 0; i < lanes.length; i++) {
+			if (i != starving) {
+				order[n++] = i;
+			}
+		}
+
+		return order;
+	}
+
+	private void served(int lane) {
+		for (int i = 0; i < lanes.length; i++) {
+			if (i == lane) {
+				skipped[i] = 0;
+			} else if (!lanes[i].isEmpty()) {
+				skipped[i]++;
+			}
+		}
+	}
+
+	/** Chave de ordenação de um pacote: sua conexão e seu fluxo */
+	private static Long key(Pack p) {
+		final short streamId = (p instanceof StreamPack) ? ((StreamPack) p).getStreamId() : 0;
+		return (long) p.getConnectionId() << 16 | (streamId & 0xffff);
+	}
+
+	/**
+	 * Avisa que alguma conexão pode ter deixado de aguardar ACK, de modo que
+	 * seus pacotes possam ser enviados
+	 */
+	void signalReady() {
+		lock.lock();
+		try {
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Esvazia a fila, acordando quem aguarda espaço */
+	void clear() {
+		lock.lock();
+		try {
+			for (ArrayDeque<Entry> lane : lanes) {
+				lane.clear();
+			}
+			count = 0;
+			if (budget != null) {
+				budget.release(bytes);
+			}
+			bytes = 0;
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Bytes enfileirados */
+	long bytes() {
+		lock.lock();
+		try {
+			return bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	int size() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -1,23 +1,85 @@
 package lsp;
 
+import java.nio.ByteBuffer;
+
 public class Pack {
-	private short connId;
-	private final byte[] payload;
+	private int connId;
+
+	/* Visão do payload, da posição 0 até o limite, nunca alterada */
+	private final ByteBuffer payload;
 
-	public Pack(short connId, byte[] payload) {
+	public Pack(int connId, byte[] payload) {
+		this(connId, ByteBuffer.wrap(payload));
+	}
+
+	/**
+	 * Constrói um pacote cujo payload é um trecho do vetor. O trecho não é
+	 * copiado e não deve ser alterado até a mensagem ser reconhecida.
+	 */
+	public Pack(int connId, byte[] array, int offset, int length) {
+		this(connId, ByteBuffer.wrap(array, offset, length));
+	}
+
+	/**
+	 * Constrói um pacote cujo payload é o conteúdo restante do buffer, que
+	 * pode ser direto. O conteúdo não é copiado e não deve ser alterado até a
+	 * mensagem ser reconhecida; a posição do buffer não é alterada.
+	 */
+	public Pack(int connId, ByteBuffer payload) {
 		this.connId = connId;
-		this.payload = payload;
+		this.payload = payload.slice();
 	}
 
+	/**
+	 * Id da conexão no formato de 16 bits. Conexões com cabeçalho largo podem
+	 * ter ids maiores, obtidos por {@link #getConnectionId()}.
+	 */
 	public short getConnId() {
+		return (short) connId;
+	}
+
+	/** Id da conexão com 32 bits */
+	public int getConnectionId() {
 		return connId;
 	}
 
-	public void setConnId(short connId) {
+	public void setConnId(int connId) {
 		this.connId = connId;
 	}
 
+	/**
+	 * Payload como vetor de bytes. Se o pacote foi construído sobre um vetor
+	 * inteiro, devolve o próprio vetor; senão devolve uma cópia do trecho.
+	 */
 	public byte[] getPayload() {
-		return payload;
+		if (payload.hasArray() && payload.arrayOffset() == 0 && payload.remaining() == payload.array().length) {
+			return payload.array();
+		}
+
+		final byte[] copy = new byte[payload.remaining()];
+		payload.duplicate().get(copy);
+		return copy;
+	}
+
+	/** Payload como buffer somente leitura, sem cópia */
+	public ByteBuffer getPayloadBuffer() {
+		return payload.asReadOnlyBuffer();
+	}
+
+	/** Payload sem cópia para uso interno, com acesso ao vetor, se houver */
+	ByteBuffer payloadView() {
+		return payload.duplicate();
+	}
+
+	public int getPayloadLength() {
+		return payload.remaining();
+	}
+
+	/**
+	 * Posições das mensagens do pacote no diário de envio ou null se não foram
+	 * registradas. Somente os pacotes criados pelo cliente com diário as têm.
+	 */
+	long[] journaled() {
+		return null;
 	}
 }
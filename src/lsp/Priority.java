@@ -0,0 +1,17 @@
+package lsp;
+
+/**
+ * Classe de prioridade de uma mensagem enviada. Mensagens de maior
+ * prioridade são enviadas antes das demais já enfileiradas, mas as de menor
+ * prioridade nunca esperam indefinidamente.
+ *
+ * @author Wagner Macedo
+ */
+public enum Priority {
+	/** Mensagens de controle e sinais de vida, sensíveis à latência */
+	CONTROL,
+	/** Prioridade padrão */
+	NORMAL,
+	/** Transferências volumosas, tolerantes à latência */
+	BULK
+}
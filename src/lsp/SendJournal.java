@@ -0,0 +1,316 @@
+package lsp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Diário das mensagens enviadas e ainda não reconhecidas, em anel e mapeado
+ * em memória. Cada mensagem é registrada antes do envio e marcada quando o seu
+ * ACK chega; o início do anel avança sobre as mensagens reconhecidas. Ao abrir
+ * um diário existente, as mensagens pendentes da execução anterior podem ser
+ * reenviadas.
+ *
+ * A gravação em disco é feita em grupo: quem aguarda a gravação força de uma
+ * vez todos os registros feitos até então, e os demais que aguardam no mesmo
+ * momento aproveitam essa gravação.
+ *
+ * Formato: cabeçalho de {@value #LEN_HEADER} bytes (assinatura, versão,
+ * capacidade, início, fim e quantidade de registros) seguido da área de
+ * registros. Cada registro contém o tamanho da mensagem, o estado e a
+ * mensagem. Um tamanho negativo marca que o próximo registro está no início
+ * da área.
+ *
+ * @author Wagner Macedo
+ */
+final class SendJournal implements Closeable {
+	private static final int MAGIC = 0x4c53504a; // "LSPJ"
+	private static final int VERSION = 1;
+	private static final int LEN_HEADER = 40;
+	private static final int WRAP = -1;
+
+	/* Posições dos campos do cabeçalho */
+	private static final int H_CAPACITY = 8;
+	private static final int H_HEAD = 16;
+	private static final int H_TAIL = 24;
+	private static final int H_COUNT = 32;
+
+	/* Tamanho e estado */
+	private static final int LEN_RECORD_HEADER = 4 + 1;
+	private static final byte PENDING = 0;
+	private static final byte ACKED = 1;
+
+	private final FileChannel channel;
+	private final MappedByteBuffer map;
+	private final int capacity;
+
+	private int head;
+	private int tail;
+	private int count;
+
+	/* Registros feitos e gravados em disco, em quantidade e em bytes */
+	private long appended;
+	private long synced;
+	private long appendedBytes;
+	private long syncedBytes;
+	private boolean forcing;
+
+	private SendJournal(FileChannel channel, MappedByteBuffer map, int capacity) {
+		this.channel = channel;
+		this.map = map;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Abre um diário, criando-o vazio se o arquivo não existir
+	 *
+	 * @param capacity Tamanho em bytes da área de registros de um novo diário
+	 */
+	static SendJournal open(Path file, int capacity) throws IOException {
+		final FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			if (ch.size() == 0) {
+				final MappedByteBuffer map = ch.map(MapMode.READ_WRITE, 0, LEN_HEADER + capacity);
+				map.putInt(0, MAGIC);
+				map.putInt(4, VERSION);
+				map.putLong(H_CAPACITY, capacity);
+
+				final SendJournal journal = new SendJournal(ch, map, capacity);
+				journal.writeState();
+				map.force();
+				return journal;
+			}
+
+			final MappedByteBuffer map = ch.map(MapMode.READ_WRITE, 0, ch.size());
+			if (ch.size() < LEN_HEADER || map.getInt(0) != MAGIC || map.getInt(4) != VERSION
+					|| map.getLong(H_CAPACITY) != ch.size() - LEN_HEADER) {
+				throw new IOException("Diário inválido: " + file);
+			}
+
+			final SendJournal journal = new SendJournal(ch, map, (int) map.getLong(H_CAPACITY));
+			journal.head = (int) map.getLong(H_HEAD);
+			journal.tail = (int) map.getLong(H_TAIL);
+			journal.count = (int) map.getLong(H_COUNT);
+			return journal;
+		} catch (IOException | RuntimeException e) {
+			ch.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Registra uma mensagem como pendente, aguardando enquanto não houver
+	 * espaço no anel. O registro só está garantido em disco depois de
+	 * {@link #sync()}.
+	 *
+	 * @return Posição do registro, a informar em {@link #acked(long[])}
+	 */
+	synchronized long append(ByteBuffer payload) {
+		final int len = LEN_RECORD_HEADER + payload.remaining();
+		if (len > capacity) {
+			throw new IllegalArgumentException("Mensagem maior que o diário");
+		}
+
+		try {
+			while (!fits(len)) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Escrita interrompida aguardando espaço no diário");
+		}
+
+		// Se o registro não cabe até o fim da área, continua no início
+		if (tail + len > capacity) {
+			if (capacity - tail >= 4) {
+				map.putInt(LEN_HEADER + tail, WRAP);
+			}
+			tail = 0;
+		}
+
+		final int pos = tail;
+		map.position(LEN_HEADER + pos);
+		map.putInt(payload.remaining());
+		map.put(PENDING);
+		map.put(payload.duplicate());
+
+		tail += len;
+		count++;
+		appended++;
+		appendedBytes += len;
+		writeState();
+		return pos;
+	}
+
+	/** Indica se há espaço livre contíguo para um registro */
+	private boolean fits(int len) {
+		if (count == 0) {
+			head = tail = 0;
+			return true;
+		}
+		if (tail == head) {
+			return false;
+		}
+		if (tail > head) {
+			return tail + len <= capacity || len <= head;
+		}
+		return tail + len <= head;
+	}
+
+	/**
+	 * Grava em disco todos os registros feitos até agora. Se outra thread já
+	 * está gravando, aguarda o fim dessa gravação e grava o restante em uma
+	 * só vez pelos que aguardam.
+	 */
+	void sync() {
+		final long target;
+		synchronized (this) {
+			target = appended;
+		}
+		sync(target);
+	}
+
+	/**
+	 * Grava em disco os registros feitos até agora somente se os ainda não
+	 * gravados somam ao menos os bytes informados
+	 */
+	void sync(int threshold) {
+		final long target;
+		synchronized (this) {
+			if (appendedBytes - syncedBytes < threshold) {
+				return;
+			}
+			target = appended;
+		}
+		sync(target);
+	}
+
+	private void sync(long target) {
+		boolean interrupted = false;
+		while (true) {
+			final long flushing;
+			final long flushingBytes;
+			synchronized (this) {
+				while (forcing && synced < target) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				if (synced >= target) {
+					break;
+				}
+				forcing = true;
+				flushing = appended;
+				flushingBytes = appendedBytes;
+			}
+
+			try {
+				map.force();
+			} finally {
+				synchronized (this) {
+					forcing = false;
+					synced = Math.max(synced, flushing);
+					syncedBytes = Math.max(syncedBytes, flushingBytes);
+					notifyAll();
+				}
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Marca como reconhecidas, ou descartadas, as mensagens das posições
+	 * informadas e avança o início do anel sobre as reconhecidas
+	 */
+	synchronized void acked(long[] positions) {
+		for (long pos : positions) {
+			map.put(LEN_HEADER + (int) pos + 4, ACKED);
+		}
+
+		while (count > 0) {
+			if (capacity - head < 4 || map.getInt(LEN_HEADER + head) == WRAP) {
+				head = 0;
+				continue;
+			}
+			if (map.get(LEN_HEADER + head + 4) != ACKED) {
+				break;
+			}
+
+			head += LEN_RECORD_HEADER + map.getInt(LEN_HEADER + head);
+			count--;
+		}
+
+		writeState();
+		notifyAll();
+	}
+
+	/** Mensagem pendente no diário */
+	static final class Record {
+		final long position;
+		final byte[] payload;
+
+		Record(long position, byte[] payload) {
+			this.position = position;
+			this.payload = payload;
+		}
+	}
+
+	/**
+	 * Mensagens ainda não reconhecidas, da mais antiga à mais recente
+	 */
+	synchronized List<Record> pending() {
+		final List<Record> records = new ArrayList<>();
+		int pos = head;
+		for (int i = 0; i < count; i++) {
+			if (capacity - pos < 4 || map.getInt(LEN_HEADER + pos) == WRAP) {
+				pos = 0;
+			}
+
+			final int len = map.getInt(LEN_HEADER + pos);
+			if (map.get(LEN_HEADER + pos + 4) == PENDING) {
+				final byte[] payload = new byte[len];
+				map.position(LEN_HEADER + pos + LEN_RECORD_HEADER);
+				map.get(payload);
+				records.add(new Record(pos, payload));
+			}
+			pos += LEN_RECORD_HEADER + len;
+		}
+
+		return records;
+	}
+
+	/** Bytes registrados e ainda não gravados em disco */
+	synchronized long unsyncedBytes() {
+		return appendedBytes - syncedBytes;
+	}
+
+	/** Quantidade de registros no anel, reconhecidos ou não */
+	synchronized int size() {
+		return count;
+	}
+
+	private void writeState() {
+		map.putLong(H_HEAD, head);
+		map.putLong(H_TAIL, tail);
+		map.putLong(H_COUNT, count);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		map.force();
+		channel.close();
+	}
+}
@@ -0,0 +1,60 @@
+package lsp;
+
+/**
+ * Latências de envio de mensagens, separadas em três etapas: a espera na fila
+ * de saída até o primeiro envio, a espera do primeiro envio até o ACK e o
+ * total, da escrita até o ACK. Comparar as duas primeiras indica se o atraso
+ * vem da fila local ou da rede.
+ *
+ * @author Wagner Macedo
+ */
+public final class SendLatency {
+	private final LatencyHistogram queueDelay = new LatencyHistogram();
+	private final LatencyHistogram ackLatency = new LatencyHistogram();
+	private final LatencyHistogram writeLatency = new LatencyHistogram();
+
+	/** Registra o primeiro envio de um pacote que entrou na fila no instante informado */
+	void transmitted(long queuedNanos, long sentNanos) {
+		queueDelay.record(sentNanos - queuedNanos);
+	}
+
+	/** Registra o ACK de um pacote */
+	void acked(long queuedNanos, long sentNanos, long ackNanos) {
+		ackLatency.record(ackNanos - sentNanos);
+		writeLatency.record(ackNanos - queuedNanos);
+	}
+
+	/** Soma a estas latências as de outro registro */
+	void add(SendLatency other) {
+		queueDelay.add(other.queueDelay);
+		ackLatency.add(other.ackLatency);
+		writeLatency.add(other.writeLatency);
+	}
+
+	/** Cópia dos registros atuais */
+	SendLatency copy() {
+		final SendLatency s = new SendLatency();
+		s.add(this);
+		return s;
+	}
+
+	/** Tempo entre a entrada na fila de saída e o primeiro envio */
+	public LatencyHistogram getQueueDelay() {
+		return queueDelay;
+	}
+
+	/** Tempo entre o primeiro envio e o ACK, que inclui os reenvios */
+	public LatencyHistogram getAckLatency() {
+		return ackLatency;
+	}
+
+	/** Tempo entre a entrada na fila de saída e o ACK */
+	public LatencyHistogram getWriteLatency() {
+		return writeLatency;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("fila: %s%nACK:  %s%ntotal: %s", queueDelay, ackLatency, writeLatency);
+	}
+}
@@ -0,0 +1,83 @@
+package lsp;
+
+/**
+ * Aritmética dos números de sequência. Internamente as sequências têm 64
+ * bits e nunca dão a volta; no datagrama vão somente os 16 ou 32 bits menos
+ * significativos, conforme o cabeçalho. O receptor estende o número recebido
+ * para 64 bits escolhendo o valor mais próximo do último recebido, como na
+ * aritmética de números de série da RFC 1982, de modo que a volta do
+ * contador de 16 bits não é confundida com uma mensagem antiga.
+ *
+ * A sequência 0 nunca vai no datagrama, pois o ACK 0 é reservado para a
+ * conexão e para os ACKs de manutenção: o número seguinte a um que termina
+ * em 0xffff (ou 0xffffffff) pula o 0. Os participantes que não negociaram
+ * {@link Handshake#EXT_SKIP_ZERO} passam pelo 0, e a conexão com eles segue
+ * a mesma regra nos dois sentidos.
+ *
+ * @author Wagner Macedo
+ */
+final class SeqNum {
+	/* Classificação de um número recebido em relação ao esperado */
+	static final int OLD = -1;
+	static final int NEXT = 0;
+	static final int FUTURE = 1;
+
+	// Classe utilitária, nunca instanciável
+	private SeqNum() {
+	}
+
+	/** Número que vai no datagrama */
+	static int wire(long seq, boolean wide) {
+		return wide ? (int) seq : (short) seq;
+	}
+
+	/** Próximo número da sequência, pulando os que vão como 0 no datagrama */
+	static long next(long seq, boolean wide) {
+		return next(seq, wide, true);
+	}
+
+	/**
+	 * Próximo número da sequência
+	 *
+	 * @param skipZero
+	 *            se pula os números que vão como 0 no datagrama
+	 */
+	static long next(long seq, boolean wide, boolean skipZero) {
+		long n = seq + 1;
+		if (skipZero && wire(n, wide) == 0) {
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Estende um número recebido para 64 bits, escolhendo o valor mais
+	 * próximo da referência
+	 */
+	static long extend(long reference, int wire, boolean wide) {
+		final int delta = wide ? wire - (int) reference : (short) (wire - (short) reference);
+		return reference + delta;
+	}
+
+	/**
+	 * Classifica um número recebido em relação ao último recebido
+	 *
+	 * @return {@link #NEXT} se é o esperado, {@link #OLD} se já foi recebido
+	 *         ou {@link #FUTURE} se algum anterior ainda não chegou
+	 */
+	static int classify(long last, int wire, boolean wide) {
+		return classify(last, wire, wide, true);
+	}
+
+	/**
+	 * Classifica um número recebido de uma sequência que pode passar pelo 0
+	 *
+	 * @see #classify(long, int, boolean)
+	 * @see #next(long, boolean, boolean)
+	 */
+	static int classify(long last, int wire, boolean wide, boolean skipZero) {
+		final long expected = next(last, wide, skipZero);
+		final long seq = extend(expected, wire, wide);
+		return (seq == expected) ? NEXT : (seq < expected) ? OLD : FUTURE;
+	}
+}
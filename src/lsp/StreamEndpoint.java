@@ -0,0 +1,74 @@
+package lsp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extremidade de uma conexão LSP vista pelos fluxos: o lado cliente ou uma
+ * conexão específica do lado servidor.
+ *
+ * @author Wagner Macedo
+ */
+abstract class StreamEndpoint {
+	/**
+	 * Envia uma mensagem pelo fluxo, aguardando enquanto a fila de saída
+	 * estiver cheia.
+	 *
+	 * @throws ClosedConnectionException
+	 *             se a conexão estiver encerrada
+	 */
+	final void write(short streamId, byte[] payload) {
+		write(streamId, ByteBuffer.wrap(payload));
+	}
+
+	/**
+	 * Envia o trecho restante do buffer como mensagem pelo fluxo, sem cópia.
+	 * O trecho não deve ser alterado até a mensagem ser reconhecida.
+	 *
+	 * @see #write(short, byte[])
+	 */
+	abstract void write(short streamId, ByteBuffer payload);
+
+	/**
+	 * Recebe uma mensagem do fluxo. Bloqueia até que haja uma mensagem.
+	 *
+	 * @return A mensagem ou null se a conexão foi encerrada
+	 */
+	abstract byte[] read(short streamId);
+
+	static StreamEndpoint of(final LspClient client) {
+		return new StreamEndpoint() {
+			@Override
+			void write(short streamId, ByteBuffer payload) {
+				if (!client.write(streamId, payload, -1, TimeUnit.MILLISECONDS)) {
+					throw new ClosedConnectionException(client.getConnectionId());
+				}
+			}
+
+			@Override
+			byte[] read(short streamId) {
+				return client.read(streamId);
+			}
+		};
+	}
+
+	static StreamEndpoint of(final LspServer server, final int connId) {
+		return new StreamEndpoint() {
+			@Override
+			void write(short streamId, ByteBuffer payload) {
+				if (!server.write(connId, streamId, payload, -1, TimeUnit.MILLISECONDS)) {
+					throw new ClosedConnectionException(connId);
+				}
+			}
+
+			@Override
+			byte[] read(short streamId) {
+				try {
+					return server.read(connId, streamId);
+				} catch (ClosedConnectionException e) {
+					return null;
+				}
+			}
+		};
+	}
+}
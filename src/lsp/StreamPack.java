@@ -0,0 +1,24 @@
+package lsp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pacote destinado a um fluxo de uma conexão. Usado somente na fila de saída.
+ */
+final class StreamPack extends Pack {
+	private final short streamId;
+
+	StreamPack(int connId, short streamId, byte[] payload) {
+		this(connId, streamId, ByteBuffer.wrap(payload));
+	}
+
+	/** Pacote sobre o trecho restante do buffer, que não é copiado */
+	StreamPack(int connId, short streamId, ByteBuffer payload) {
+		super(connId, payload);
+		this.streamId = streamId;
+	}
+
+	short getStreamId() {
+		return this.streamId;
+	}
+}
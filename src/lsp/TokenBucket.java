@@ -0,0 +1,106 @@
+package lsp;
+
+/**
+ * Balde de fichas para limitar a taxa de eventos, com rajadas de até
+ * {@code burst} fichas. Implementado pelo instante teórico de chegada: cada
+ * ficha consumida adianta esse instante em um intervalo, e o consumo só é
+ * permitido enquanto ele não ultrapassa o agora mais a tolerância da rajada.
+ *
+ * Também espaça envios: as fichas são bytes, o envio aguarda
+ * {@link #delayNanos(int)} e depois consome as fichas com
+ * {@link #consume(int)}.
+ *
+ * @author Wagner Macedo
+ */
+final class TokenBucket {
+	/*
+	 * O intervalo entre fichas é guardado em 1/1024 de nanosegundo, para que
+	 * taxas altas (mais de uma ficha por nanosegundo) não sejam arredondadas
+	 */
+	private static final int FRACTION_BITS = 10;
+	private static final long FRACTION_MASK = (1L << FRACTION_BITS) - 1;
+
+	private final Clock clock;
+	private long interval;
+	private long tolerance;
+	private long burst;
+
+	/* Instante teórico de chegada, em nanosegundos, e a sua fração */
+	private long tat;
+	private long tatFraction;
+
+	/**
+	 * @param rate
+	 *            Fichas por segundo
+	 * @param burst
+	 *            Quantidade máxima de fichas acumuladas
+	 * @param clock
+	 *            Relógio que mede o tempo entre as fichas
+	 */
+	TokenBucket(long rate, long burst, Clock clock) {
+		if (rate <= 0 || burst <= 0)
+			throw new IllegalArgumentException("Taxa e rajada devem ser positivas");
+
+		this.clock = clock;
+		this.burst = burst;
+		this.tat = clock.nanos();
+		setRate(rate);
+	}
+
+	/** Altera a taxa, mantendo a rajada e as fichas já consumidas */
+	synchronized void setRate(long rate) {
+		this.interval = Math.max(1, (1_000_000_000L << FRACTION_BITS) / rate);
+		this.tolerance = (this.interval * burst) >> FRACTION_BITS;
+	}
+
+	/** Consome uma ficha, se houver */
+	boolean tryAcquire() {
+		return tryAcquire(1);
+	}
+
+	/** Consome as fichas informadas, se houver todas */
+	synchronized boolean tryAcquire(int tokens) {
+		final long now = clock.nanos();
+		final long next = advance(now, tokens);
+		if (next - now > tolerance) {
+			return false;
+		}
+
+		consume(now, tokens);
+		return true;
+	}
+
+	/**
+	 * Tempo até haver as fichas informadas, em nanosegundos, ou 0 se já há.
+	 * Mais fichas que a rajada estão disponíveis quando o balde está cheio.
+	 */
+	synchronized long delayNanos(int tokens) {
+		final long now = clock.nanos();
+		final long excess = advance(now, (int) Math.min(tokens, burst)) - now - tolerance;
+		return Math.max(0, excess);
+	}
+
+	/** Consome as fichas informadas, mesmo que não haja todas */
+	synchronized void consume(int tokens) {
+		consume(clock.nanos(), tokens);
+	}
+
+	private void consume(long now, int tokens) {
+		if (tat - now < 0) {
+			tat = now;
+			tatFraction = 0;
+		}
+
+		final long total = tatFraction + interval * tokens;
+		tat += total >> FRACTION_BITS;
+		tatFraction = total & FRACTION_MASK;
+	}
+
+	/** Instante teórico de chegada se as fichas informadas forem consumidas */
+	private long advance(long now, int tokens) {
+		if (tat - now < 0) {
+			return now + ((interval * tokens) >> FRACTION_BITS);
+		}
+		return tat + ((tatFraction + interval * tokens) >> FRACTION_BITS);
+	}
+}
@@ -0,0 +1,239 @@
+package lsp;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Relógio virtual e determinístico. O tempo começa em 0 e só avança com
+ * {@link #advance(long, TimeUnit)}, que executa na thread chamadora, em ordem
+ * de vencimento, as tarefas agendadas até o novo momento. Milhares de épocas
+ * são simuladas em milisegundos e sempre na mesma ordem.
+ *
+ * As threads bloqueadas em {@link #sleep(long)} e {@link #poll(BlockingQueue, long)}
+ * aguardam no monitor do relógio e só são liberadas quando o tempo virtual
+ * alcança o fim da espera ou, no caso da fila, quando um elemento é inserido
+ * por {@link #offer(BlockingQueue, Object)}.
+ *
+ * @author Wagner Macedo
+ */
+final class VirtualClock extends Clock {
+	private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+	/* Momento atual em nanosegundos */
+	private long now;
+	private long taskCounter;
+
+	@Override
+	synchronized long millis() {
+		return TimeUnit.NANOSECONDS.toMillis(now);
+	}
+
+	@Override
+	synchronized long nanos() {
+		return now;
+	}
+
+	@Override
+	synchronized ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long delay, long period, TimeUnit unit) {
+		final Task t = new Task(task, unit.toNanos(period));
+		t.time = now + unit.toNanos(delay);
+		t.order = taskCounter++;
+		tasks.add(t);
+		return t;
+	}
+
+	/**
+	 * Avança o tempo virtual, executando as tarefas que vencerem no caminho.
+	 * Uma tarefa periódica pode executar várias vezes em um mesmo avanço.
+	 */
+	void advance(long time, TimeUnit unit) {
+		final long target;
+		synchronized (this) {
+			target = now + unit.toNanos(time);
+		}
+
+		while (true) {
+			final Task t;
+			synchronized (this) {
+				t = tasks.peek();
+				if (t == null || t.time > target) {
+					now = target;
+					notifyAll();
+					return;
+				}
+
+				tasks.poll();
+				now = t.time;
+				notifyAll();
+			}
+
+			t.runOnce();
+		}
+	}
+
+	/** Quantidade de tarefas agendadas */
+	synchronized int pendingTasks() {
+		return tasks.size();
+	}
+
+	@Override
+	synchronized void sleep(long millis) throws InterruptedException {
+		final long deadline = now + TimeUnit.MILLISECONDS.toNanos(millis);
+		while (now < deadline) {
+			wait();
+		}
+	}
+
+	/**
+	 * A fila é consultada sob o monitor do relógio, que é notificado pelos
+	 * avanços do tempo e pelas inserções feitas por
+	 * {@link #offer(BlockingQueue, Object)}
+	 */
+	@Override
+	synchronized <T> T poll(BlockingQueue<T> queue, long millis) throws InterruptedException {
+		final long deadline = now + TimeUnit.MILLISECONDS.toNanos(millis);
+		while (true) {
+			final T e = queue.poll();
+			if (e != null) {
+				return e;
+			}
+			if (now >= deadline) {
+				return null;
+			}
+			wait();
+		}
+	}
+
+	@Override
+	synchronized <T> boolean offer(BlockingQueue<T> queue, T e) {
+		if (!queue.offer(e)) {
+			return false;
+		}
+		notifyAll();
+		return true;
+	}
+
+	private final class Task implements ScheduledFuture<Object> {
+		private final Runnable runnable;
+		private final long period;
+
+		/* Vencimento e ordem de agendamento, que desempata os vencimentos */
+		long time;
+		long order;
+
+		/* Estado final, protegido pelo monitor do relógio */
+		private boolean cancelled;
+		private RuntimeException failure;
+
+		Task(Runnable runnable, long period) {
+			this.runnable = runnable;
+			this.period = period;
+		}
+
+		void runOnce() {
+			try {
+				runnable.run();
+			} catch (RuntimeException e) {
+				// Como no agendador do sistema, uma falha encerra a tarefa
+				synchronized (VirtualClock.this) {
+					failure = e;
+					VirtualClock.this.notifyAll();
+				}
+				return;
+			}
+
+			synchronized (VirtualClock.this) {
+				if (!cancelled) {
+					time = now + period;
+					order = taskCounter++;
+					tasks.add(this);
+				}
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			synchronized (VirtualClock.this) {
+				if (isDone()) {
+					return false;
+				}
+				cancelled = true;
+				tasks.remove(this);
+				VirtualClock.this.notifyAll();
+				return true;
+			}
+		}
+
+		@Override
+		public boolean isCancelled() {
+			synchronized (VirtualClock.this) {
+				return cancelled;
+			}
+		}
+
+		@Override
+		public boolean isDone() {
+			synchronized (VirtualClock.this) {
+				return cancelled || failure != null;
+			}
+		}
+
+		/**
+		 * Uma tarefa periódica não tem resultado: aguarda o seu cancelamento
+		 * ou a sua falha
+		 */
+		@Override
+		public Object get() throws InterruptedException, ExecutionException {
+			synchronized (VirtualClock.this) {
+				while (!isDone()) {
+					VirtualClock.this.wait();
+				}
+				return result();
+			}
+		}
+
+		/** Como {@link #get()}, com o tempo limite contado no tempo virtual */
+		@Override
+		public Object get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException, TimeoutException {
+			synchronized (VirtualClock.this) {
+				final long deadline = now + unit.toNanos(timeout);
+				while (!isDone()) {
+					if (now >= deadline) {
+						throw new TimeoutException();
+					}
+					VirtualClock.this.wait();
+				}
+				return result();
+			}
+		}
+
+		private Object result() throws ExecutionException {
+			if (cancelled) {
+				throw new CancellationException();
+			}
+			throw new ExecutionException(failure);
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			synchronized (VirtualClock.this) {
+				return unit.convert(time - now, TimeUnit.NANOSECONDS);
+			}
+		}
+
+		@Override
+		public int compareTo(Delayed o) {
+			final Task t = (Task) o;
+			if (time != t.time) {
+				return (time < t.time) ? -1 : 1;
+			}
+			return (order < t.order) ? -1 : (order == t.order ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package lsp;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class BackpressureTest {
+	static byte[] message(int i) {
+		byte[] payload = new byte[1000];
+		Arrays.fill(payload, (byte) i);
+		return payload;
+	}
+
+	/*
+	 * Com a fila de saída limitada em bytes, o escritor aguarda espaço em vez
+	 * de receber uma exceção
+	 */
+	@Test
+	public void testBlockingWrites() throws Exception {
+		final int messages = 4 * LspSocket.QUEUE_ZISE;
+		LspServer server = new LspServer(0, new LspParams(500, 4));
+		final LspClient client = new LspClient("localhost", server.getPort(),
+				new LspParams(500, 4).withQueueLimits(0, 4 * LspSocket.LEN_WIDE_PACKAGE));
+
+		ExecutorService exec = Executors.newSingleThreadExecutor();
+		Future<?> writer = exec.submit(new Callable<Void>() {
+			public Void call() throws Exception {
+				for (int i = 0; i < messages; i++) {
+					client.write(message(i));
+				}
+				return null;
+			}
+		});
+
+		for (int i = 0; i < messages; i++) {
+			assertArrayEquals(message(i), server.read().getPayload());
+		}
+		writer.get();
+		exec.shutdown();
+
+		client.close();
+		server.closeAll();
+	}
+
+	/*
+	 * O servidor recusa as mensagens que não cabem na entrada e avisa o
+	 * cliente, que as reenvia assim que há espaço
+	 */
+	@Test
+	public void testInputPressure() throws Exception {
+		final int messages = 10;
+		LspServer server = new LspServer(0,
+				new LspParams(500, 4).withQueueLimits(2 * LspSocket.LEN_WIDE_PACKAGE, 0));
+		LspClient client = new LspClient("localhost", server.getPort(), new LspParams(500, 4));
+
+		for (int i = 0; i < messages; i++) {
+			client.write(message(i));
+		}
+		for (int i = 0; i < 100 && client.getStats().getPressureSignals() == 0; i++) {
+			Thread.sleep(10);
+		}
+		assertTrue(client.getStats().getPressureSignals() > 0);
+
+		// As recusadas são reenviadas pelo aviso de espaço, antes das épocas
+		long start = System.nanoTime();
+		for (int i = 0; i < messages; i++) {
+			assertArrayEquals(message(i), server.read().getPayload());
+		}
+		assertTrue(System.nanoTime() - start < 500_000_000L);
+
+		client.close();
+		server.closeAll();
+	}
+
+	/*
+	 * Servidor e cliente dividem um orçamento, que volta a zero quando todas
+	 * as mensagens são entregues
+	 */
+	@Test
+	public void testSharedBudget() throws Exception {
+		final int messages = 100;
+		final ByteBudget budget = new ByteBudget(8 * LspSocket.LEN_WIDE_PACKAGE);
+		LspParams params = new LspParams(500, 4).withByteBudget(budget);
+		LspServer server = new LspServer(0, params);
+		final LspClient client = new LspClient("localhost", server.getPort(), params);
+
+		ExecutorService exec = Executors.newSingleThreadExecutor();
+		Future<?> writer = exec.submit(new Callable<Void>() {
+			public Void call() throws Exception {
+				for (int i = 0; i < messages; i++) {
+					client.write(message(i));
+				}
+				return null;
+			}
+		});
+
+		for (int i = 0; i < messages; i++) {
+			assertArrayEquals(message(i), server.read().getPayload());
+		}
+		writer.get();
+		exec.shutdown();
+		assertEquals(0, budget.getUsed());
+
+		client.close();
+		server.closeAll();
+	}
+}
@@ -0,0 +1,123 @@
+package lsp;
+
+import static org.junit.Assert.*;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CoalescingTest {
+	/* Cabem na fila de saída sem bloquear o envio */
+	static final int MESSAGES = 40;
+
+	/*
+	 * Cliente e servidor reais agrupando muitas mensagens pequenas
+	 */
+	@Test
+	public void testCoalescedDelivery() throws Exception {
+		LspParams params = new LspParams(500, 4).withCoalescing(0, TimeUnit.MILLISECONDS);
+		LspServer server = new LspServer(0, params);
+		LspClient client = new LspClient("localhost", server.getPort(), params);
+
+		List<byte[]> payloads = new ArrayList<>();
+		for (int i = 0; i < MESSAGES; i++) {
+			payloads.add(("msg " + i).getBytes());
+		}
+		assertEquals(MESSAGES, client.write(payloads));
+
+		// Todas as mensagens chegam, em ordem e separadas
+		for (int i = 0; i < MESSAGES; i++) {
+			assertArrayEquals(payloads.get(i), server.read().getPayload());
+		}
+
+		// Um ACK por pacote: menos pacotes que mensagens. O último ACK pode
+		// chegar ao cliente depois da leitura no servidor.
+		long packets = 0;
+		for (int i = 0; i < 100 && packets == 0; i++) {
+			Thread.sleep(10);
+			packets = client.getStats().getAckLatency().getCount();
+		}
+		assertTrue(packets > 0);
+		assertTrue("pacotes: " + packets, packets < MESSAGES);
+
+		client.close();
+		server.closeAll();
+	}
+
+	/*
+	 * Com um servidor antigo, que não negocia os grupos, as mensagens seguem
+	 * em pacotes DATA separados
+	 */
+	@Test
+	public void testLegacyPeer() throws Exception {
+		final DatagramSocket sock = new DatagramSocket();
+		final LspParams params = new LspParams(500, 4).withCoalescing(0, TimeUnit.MILLISECONDS);
+		final LspClient[] client = new LspClient[1];
+
+		Thread connecting = new Thread(new Runnable() {
+			public void run() {
+				try {
+					client[0] = new LspClient("localhost", sock.getLocalPort(), params);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		connecting.start();
+
+		// Responde ao pedido de conexão sem extensões
+		DatagramPacket p = new DatagramPacket(new byte[1024], 1024);
+		sock.receive(p);
+		ByteBuffer.wrap(p.getData()).putShort(TestUtil.ACK).putShort((short) 1).putShort((short) 0);
+		p.setLength(6);
+		while (connecting.isAlive()) {
+			sock.send(p);
+			connecting.join(250);
+		}
+
+		client[0].write(new byte[] {1});
+		client[0].write(new byte[] {2});
+		client[0].write(new byte[] {3});
+
+		for (byte i = 1; i <= 3; i++) {
+			DatagramPacket data = new DatagramPacket(new byte[1024], 1024);
+			sock.receive(data);
+			ByteBuffer buf = ByteBuffer.wrap(data.getData(), 0, data.getLength());
+			assertEquals(TestUtil.DATA, buf.getShort());
+			assertEquals(1, buf.getShort());
+			short seqNum = buf.getShort();
+			assertEquals(1, buf.remaining());
+			assertEquals(i, buf.get());
+
+			DatagramPacket ack = new DatagramPacket(new byte[6], 6, data.getSocketAddress());
+			ByteBuffer.wrap(ack.getData()).putShort(TestUtil.ACK).putShort((short) 1).putShort(seqNum);
+			sock.send(ack);
+		}
+
+		client[0].close();
+		sock.close();
+	}
+
+	/*
+	 * Uma mensagem sozinha aguarda o tempo de espera antes do envio
+	 */
+	@Test
+	public void testFlushDelay() throws Exception {
+		LspServer server = new LspServer(0, new LspParams(500, 4));
+		LspClient client = new LspClient("localhost", server.getPort(),
+				new LspParams(500, 4).withCoalescing(100, TimeUnit.MILLISECONDS));
+
+		long start = System.nanoTime();
+		client.write(new byte[] {1});
+		assertArrayEquals(new byte[] {1}, server.read().getPayload());
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(90));
+
+		client.close();
+		server.closeAll();
+	}
+}
@@ -0,0 +1,75 @@
+package lsp;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CompressionTest {
+	static final byte[] TEXT = ("LSP LSP LSP LSP LSP LSP LSP LSP LSP LSP LSP LSP LSP LSP "
+			+ "LSP LSP LSP LSP LSP LSP LSP LSP LSP LSP LSP LSP LSP LSP").getBytes();
+
+	@Test
+	public void testDeflateInflate() {
+		Compression comp = new Compression(null);
+
+		byte[] deflated = comp.deflate(TEXT);
+		assertNotNull(deflated);
+		assertTrue(deflated.length < TEXT.length);
+		assertArrayEquals(TEXT, comp.inflate(deflated));
+		assertEquals(1, comp.getCompressedPacks());
+	}
+
+	@Test
+	public void testDictionary() {
+		byte[] dict = "LSP ".getBytes();
+		Compression comp = new Compression(dict);
+
+		byte[] deflated = comp.deflate(TEXT);
+		assertArrayEquals(TEXT, comp.inflate(deflated));
+
+		// Sem o mesmo dicionário não é possível descomprimir
+		assertFalse(Arrays.equals(TEXT, new Compression(null).inflate(deflated)));
+	}
+
+	@Test
+	public void testSkipIncompressible() {
+		Compression comp = new Compression(null);
+
+		byte[] noise = new byte[512];
+		new Random(1).nextBytes(noise);
+		assertNull(comp.deflate(noise));
+		assertEquals(1, comp.getSkippedPacks());
+		assertEquals(noise.length, comp.getWireBytes());
+	}
+
+	/*
+	 * Cliente e servidor reais negociando a compressão na conexão
+	 */
+	@Test
+	public void testNegotiation() throws Exception {
+		LspParams params = new LspParams(500, 4).withCompression(null);
+		LspServer server = new LspServer(0, params);
+		LspClient client = new LspClient("localhost", server.getPort(), params);
+		LspClient legacy = new LspClient("localhost", server.getPort(), new LspParams(500, 4));
+
+		assertTrue(client.getStats().isCompression());
+		assertTrue(server.getStats(client.getConnId()).isCompression());
+		assertFalse(legacy.getStats().isCompression());
+		assertFalse(server.getStats(legacy.getConnId()).isCompression());
+
+		client.write(TEXT);
+		Pack pack = server.read();
+		assertArrayEquals(TEXT, pack.getPayload());
+		assertTrue(client.getStats().getCompressionRatio() < 1);
+
+		server.write(new Pack(client.getConnId(), TEXT));
+		assertArrayEquals(TEXT, client.read());
+
+		client.close();
+		legacy.close();
+		server.closeAll();
+	}
+}
@@ -0,0 +1,107 @@
+package lsp;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LspClientGroupTest {
+	/*
+	 * Clientes de vários servidores, com os mesmos ids de conexão, em dois
+	 * sockets: cada um recebe somente as suas respostas
+	 */
+	@Test
+	public void testRouting() throws Exception {
+		LspParams params = new LspParams(500, 4);
+		List<LspServer> servers = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			servers.add(LspLoadGenerator.echoServer(0, params));
+		}
+
+		LspClientGroup group = new LspClientGroup(2, params);
+		List<LspClient> clients = new ArrayList<>();
+		for (int i = 0; i < 6; i++) {
+			clients.add(group.connect("localhost", servers.get(i % 3).getPort()));
+		}
+		assertEquals(6, group.getClientCount());
+		assertEquals(2, new HashSet<>(group.getLocalPorts()).size());
+
+		// Ids repetidos entre os servidores
+		assertEquals(clients.get(0).getConnectionId(), clients.get(1).getConnectionId());
+
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < clients.size(); i++) {
+				clients.get(i).write(("cliente " + i + " rodada " + round).getBytes());
+			}
+			for (int i = 0; i < clients.size(); i++) {
+				assertEquals("cliente " + i + " rodada " + round, new String(clients.get(i).read()));
+			}
+		}
+
+		// O encerramento de um cliente não afeta os demais
+		clients.get(0).close();
+		assertEquals(5, group.getClientCount());
+		clients.get(3).write("ainda".getBytes());
+		assertEquals("ainda", new String(clients.get(3).read()));
+
+		// O encerramento do grupo libera os leitores
+		group.close();
+		assertEquals(0, group.getClientCount());
+		assertNull(clients.get(1).read());
+
+		for (LspServer server : servers) {
+			server.closeAll();
+		}
+	}
+
+	/*
+	 * O servidor identifica as conexões pelo endereço do cliente: a segunda
+	 * conexão ao mesmo servidor usa outro socket do grupo
+	 */
+	@Test
+	public void testSameServer() throws Exception {
+		LspParams params = new LspParams(50, 4);
+		LspServer a = LspLoadGenerator.echoServer(0, params);
+		LspServer b = LspLoadGenerator.echoServer(0, params);
+
+		// O rodízio devolveria o primeiro socket, já conectado a "a"
+		LspClientGroup group = new LspClientGroup(2, params);
+		LspClient first = group.connect("localhost", a.getPort());
+		LspClient other = group.connect("localhost", b.getPort());
+		LspClient second = group.connect("localhost", a.getPort());
+		assertNotEquals(first.getConnectionId(), second.getConnectionId());
+
+		first.write("um".getBytes());
+		second.write("dois".getBytes());
+		other.write("outro".getBytes());
+		assertEquals("um", new String(first.read()));
+		assertEquals("dois", new String(second.read()));
+		assertEquals("outro", new String(other.read()));
+
+		// Não há um terceiro socket livre para "a"
+		try {
+			group.connect("localhost", a.getPort());
+			fail("Terceira conexão ao mesmo servidor em dois sockets");
+		} catch (IllegalStateException e) {
+		}
+
+		// O socket só é liberado depois que o servidor desiste da conexão
+		first.close();
+		try {
+			group.connect("localhost", a.getPort());
+			fail("Socket reutilizado antes do limite de épocas");
+		} catch (IllegalStateException e) {
+		}
+		Thread.sleep(2 * params.getEpoch() * params.getEpochLimit());
+		LspClient third = group.connect("localhost", a.getPort());
+		third.write("tres".getBytes());
+		assertEquals("tres", new String(third.read()));
+
+		group.close();
+		a.closeAll();
+		b.closeAll();
+	}
+}
@@ -7,6 +7,10 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import org.junit.AfterClass;
@@ -58,6 +62,7 @@ public class LspClientTest {
 		p.setSocketAddress(p.getSocketAddress());
 		buf.rewind();
 		buf.asShortBuffer().put(new short[] {ACK, connId, 0});
+		p.setLength(6);	// sem extensões, como um servidor antigo
 
 		// Espera processo de conexão se completar
 		while (connecting.isAlive()) {
@@ -83,6 +88,57 @@ public class LspClientTest {
 		assertArrayEquals(payload, recv);
 	}
 
+	@Test
+	public void testReadBatch() throws Exception {
+		String[] payloads = {"um", "dois", "tres"};
+		for (String payload : payloads) {
+			sock.send(createPacket(DATA, payload.getBytes()));
+		}
+
+		// Os pacotes podem chegar em momentos distintos, então lê até obter
+		// todos, pelo vetor e pela coleção
+		byte[][] dst = new byte[payloads.length][];
+		int n = client.read(dst);
+		assertTrue(n > 0);
+
+		List<byte[]> recv = new ArrayList<>(Arrays.asList(dst).subList(0, n));
+		while (recv.size() < payloads.length) {
+			assertTrue(client.drainTo(recv, payloads.length - recv.size()) > 0);
+		}
+
+		for (int i = 0; i < payloads.length; i++) {
+			assertEquals(payloads[i], new String(recv.get(i)));
+		}
+	}
+
+	/*
+	 * Um leitor em lote bloqueado é acordado pelo encerramento do cliente
+	 */
+	@Test
+	public void testReadBatchClosed() throws Exception {
+		LspServer server = new LspServer(0, new LspParams(500, 4));
+		final LspClient client = new LspClient("localhost", server.getPort(), new LspParams(500, 4));
+		final int[] count = {-1, -1};
+
+		Thread reading = new Thread(new Runnable() {
+			public void run() {
+				count[0] = client.read(new byte[4][]);
+				count[1] = client.drainTo(new ArrayList<byte[]>());
+			}
+		});
+		reading.start();
+		Thread.sleep(100);
+		assertTrue(reading.isAlive());
+
+		client.close();
+		reading.join(5000);
+		assertFalse(reading.isAlive());
+		assertEquals(0, count[0]);
+		assertEquals(0, count[1]);
+
+		server.closeAll();
+	}
+
 	@Test
 	public void testWrite() throws Exception {
 		String payload = "Holla, server!";
@@ -103,4 +159,44 @@ public class LspClientTest {
 		p = createPacket(ACK, connId, (short) 1, "".getBytes());
 		sock.send(p);
 	}
+
+	/*
+	 * Um servidor que nunca responde esgota o limite de épocas. Com o tempo
+	 * virtual, cinco épocas de 10 segundos passam em milisegundos.
+	 */
+	@Test
+	public void testConnectTimeout() throws Exception {
+		final DatagramSocket silent = new DatagramSocket();
+		final VirtualClock clock = new VirtualClock();
+		final LspParams params = new LspParams(10000, 5).withClock(clock);
+		final Exception[] error = new Exception[1];
+
+		Thread connecting = new Thread(new Runnable() {
+			public void run() {
+				try {
+					new LspClient("localhost", silent.getLocalPort(), params);
+				} catch (IOException | TimeoutException e) {
+					error[0] = e;
+				}
+			}
+		});
+		connecting.start();
+
+		// O tempo virtual avança até o cliente desistir
+		while (connecting.isAlive()) {
+			clock.advance(1, TimeUnit.SECONDS);
+			Thread.sleep(1);
+		}
+		assertTrue(error[0] instanceof TimeoutException);
+		assertTrue(clock.millis() >= 50000);
+
+		// Um pedido de conexão foi enviado a cada época
+		silent.setSoTimeout(100);
+		DatagramPacket p = createPacket();
+		for (int i = 0; i < 5; i++) {
+			silent.receive(p);
+			assertEquals(CONNECT, ByteBuffer.wrap(p.getData()).getShort());
+		}
+		silent.close();
+	}
 }
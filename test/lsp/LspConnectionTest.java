@@ -2,7 +2,16 @@ package lsp;
 
 import static org.junit.Assert.*;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.net.InetSocketAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.junit.Test;
 
@@ -13,17 +22,19 @@ public class LspConnectionTest {
 	boolean closed;
 
 	/*
-	 * Este teste confirma se a thread de verificação de status está disparando
-	 * as ações. Não há conexão real envolvida.
+	 * Este teste confirma se a verificação de status está disparando as
+	 * ações. Não há conexão real envolvida e o tempo é virtual.
 	 */
 	@Test
-	public void testStatusChecker() throws InterruptedException {
-		// LspConnection com epoch = 2 msec e epochLimit = 3, portanto a thread
-		// durará 8 msec e deve decrementar o valor de epoch a cada 2 msec e
-		// alterar closed para true no final.
+	public void testStatusChecker() {
+		// LspConnection com epoch = 2 msec e epochLimit = 3. Com uma mensagem
+		// recebida antes da primeira época, a verificação dura 8 msec,
+		// decrementa o valor de epoch a cada 2 msec e altera closed para true
+		// no final.
+		VirtualClock clock = new VirtualClock();
 		epoch = 4;
 		closed = false;
-		LspConnection conn = new LspConnection((short) 1, 1, ADDR, new LspParams(2, 3),
+		LspConnection conn = new LspConnection((short) 1, 1, ADDR, new LspParams(2, 3).withClock(clock),
 				new ConnectionTriggers() {
 					public void doEpochActions() {
 						epoch--;
@@ -38,13 +49,355 @@ public class LspConnectionTest {
 		assertEquals(4, epoch);
 		assertFalse(closed);
 
-		// Chamando received() manualmente para propósitos do teste
-		Thread.sleep(2);
+		// Chamando received() manualmente para propósitos do teste, antes
+		// da primeira época
+		clock.advance(1, TimeUnit.MILLISECONDS);
 		conn.received();
 
+		clock.advance(6, TimeUnit.MILLISECONDS);
+		assertEquals(1, epoch);
+		assertFalse(closed);
+
 		// Ao finalizar...
-		Thread.sleep(9);
-		assertEquals(0, epoch);	// garante não haver mais decrementos
+		clock.advance(1, TimeUnit.MILLISECONDS);
 		assertTrue(closed);		// garante que a "conexão" foi fechada
+		clock.advance(100, TimeUnit.MILLISECONDS);
+		assertEquals(0, epoch);	// garante não haver mais decrementos
+		assertEquals(0, clock.pendingTasks());
+	}
+
+	/*
+	 * Sem receber nada, cada conexão é encerrada exatamente após epochLimit
+	 * épocas. Milhares de combinações rodam em tempo virtual.
+	 */
+	@Test
+	public void testEpochLimit() {
+		final VirtualClock clock = new VirtualClock();
+		final int n = 5000;
+		final long[] closedAt = new long[n];
+
+		for (int i = 0; i < n; i++) {
+			final int index = i;
+			final LspParams params = new LspParams(1 + i % 50, 1 + i % 13).withClock(clock);
+			new LspConnection(i + 1, i + 1, ADDR, params, new ConnectionTriggers() {
+				public void doEpochActions() {
+				}
+
+				public void doCloseConnection() {
+					closedAt[index] = clock.millis();
+				}
+			});
+		}
+
+		clock.advance(1, TimeUnit.HOURS);
+		for (int i = 0; i < n; i++) {
+			assertEquals((1 + i % 50) * (1 + i % 13), closedAt[i]);
+		}
+		assertEquals(0, clock.pendingTasks());
+	}
+
+	/*
+	 * Com o outro lado ativo e sem dados em trânsito, os ACKs de manutenção
+	 * são enviados em intervalos crescentes, nunca maiores que metade do
+	 * limite de épocas. Dados recebidos voltam o intervalo a uma época e um
+	 * datagrama enviado na época substitui o ACK. As épocas seguem o relógio
+	 * virtual: "K" é uma época com ACK de manutenção e "." uma sem.
+	 */
+	@Test
+	public void testKeepAliveBackoff() {
+		final VirtualClock clock = new VirtualClock();
+		final StringBuilder due = new StringBuilder();
+		final LspConnection[] holder = new LspConnection[1];
+		final LspConnection conn = new LspConnection((short) 1, 1, ADDR, new LspParams(2, 9).withClock(clock),
+				new ConnectionTriggers() {
+					public void doEpochActions() {
+						due.append(holder[0].isKeepAliveDue() ? 'K' : '.');
+					}
+
+					public void doCloseConnection() {
+					}
+				});
+		holder[0] = conn;
+
+		// O outro lado envia ACKs de manutenção, mas nenhum dado: o intervalo
+		// dobra até 4 épocas, o máximo com limite de 9 épocas
+		for (int i = 0; i < 15; i++) {
+			conn.received();
+			clock.advance(2, TimeUnit.MILLISECONDS);
+		}
+		assertEquals("K.K...K...K...K", due.toString());
+
+		// Dados recebidos voltam o intervalo a uma época
+		due.setLength(0);
+		conn.received(1);
+		for (int i = 0; i < 5; i++) {
+			clock.advance(2, TimeUnit.MILLISECONDS);
+			conn.received();
+		}
+		assertEquals("KK.K.", due.toString());
+
+		// Um datagrama enviado na época dispensa o ACK e reinicia a espera
+		due.setLength(0);
+		conn.transmitted();
+		for (int i = 0; i < 5; i++) {
+			clock.advance(2, TimeUnit.MILLISECONDS);
+			conn.received();
+		}
+		assertEquals("....K", due.toString());
+		conn.close();
+	}
+
+	/*
+	 * As esperas do relógio virtual são liberadas pelos avanços do tempo e
+	 * pelas inserções na fila, sem consultar a fila em tempo real
+	 */
+	@Test(timeout = 5000)
+	public void testVirtualClockWaits() throws Exception {
+		final VirtualClock clock = new VirtualClock();
+		final BlockingQueue<Integer> queue = new ArrayBlockingQueue<>(1);
+		final Object[] polled = new Object[2];
+
+		Thread poller = new Thread(new Runnable() {
+			public void run() {
+				try {
+					polled[0] = clock.poll(queue, 1000);
+					polled[1] = clock.poll(queue, 1000);
+				} catch (InterruptedException e) {
+				}
+			}
+		});
+		poller.start();
+
+		// A inserção libera a primeira espera; o avanço, a segunda
+		while (poller.getState() != Thread.State.WAITING) {
+			Thread.sleep(1);
+		}
+		assertTrue(clock.offer(queue, 7));
+		while (polled[0] == null || poller.getState() != Thread.State.WAITING) {
+			Thread.sleep(1);
+		}
+		clock.advance(1, TimeUnit.SECONDS);
+		poller.join();
+		assertEquals(7, polled[0]);
+		assertNull(polled[1]);
+
+		// Uma tarefa periódica termina somente pelo cancelamento ou pela falha
+		final ScheduledFuture<?> cancelled = clock.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+			}
+		}, 1, 1, TimeUnit.MILLISECONDS);
+		Thread canceller = new Thread(new Runnable() {
+			public void run() {
+				cancelled.cancel(false);
+			}
+		});
+		canceller.start();
+		try {
+			cancelled.get();
+			fail("Tarefa cancelada sem exceção");
+		} catch (CancellationException e) {
+		}
+
+		final ScheduledFuture<?> failed = clock.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				throw new IllegalStateException();
+			}
+		}, 1, 1, TimeUnit.MILLISECONDS);
+		try {
+			failed.get(0, TimeUnit.MILLISECONDS);
+			fail("Tarefa pendente sem tempo limite");
+		} catch (TimeoutException e) {
+		}
+		clock.advance(1, TimeUnit.MILLISECONDS);
+		try {
+			failed.get();
+			fail("Tarefa com falha sem exceção");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		assertEquals(0, clock.pendingTasks());
+	}
+
+	/*
+	 * Uma conexão de cabeçalho estreito dá várias voltas no número de
+	 * sequência de 16 bits: o 0 nunca vai no datagrama, cada mensagem é a
+	 * esperada pelo receptor e as retransmissões são reconhecidas como
+	 * antigas.
+	 */
+	@Test
+	public void testSequenceWraparound() {
+		final VirtualClock clock = new VirtualClock();
+		final LspParams params = new LspParams(1000, 5).withClock(clock);
+		final ConnectionTriggers triggers = new ConnectionTriggers() {
+			public void doEpochActions() {
+			}
+
+			public void doCloseConnection() {
+			}
+		};
+		final LspConnection sender = new LspConnection(1, 1, ADDR, params, triggers);
+		final LspConnection receiver = new LspConnection(1, 1, ADDR, params, triggers);
+		sender.addExtension(Handshake.EXT_SKIP_ZERO);
+		receiver.addExtension(Handshake.EXT_SKIP_ZERO);
+		final byte[] payload = new byte[0];
+
+		assertEquals(0, receiver.receivedSeqNum());
+		int previous = 0;
+		for (int i = 0; i < 200000; i++) {
+			sender.incSendMissing();
+			final InternalPack p = sender.sent(new Pack(1, payload));
+			final int seq = p.getSeqNum();
+			assertNotEquals(0, seq);
+			assertEquals((short) seq, seq);
+
+			assertEquals(SeqNum.NEXT, receiver.classify(seq));
+			receiver.received(seq);
+			assertEquals(seq, receiver.receivedSeqNum());
+			assertEquals(SeqNum.OLD, receiver.classify(seq));
+			if (previous != 0) {
+				assertEquals(SeqNum.OLD, receiver.classify(previous));
+			}
+
+			// Enquanto não há ACK, não há outro envio; ACKs antigos não contam
+			assertNull(sender.sent(new Pack(1, payload)));
+			sender.ack(previous, null);
+			assertSame(p, sender.sent());
+			sender.ack(seq, null);
+			assertNull(sender.sent());
+			assertEquals(0, sender.getSendMissing());
+			previous = seq;
+		}
+
+		// Um número além do esperado indica uma mensagem perdida
+		assertEquals(SeqNum.FUTURE, receiver.classify((short) (previous + 2)));
+		sender.close();
+		receiver.close();
+	}
+
+	@Test
+	public void testSeqNumArithmetic() {
+		// Estreito: após 0xffff vem 0x10001
+		assertEquals(0x10001, SeqNum.next(0xffff, false));
+		assertEquals(1, SeqNum.wire(0x10001, false));
+		assertEquals(-1, SeqNum.wire(0xffff, false));
+		assertEquals(0x10001, SeqNum.extend(0x10001, 1, false));
+		assertEquals(0xffff, SeqNum.extend(0x10001, -1, false));
+		assertEquals(SeqNum.NEXT, SeqNum.classify(0xffff, 1, false));
+		assertEquals(SeqNum.OLD, SeqNum.classify(0xffff, -1, false));
+
+		// Largo: 32 bits, com a mesma regra
+		assertEquals(0x100000001L, SeqNum.next(0xffffffffL, true));
+		assertEquals(SeqNum.NEXT, SeqNum.classify(0xffffffffL, 1, true));
+		assertEquals(SeqNum.NEXT, SeqNum.classify(0x7fffffffL, Integer.MIN_VALUE, true));
+		assertEquals(SeqNum.OLD, SeqNum.classify(5, 5, true));
+		assertEquals(SeqNum.FUTURE, SeqNum.classify(5, 7, true));
+
+		// Sem pular o 0, como os participantes antigos
+		assertEquals(0x10000, SeqNum.next(0xffff, false, false));
+		assertEquals(SeqNum.NEXT, SeqNum.classify(0xffff, 0, false, false));
+		assertEquals(SeqNum.FUTURE, SeqNum.classify(0xffff, 1, false, false));
+		assertEquals(SeqNum.OLD, SeqNum.classify(0x10000, 0, false, false));
+	}
+
+	/*
+	 * Conexões ociosas devem custar poucos bytes e nenhuma thread própria,
+	 * para que o servidor suporte a tabela inteira de conexões. O custo é
+	 * calculado pelos campos de cada objeto mantido pela conexão, e não pela
+	 * memória da JVM, que varia com o coletor.
+	 */
+	@Test
+	public void testIdleFootprint() throws Exception {
+		final int n = 10000;
+		final LspParams params = new LspParams(600000, 5);
+		final ConnectionTriggers triggers = new ConnectionTriggers() {
+			public void doEpochActions() {
+			}
+
+			public void doCloseConnection() {
+			}
+		};
+
+		final ConnectionTable byId = ConnectionTable.byId();
+		final ConnectionTable bySock = ConnectionTable.bySockId();
+		final LspConnection[] conns = new LspConnection[n];
+
+		final int threads = Thread.activeCount();
+		for (int i = 0; i < n; i++) {
+			conns[i] = new LspConnection((short) (i + 1), i + 1, ADDR, params, triggers);
+			byId.put(conns[i]);
+			bySock.put(conns[i]);
+		}
+
+		assertEquals(n, byId.size());
+		assertSame(conns[n - 1], bySock.get(n));
+		assertTrue(Thread.activeCount() - threads < 64);
+
+		// O estado pouco usado só é criado quando necessário
+		final LspConnection idle = conns[0];
+		assertNull(idle.sent());
+		assertTrue(idle.streams().isEmpty());
+		assertEquals(0, idle.getRetransmits());
+		for (String name : new String[] {"streams", "compression", "journal", "extras"}) {
+			assertNull(name, field(idle, name));
+		}
+
+		// Os contadores e o espaçamento ficam à parte, criados no primeiro uso
+		final LspConnection busy = conns[1];
+		busy.pressured();
+		assertEquals(1, busy.getPressured());
+		final Object extras = field(busy, "extras");
+		final long perExtras = shallowSize(extras.getClass());
+		assertTrue("bytes do estado pouco usado: " + perExtras, perExtras <= 48);
+
+		// Objetos de cada conexão: ela mesma, o verificador de status, a
+		// tarefa agendada e o adaptador do Runnable (24 bytes), além de duas
+		// posições em cada tabela, ocupada no máximo pela metade
+		final long perConn = shallowSize(LspConnection.class)
+				+ shallowSize(Class.forName("lsp.LspConnection$StatusChecker"))
+				+ shallowSize(field(idle, "statusTask").getClass()) + 24
+				+ 2 * 2 * REFERENCE;
+		assertTrue("bytes por conexão: " + perConn, perConn < 300);
+
+		for (LspConnection conn : conns) {
+			conn.close();
+			byId.remove(conn.getId());
+		}
+		assertTrue(byId.isEmpty());
+	}
+
+	/* Leiaute da HotSpot de 64 bits com referências comprimidas */
+	private static final int OBJECT_HEADER = 12;
+	private static final int REFERENCE = 4;
+
+	/** Bytes de uma instância da classe, sem os objetos referenciados */
+	private static long shallowSize(Class<?> type) {
+		long size = OBJECT_HEADER;
+		for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+			for (Field f : c.getDeclaredFields()) {
+				if (Modifier.isStatic(f.getModifiers())) {
+					continue;
+				}
+
+				final Class<?> t = f.getType();
+				if (!t.isPrimitive()) {
+					size += REFERENCE;
+				} else if (t == long.class || t == double.class) {
+					size += 8;
+				} else if (t == int.class || t == float.class) {
+					size += 4;
+				} else if (t == short.class || t == char.class) {
+					size += 2;
+				} else {
+					size += 1;
+				}
+			}
+		}
+		return (size + 7) & ~7;
+	}
+
+	private static Object field(Object obj, String name) throws ReflectiveOperationException {
+		final Field f = obj.getClass().getDeclaredField(name);
+		f.setAccessible(true);
+		return f.get(obj);
 	}
 }
@@ -0,0 +1,76 @@
+package lsp;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class LspEventsTest {
+	private final List<LspEvent> events = Collections.synchronizedList(new ArrayList<LspEvent>());
+
+	private final LspEventListener recorder = new LspEventListener() {
+		@Override
+		public void onEvent(LspEvent event) {
+			events.add(event);
+		}
+	};
+
+	@After
+	public void tearDown() {
+		LspEvents.setListener(null);
+	}
+
+	private int count(LspEvent.Type type, int connId) {
+		int n = 0;
+		synchronized (events) {
+			for (LspEvent e : events) {
+				if (e.getType() == type && e.getConnectionId() == connId) {
+					n++;
+				}
+			}
+		}
+		return n;
+	}
+
+	@Test
+	public void testConnectionLifecycle() throws Exception {
+		LspEvents.setListener(recorder);
+		assertTrue(LspEvents.isEnabled());
+
+		LspServer server = new LspServer(0, new LspParams(100, 4));
+		LspClient client = new LspClient("localhost", server.getPort(), new LspParams(100, 4));
+		int connId = client.getConnectionId();
+
+		// Cliente e servidor informam a abertura, cada um do seu lado
+		assertEquals(2, count(LspEvent.Type.CONNECTION_OPENED, connId));
+
+		client.close();
+		assertEquals(1, count(LspEvent.Type.CONNECTION_CLOSED, connId));
+
+		// O servidor encerra a conexão após o limite de épocas
+		while (count(LspEvent.Type.CONNECTION_CLOSED, connId) < 2) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, count(LspEvent.Type.EPOCH_TIMEOUT, connId));
+		server.closeAll();
+	}
+
+	@Test
+	public void testSampling() throws Exception {
+		LspEvents.setListener(recorder, 3);
+		for (int i = 1; i <= 9; i++) {
+			LspEvents.sampled(LspEvent.Type.RETRANSMIT, 1, i);
+		}
+		assertEquals(3, count(LspEvent.Type.RETRANSMIT, 1));
+
+		// Sem receptor, nada é entregue
+		LspEvents.setListener(null);
+		assertFalse(LspEvents.isEnabled());
+		LspEvents.opened(1);
+		assertEquals(0, count(LspEvent.Type.CONNECTION_OPENED, 1));
+	}
+}
@@ -0,0 +1,89 @@
+package lsp;
+
+import static org.junit.Assert.*;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class LspFileTransferTest {
+	private static LspServer server;
+	private static LspClient client;
+	private static Path dir;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		LspParams params = new LspParams(500, 4);
+		server = new LspServer(0, params);
+		client = new LspClient("localhost", server.getPort(), params);
+		dir = Files.createTempDirectory("lsp");
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		client.close();
+		server.closeAll();
+	}
+
+	static byte[] content(int size) {
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		return data;
+	}
+
+	/* Recebe o arquivo pelo servidor enquanto o cliente envia */
+	long transfer(Path source, final Path target) throws Exception {
+		final LspFileTransfer receiver = new LspFileTransfer(server, client.getConnId(), (short) 1);
+		ExecutorService exec = Executors.newSingleThreadExecutor();
+		Future<Long> received = exec.submit(new Callable<Long>() {
+			public Long call() throws Exception {
+				return receiver.receiveFile(target);
+			}
+		});
+
+		long sent = new LspFileTransfer(client, (short) 1).sendFile(source);
+		assertEquals(Files.size(source), (long) received.get());
+		exec.shutdown();
+		return sent;
+	}
+
+	@Test
+	public void testSendFile() throws Exception {
+		byte[] data = content(100 * 1024 + 7);
+		Path source = Files.write(dir.resolve("source"), data);
+		Path target = dir.resolve("target");
+
+		assertEquals(data.length, transfer(source, target));
+		assertArrayEquals(data, Files.readAllBytes(target));
+		assertFalse(Files.exists(dir.resolve("target" + LspFileTransfer.PART_SUFFIX)));
+	}
+
+	@Test
+	public void testResume() throws Exception {
+		byte[] data = content(10 * LspFileTransfer.LEN_CHUNK + 1);
+		Path source = Files.write(dir.resolve("resumed"), data);
+		Path target = dir.resolve("resumed-target");
+
+		// Simula um recebimento interrompido após os 3 primeiros trechos
+		long offset = 3 * LspFileTransfer.LEN_CHUNK;
+		try (RandomAccessFile raf = new RandomAccessFile(target.toFile(), "rw");
+				RandomAccessFile part = new RandomAccessFile(target + LspFileTransfer.PART_SUFFIX, "rw")) {
+			raf.setLength(data.length);
+			raf.write(data, 0, (int) offset);
+			part.writeLong(data.length);
+			part.writeLong(offset);
+		}
+
+		assertEquals(data.length - offset, transfer(source, target));
+		assertArrayEquals(data, Files.readAllBytes(target));
+	}
+}
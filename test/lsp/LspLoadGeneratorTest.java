@@ -0,0 +1,83 @@
+package lsp;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LspLoadGeneratorTest {
+	@Test
+	public void testHistogramPercentiles() {
+		LatencyHistogram h = new LatencyHistogram();
+		for (long i = 1; i <= 10000; i++) {
+			h.record(i * 1000);
+		}
+
+		assertEquals(10000, h.getCount());
+		assertEquals(10_000_000, h.getMax());
+
+		// O erro relativo de cada percentil é menor que 1/16
+		assertEquals(5_000_000, h.getPercentile(50), 5_000_000 / 16);
+		assertEquals(9_900_000, h.getPercentile(99), 9_900_000 / 16);
+		assertEquals(9_990_000, h.getPercentile(99.9), 9_990_000 / 16);
+		assertEquals(10_000_000, h.getPercentile(100));
+
+		// Valores pequenos são exatos
+		LatencyHistogram small = new LatencyHistogram();
+		small.record(3);
+		small.record(-1);
+		assertEquals(0, small.getPercentile(50));
+		assertEquals(3, small.getPercentile(100));
+
+		LatencyHistogram sum = small.copy();
+		sum.add(h);
+		assertEquals(10002, sum.getCount());
+		assertEquals(10_000_000, sum.getMax());
+	}
+
+	@Test
+	public void testRun() throws Exception {
+		LspParams params = new LspParams(100, 10);
+		LspServer server = LspLoadGenerator.echoServer(0, params);
+
+		LspLoadGenerator.Report report = new LspLoadGenerator("localhost", server.getPort())
+				.withConnections(3).withRate(100).withSize(32)
+				.withDuration(300, TimeUnit.MILLISECONDS).withParams(params).run();
+		server.closeAll();
+
+		assertTrue(report.getSent() > 0);
+		assertEquals(report.getSent(), report.getReceived());
+		assertEquals(report.getReceived(), report.getRoundTrip().getCount());
+		assertTrue(report.getAckLatency().getCount() >= report.getSent());
+		assertTrue(report.getRoundTrip().getPercentile(50) > 0);
+		assertTrue(report.getThroughput() > 0);
+	}
+
+	/*
+	 * Com o servidor encerrado no meio da carga, as escritas passam a falhar:
+	 * as falhas são contadas como descartes e o envio segue na taxa
+	 */
+	@Test
+	public void testRunServerLost() throws Exception {
+		LspParams params = new LspParams(50, 2);
+		final LspServer server = LspLoadGenerator.echoServer(0, params);
+		Thread closer = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+				}
+				server.closeAll();
+			}
+		});
+		closer.start();
+
+		LspLoadGenerator.Report report = new LspLoadGenerator("localhost", server.getPort())
+				.withRate(200).withDuration(800, TimeUnit.MILLISECONDS).withParams(params).run();
+		closer.join();
+
+		assertTrue(report.getDropped() > 0);
+		assertTrue(report.getSent() + report.getDropped() >= 120);
+	}
+}
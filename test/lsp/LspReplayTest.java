@@ -0,0 +1,81 @@
+package lsp;
+
+import static org.junit.Assert.*;
+
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class LspReplayTest {
+	static final InetSocketAddress ADDR = new InetSocketAddress("127.0.0.1", 7);
+
+	private final List<Path> files = new ArrayList<>();
+
+	@After
+	public void tearDown() throws Exception {
+		for (Path file : files) {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	private Path captureFile() throws Exception {
+		Path file = Files.createTempFile("lsp", ".cap");
+		files.add(file);
+		return file;
+	}
+
+	@Test
+	public void testRingDropsOldest() throws Exception {
+		Path file = captureFile();
+
+		// Cada registro ocupa 14 + 4 + 2 + 10 = 30 bytes: cabem 3 no anel
+		CaptureFile capture = CaptureFile.create(file, 100);
+		for (byte i = 0; i < 5; i++) {
+			capture.record(CaptureFile.IN, ADDR, new byte[] {i, 0, 0, 0, 0, 0, 0, 0, 0, 0}, 0, 10);
+		}
+		capture.close();
+
+		List<CaptureFile.Record> records = CaptureFile.read(file);
+		assertEquals(3, records.size());
+		for (int i = 0; i < 3; i++) {
+			assertEquals(i + 2, records.get(i).data[0]);
+			assertEquals(ADDR, records.get(i).sockAddr);
+		}
+		assertTrue(records.get(0).nanos <= records.get(2).nanos);
+	}
+
+	@Test
+	public void testReplay() throws Exception {
+		Path file = captureFile();
+		LspServer server = new LspServer(0, new LspParams(500, 4));
+		server.startCapture(file, 64 * 1024);
+
+		// Cliente de teste conecta e envia duas mensagens
+		DatagramSocket sock = new DatagramSocket();
+		int port = server.getPort();
+		short connId = TestUtil.connectServer(sock, port).getShort(2);
+		for (short seq = 1; seq <= 2; seq++) {
+			sock.send(TestUtil.createPacket(port, TestUtil.DATA, connId, seq, ("msg" + seq).getBytes()));
+			assertEquals("msg" + seq, new String(server.read().getPayload()));
+		}
+		server.stopCapture();
+		sock.close();
+		server.closeAll();
+
+		// A reprodução em outro servidor entrega as mesmas mensagens
+		LspReplay replay = new LspReplay(file);
+		assertEquals(3, replay.size());
+
+		LspServer other = new LspServer(0, new LspParams(500, 4));
+		assertEquals(3, replay.replay(new InetSocketAddress("localhost", other.getPort()), 10));
+		assertEquals("msg1", new String(other.read().getPayload()));
+		assertEquals("msg2", new String(other.read().getPayload()));
+		other.closeAll();
+	}
+}
@@ -5,7 +5,15 @@ import static lsp.TestUtil.*;
 
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -50,15 +58,37 @@ public class LspServerTest {
 		assertArrayEquals(payload, recv.getPayload());
 	}
 
+	@Test
+	public void testReadBatch() throws Exception {
+		String[] payloads = {"um", "dois", "tres"};
+		for (String payload : payloads) {
+			sock.send(createPacket(DATA, payload.getBytes()));
+		}
+
+		// Os pacotes podem chegar em momentos distintos, então lê até obter todos
+		List<Pack> recv = new ArrayList<>();
+		while (recv.size() < payloads.length) {
+			assertTrue(server.drainTo(recv, payloads.length - recv.size()) > 0);
+		}
+
+		for (int i = 0; i < payloads.length; i++) {
+			assertEquals(payloads[i], new String(recv.get(i).getPayload()));
+		}
+	}
+
 	@Test
 	public void testWrite() throws Exception {
 		String payload = "Holla, client!";
 		server.write(new Pack(connId, payload.getBytes()));
 
+		// Ignora os ACKs de leituras feitas antes pela conexão compartilhada
 		DatagramPacket p = createPacket();
-		sock.receive(p);
+		ByteBuffer buf;
+		do {
+			sock.receive(p);
+			buf = ByteBuffer.wrap(p.getData(), 0, p.getLength());
+		} while (buf.getShort(0) == ACK);
 
-		ByteBuffer buf = ByteBuffer.wrap(p.getData(), 0, p.getLength());
 		assertEquals(DATA, buf.getShort());
 		assertEquals(connId, buf.getShort());
 		assertEquals(1, buf.getShort());
@@ -70,4 +100,284 @@ public class LspServerTest {
 		p = createPacket(ACK, connId, (short) 1, "".getBytes());
 		sock.send(p);
 	}
+
+	@Test
+	public void testWriteBatch() throws Exception {
+		// Usa uma conexão própria para não interferir nos números de sequência
+		DatagramSocket sock = new DatagramSocket();
+		short connId = connectServer(sock).getShort(2);
+
+		String[] payloads = {"Holla", "Hola"};
+		int accepted = server.write(connId, ByteBuffer.wrap(payloads[0].getBytes()),
+				ByteBuffer.wrap(payloads[1].getBytes()));
+		assertEquals(payloads.length, accepted);
+
+		// As mensagens chegam em ordem, uma após o ACK da anterior
+		for (short i = 0; i < payloads.length; i++) {
+			DatagramPacket p = createPacket();
+			sock.receive(p);
+
+			ByteBuffer buf = ByteBuffer.wrap(p.getData(), 0, p.getLength());
+			assertEquals(DATA, buf.getShort());
+			assertEquals(connId, buf.getShort());
+			assertEquals(i + 1, buf.getShort());
+			assertEquals(payloads[i], new String(LspSocket.payload(buf)));
+
+			sock.send(createPacket(ACK, connId, (short) (i + 1), "".getBytes()));
+		}
+		sock.close();
+	}
+
+	@Test
+	public void testPublish() throws Exception {
+		DatagramSocket sock = new DatagramSocket();
+		short connId = connectServer(sock).getShort(2);
+
+		assertEquals(0, server.publish("news", "nada".getBytes()));
+		server.subscribe(connId, "news");
+
+		String payload = "Extra!";
+		assertEquals(1, server.publish("news", payload.getBytes()));
+
+		DatagramPacket p = createPacket();
+		sock.receive(p);
+
+		ByteBuffer buf = ByteBuffer.wrap(p.getData(), 0, p.getLength());
+		assertEquals(DATA, buf.getShort());
+		assertEquals(connId, buf.getShort());
+		assertEquals(1, buf.getShort());
+		assertEquals(payload, new String(LspSocket.payload(buf)));
+
+		sock.send(createPacket(ACK, connId, (short) 1, "".getBytes()));
+		server.unsubscribe(connId, "news");
+		assertEquals(0, server.publish("news", payload.getBytes()));
+		sock.close();
+	}
+
+	@Test
+	public void testWideHeader() throws Exception {
+		DatagramSocket sock = new DatagramSocket();
+
+		// Pedido de conexão com o cabeçalho largo
+		DatagramPacket p = createPacket(CONNECT, (short) 0, (short) 0, new byte[] {Handshake.EXT_WIDE});
+		sock.send(p);
+		p = createPacket();
+		sock.receive(p);
+
+		ByteBuffer buf = ByteBuffer.wrap(p.getData(), 0, p.getLength());
+		assertEquals(ACK | LspSocket.WIDE, buf.getShort());
+		int connId = buf.getInt();
+		assertNotEquals(0, connId);
+		assertEquals(0, buf.getInt());
+		assertEquals(Handshake.EXT_WIDE, buf.get());
+
+		// Dados do cliente
+		buf = ByteBuffer.allocate(LspSocket.LEN_WIDE_HEADER + 4);
+		buf.putShort((short) (DATA | LspSocket.WIDE)).putInt(connId).putInt(1).put("wide".getBytes());
+		sock.send(new DatagramPacket(buf.array(), buf.position(), p.getSocketAddress()));
+
+		Pack recv = server.read();
+		assertEquals(connId, recv.getConnectionId());
+		assertEquals("wide", new String(recv.getPayload()));
+
+		p.setLength(p.getData().length);
+		sock.receive(p);
+		buf = ByteBuffer.wrap(p.getData(), 0, p.getLength());
+		assertEquals(ACK | LspSocket.WIDE, buf.getShort());
+		assertEquals(connId, buf.getInt());
+		assertEquals(1, buf.getInt());
+
+		// Dados do servidor
+		server.write(new Pack(connId, "ok".getBytes()));
+		p.setLength(p.getData().length);
+		sock.receive(p);
+		buf = ByteBuffer.wrap(p.getData(), 0, p.getLength());
+		assertEquals(DATA | LspSocket.WIDE, buf.getShort());
+		assertEquals(connId, buf.getInt());
+		assertEquals(1, buf.getInt());
+		assertEquals("ok", new String(LspSocket.payload(buf)));
+
+		sock.send(new DatagramPacket(ByteBuffer.allocate(LspSocket.LEN_WIDE_HEADER)
+				.putShort((short) (ACK | LspSocket.WIDE)).putInt(connId).putInt(1).array(),
+				LspSocket.LEN_WIDE_HEADER, p.getSocketAddress()));
+		sock.close();
+	}
+
+	/*
+	 * Cliente e servidor reais: sem a opção, a conexão usa o cabeçalho de 6
+	 * bytes; com ela, o cabeçalho largo
+	 */
+	@Test
+	public void testNarrowHeaderByDefault() throws Exception {
+		for (boolean wide : new boolean[] {false, true}) {
+			Path file = Files.createTempFile("lsp", ".cap");
+			LspServer server = new LspServer(0, new LspParams(500, 4));
+			server.startCapture(file, 64 * 1024);
+
+			LspParams params = new LspParams(500, 4);
+			LspClient client = new LspClient("localhost", server.getPort(), wide ? params.withWideHeader() : params);
+			client.write("abc".getBytes());
+			assertEquals("abc", new String(server.read().getPayload()));
+			server.stopCapture();
+
+			// Datagrama de dados recebido pelo servidor
+			byte[] data = null;
+			for (CaptureFile.Record r : CaptureFile.read(file)) {
+				if (r.direction == CaptureFile.IN && (r.data[1] & ~LspSocket.WIDE) == DATA) {
+					data = r.data;
+				}
+			}
+			assertNotNull(data);
+			assertEquals((wide ? LspSocket.LEN_WIDE_HEADER : LspSocket.LEN_HEADER) + 3, data.length);
+
+			client.close();
+			server.closeAll();
+			Files.delete(file);
+		}
+	}
+
+	/*
+	 * Um cliente antigo, sem extensões, passa pelo 0 ao dar a volta no
+	 * contador de 16 bits: a mensagem 0 é entregue como a seguinte a 0xffff
+	 */
+	@Test(timeout = 60000)
+	public void testLegacyWraparound() throws Exception {
+		LspServer server = new LspServer(0, new LspParams(500, 4));
+		DatagramSocket sock = new DatagramSocket();
+		sock.connect(InetAddress.getLocalHost(), server.getPort());
+		sock.setSoTimeout(1000);
+
+		byte[] bs = {0, CONNECT, 0, 0, 0, 0};
+		sock.send(new DatagramPacket(bs, bs.length));
+		DatagramPacket p = createPacket();
+		sock.receive(p);
+		short connId = ByteBuffer.wrap(p.getData()).getShort(2);
+
+		// Envia cada mensagem após o ACK da anterior, até duas depois do 0
+		ByteBuffer buf = ByteBuffer.allocate(LspSocket.LEN_HEADER + 2);
+		for (int i = 1; i <= 0x10002; i++) {
+			short seq = (short) i;
+			buf.clear();
+			buf.putShort(DATA).putShort(connId).putShort(seq).putShort(seq);
+			sock.send(new DatagramPacket(buf.array(), buf.position()));
+
+			do {
+				p.setLength(p.getData().length);
+				sock.receive(p);
+			} while (ByteBuffer.wrap(p.getData()).getShort(4) != seq);
+
+			Pack recv = server.read();
+			assertEquals(seq, ByteBuffer.wrap(recv.getPayload()).getShort());
+		}
+
+		server.closeAll();
+		sock.close();
+	}
+
+	@Test
+	public void testConnectCookie() throws Exception {
+		LspServer server = new LspServer(0, new LspParams(100, 4).withConnectCookies());
+		DatagramSocket sock = new DatagramSocket();
+		sock.setSoTimeout(1000);
+
+		// O primeiro pedido recebe somente o cookie
+		byte[] bs = {0, CONNECT, 0, 0, 0, 0};
+		sock.send(new DatagramPacket(bs, bs.length, InetAddress.getLocalHost(), server.getPort()));
+		DatagramPacket p = createPacket();
+		sock.receive(p);
+
+		ByteBuffer buf = ByteBuffer.wrap(p.getData(), 0, p.getLength());
+		assertEquals(LspSocket.COOKIE, buf.getShort());
+		assertEquals(0, buf.getInt());
+		assertEquals(ConnectCookies.LEN_COOKIE, buf.remaining());
+
+		// O cliente devolve o cookie e se conecta
+		LspClient client = new LspClient("localhost", server.getPort(), new LspParams(100, 4));
+		client.write("cookie".getBytes());
+		assertEquals("cookie", new String(server.read().getPayload()));
+
+		client.close();
+		server.closeAll();
+		sock.close();
+	}
+
+	/*
+	 * O cookie vale no período em que foi emitido e no seguinte, medidos pelo
+	 * relógio dos parâmetros
+	 */
+	@Test
+	public void testCookieExpiry() throws Exception {
+		VirtualClock clock = new VirtualClock();
+		ConnectCookies cookies = new ConnectCookies(clock);
+		InetSocketAddress addr = new InetSocketAddress(InetAddress.getLocalHost(), 4000);
+
+		byte[] cookie = cookies.issue(addr);
+		clock.advance(15, TimeUnit.SECONDS);
+		assertTrue(cookies.verify(addr, cookie));
+		assertFalse(cookies.verify(new InetSocketAddress(InetAddress.getLocalHost(), 4001), cookie));
+		clock.advance(10, TimeUnit.SECONDS);
+		assertFalse(cookies.verify(addr, cookie));
+	}
+
+	@Test
+	public void testSendLatency() throws Exception {
+		LspServer server = new LspServer(0, new LspParams(500, 4));
+		DatagramSocket sock = new DatagramSocket();
+		int port = server.getPort();
+		short connId = connectServer(sock, port).getShort(2);
+
+		// A segunda mensagem espera na fila até o ACK atrasado da primeira
+		server.write(connId, ByteBuffer.wrap("um".getBytes()), ByteBuffer.wrap("dois".getBytes()));
+		for (short i = 1; i <= 2; i++) {
+			sock.receive(createPacket());
+			Thread.sleep(20);
+			sock.send(createPacket(port, ACK, connId, i, "".getBytes()));
+		}
+
+		// Aguarda o processamento do último ACK
+		while (server.getStats(connId).getSendLatency().getWriteLatency().getCount() < 2) {
+			Thread.sleep(1);
+		}
+
+		SendLatency latency = server.getStats(connId).getSendLatency();
+		assertEquals(2, latency.getQueueDelay().getCount());
+		assertEquals(2, latency.getAckLatency().getCount());
+		assertTrue(latency.getQueueDelay().getMax() >= 15_000_000);
+		assertTrue(latency.getAckLatency().getPercentile(50) >= 15_000_000);
+		assertTrue(latency.getWriteLatency().getMax() >= latency.getQueueDelay().getMax());
+
+		// O total do servidor inclui as conexões encerradas
+		server.closeConn(connId);
+		assertEquals(2, server.getSendLatency().getWriteLatency().getCount());
+
+		server.closeAll();
+		sock.close();
+	}
+
+	@Test
+	public void testConnectRate() throws Exception {
+		LspServer server = new LspServer(0, new LspParams(100, 4).withConnectRate(1));
+		DatagramSocket first = new DatagramSocket();
+		DatagramSocket second = new DatagramSocket();
+		second.setSoTimeout(200);
+
+		byte[] bs = {0, CONNECT, 0, 0, 0, 0};
+		DatagramPacket request = new DatagramPacket(bs, bs.length, InetAddress.getLocalHost(), server.getPort());
+		first.send(request);
+		second.send(request);
+
+		// Somente o primeiro pedido é admitido
+		DatagramPacket p = createPacket();
+		first.receive(p);
+		assertEquals(ACK, ByteBuffer.wrap(p.getData()).getShort());
+		try {
+			second.receive(p);
+			fail("Pedido acima da taxa foi admitido");
+		} catch (SocketTimeoutException e) {
+		}
+
+		server.closeAll();
+		first.close();
+		second.close();
+	}
 }
@@ -0,0 +1,108 @@
+package lsp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class LspStreamAdapterTest {
+	private static LspServer server;
+	private static LspClient client;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		LspParams params = new LspParams(500, 4);
+		server = new LspServer(0, params);
+		client = new LspClient("localhost", server.getPort(), params);
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		client.close();
+		server.closeAll();
+	}
+
+	static byte[] content(int size) {
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		return data;
+	}
+
+	/*
+	 * Escritas pequenas do cliente chegam ao servidor em mensagens cheias
+	 */
+	@Test
+	public void testStreams() throws Exception {
+		final byte[] data = content(10 * LspSocket.LEN_STREAM_PAYLOAD + 123);
+
+		ExecutorService exec = Executors.newSingleThreadExecutor();
+		Future<?> writer = exec.submit(new Callable<Void>() {
+			public Void call() throws Exception {
+				try (OutputStream out = new LspOutputStream(client, (short) 1)) {
+					for (int off = 0; off < data.length; off += 100) {
+						out.write(data, off, Math.min(100, data.length - off));
+					}
+				}
+				return null;
+			}
+		});
+
+		LspInputStream in = new LspInputStream(server, client.getConnId(), (short) 1);
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		received.write(in.read());
+		assertEquals(LspSocket.LEN_STREAM_PAYLOAD - 1, in.available());
+
+		byte[] b = new byte[1000];
+		int n;
+		while ((n = in.read(b)) != -1) {
+			received.write(b, 0, n);
+		}
+		writer.get();
+		exec.shutdown();
+
+		assertArrayEquals(data, received.toByteArray());
+		assertEquals(-1, in.read());
+		in.close();
+	}
+
+	/*
+	 * Canais do servidor para o cliente, com buffers diretos
+	 */
+	@Test
+	public void testChannels() throws Exception {
+		final byte[] data = content(3 * LspSocket.LEN_STREAM_PAYLOAD + 7);
+
+		ExecutorService exec = Executors.newSingleThreadExecutor();
+		Future<?> writer = exec.submit(new Callable<Void>() {
+			public Void call() throws Exception {
+				LspOutputStream out = new LspOutputStream(server, client.getConnId(), (short) 2);
+				ByteBuffer src = ByteBuffer.allocateDirect(data.length);
+				src.put(data).flip();
+				assertEquals(data.length, out.write(src));
+				out.close();
+				assertFalse(out.isOpen());
+				return null;
+			}
+		});
+
+		LspInputStream in = new LspInputStream(client, (short) 2);
+		ByteBuffer dst = ByteBuffer.allocateDirect(data.length + 1);
+		while (in.read(dst) != -1) {
+		}
+		writer.get();
+		exec.shutdown();
+
+		dst.flip();
+		assertEquals(ByteBuffer.wrap(data), dst);
+	}
+}
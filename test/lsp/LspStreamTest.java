@@ -0,0 +1,59 @@
+package lsp;
+
+import static org.junit.Assert.*;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class LspStreamTest {
+	private static LspServer server;
+	private static LspClient client;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+		LspParams params = new LspParams(500, 4);
+		server = new LspServer(0, params);
+		client = new LspClient("localhost", server.getPort(), params);
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		client.close();
+		server.closeAll();
+	}
+
+	@Test
+	public void testIndependentStreams() throws Exception {
+		short connId = client.getConnId();
+
+		client.write((short) 1, "um".getBytes());
+		client.write((short) 2, "dois".getBytes());
+		client.write("principal".getBytes());
+
+		// Cada fluxo tem sua própria fila de entrada
+		assertEquals("dois", new String(server.read(connId, (short) 2)));
+		assertEquals("um", new String(server.read(connId, (short) 1)));
+		assertEquals("principal", new String(server.read().getPayload()));
+
+		server.write(connId, (short) 3, "tres".getBytes());
+		assertEquals("tres", new String(client.read((short) 3)));
+	}
+
+	@Test
+	public void testOrderWithinStream() throws Exception {
+		short connId = client.getConnId();
+
+		for (int i = 0; i < 10; i++) {
+			client.write((short) 4, new byte[] {(byte) i});
+		}
+		for (int i = 0; i < 10; i++) {
+			assertEquals(i, server.read(connId, (short) 4)[0]);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidStream() {
+		client.write((short) 0, new byte[0]);
+	}
+}
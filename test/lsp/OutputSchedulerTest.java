@@ -0,0 +1,239 @@
+package lsp;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class OutputSchedulerTest {
+	/* Conexões que estão aguardando ACK */
+	final Set<Short> busy = new HashSet<>();
+
+	/* Pacotes oferecidos a assign */
+	int assigns;
+
+	/* Tamanho máximo dos grupos de mensagens, 0 para não agrupar */
+	int batchLimit;
+
+	/* Conexões que só podem enviar a partir do instante informado */
+	final Map<Short, Long> pacedUntil = new HashMap<>();
+
+	/* Associa o pacote usando o id de conexão como número de sequência */
+	final OutputScheduler.Assigner assigner = new OutputScheduler.Assigner() {
+		public InternalPack assign(Pack p, long queuedNanos) {
+			assigns++;
+			if (busy.contains(p.getConnId())) {
+				return OutputScheduler.BUSY;
+			}
+			return new InternalPack(p.getConnId(), p.getPayload());
+		}
+
+		public boolean isBusy(Pack p) {
+			return busy.contains(p.getConnId());
+		}
+
+		public int batchLimit(Pack p) {
+			return batchLimit;
+		}
+
+		public long pacingDelay(Pack p, int payloadLength) {
+			final Long until = pacedUntil.get(p.getConnId());
+			return (until == null) ? 0 : Math.max(0, until - System.nanoTime());
+		}
+	};
+
+	static Pack pack(int id) {
+		return new Pack((short) id, new byte[0]);
+	}
+
+	static Pack pack(int id, int payload) {
+		return new Pack((short) id, new byte[] {(byte) payload});
+	}
+
+	InternalPack take(OutputScheduler queue) throws InterruptedException {
+		return queue.take(assigner, 0, TimeUnit.MILLISECONDS);
+	}
+
+	int next(OutputScheduler queue) throws InterruptedException {
+		return take(queue).getSeqNum();
+	}
+
+	@Test
+	public void testPriorityOrder() throws InterruptedException {
+		OutputScheduler queue = new OutputScheduler(10);
+		queue.offer(pack(3), Priority.BULK);
+		queue.offer(pack(2), Priority.NORMAL);
+		queue.offer(pack(1), Priority.CONTROL);
+
+		assertEquals(1, next(queue));
+		assertEquals(2, next(queue));
+		assertEquals(3, next(queue));
+		assertNull(take(queue));
+	}
+
+	@Test
+	public void testStarvation() throws InterruptedException {
+		OutputScheduler queue = new OutputScheduler(100);
+		queue.offer(pack(2), Priority.BULK);
+		for (int i = 0; i < 2 * OutputScheduler.STARVATION_LIMIT; i++) {
+			queue.offer(pack(1), Priority.CONTROL);
+		}
+
+		// A faixa de menor prioridade é atendida depois de preterida o limite
+		for (int i = 0; i < OutputScheduler.STARVATION_LIMIT; i++) {
+			assertEquals(1, next(queue));
+		}
+		assertEquals(2, next(queue));
+		assertEquals(1, next(queue));
+	}
+
+	@Test
+	public void testBusyConnection() throws InterruptedException {
+		OutputScheduler queue = new OutputScheduler(10);
+		queue.offer(pack(1, 1), Priority.NORMAL);
+		queue.offer(pack(1, 2), Priority.NORMAL);
+		queue.offer(pack(2, 3), Priority.NORMAL);
+
+		// Pacotes de conexões ocupadas não saem da fila, mas não bloqueiam os
+		// das demais conexões
+		busy.add((short) 1);
+		assertEquals(3, take(queue).getPayload()[0]);
+		assertNull(take(queue));
+
+		// E a ordem de uma mesma conexão é mantida
+		busy.clear();
+		assertEquals(1, take(queue).getPayload()[0]);
+		assertEquals(2, take(queue).getPayload()[0]);
+	}
+
+	@Test
+	public void testCapacity() throws InterruptedException {
+		OutputScheduler queue = new OutputScheduler(1);
+		assertTrue(queue.offer(pack(1), Priority.BULK));
+		assertFalse(queue.offer(pack(2), Priority.CONTROL));
+		assertFalse(queue.offer(pack(2), Priority.CONTROL, 1, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testCoalescing() throws InterruptedException {
+		OutputScheduler queue = new OutputScheduler(10);
+		queue.setCoalescing(0);
+		batchLimit = 3 * (BatchPack.LEN_FRAME_HEADER + 1);
+		for (int i = 0; i < 4; i++) {
+			queue.offer(pack(1, i), Priority.NORMAL);
+		}
+		queue.offer(pack(2, 9), Priority.NORMAL);
+
+		// As três primeiras mensagens da conexão 1 cabem em um grupo
+		InternalPack p = take(queue);
+		assertEquals(1, p.getSeqNum());
+		List<byte[]> messages = BatchPack.split(ByteBuffer.wrap(p.getPayload()));
+		assertEquals(3, messages.size());
+		for (int i = 0; i < 3; i++) {
+			assertArrayEquals(new byte[] {(byte) i}, messages.get(i));
+		}
+
+		// Mensagens sozinhas seguem sem o enquadramento
+		assertArrayEquals(new byte[] {3}, take(queue).getPayload());
+		assertArrayEquals(new byte[] {9}, take(queue).getPayload());
+		assertNull(take(queue));
+		assertEquals(0, queue.size());
+	}
+
+	/*
+	 * Mensagens de uma conexão ocupada não são agrupadas nem oferecidas
+	 */
+	@Test
+	public void testBusyCoalescing() throws InterruptedException {
+		OutputScheduler queue = new OutputScheduler(10);
+		queue.setCoalescing(0);
+		batchLimit = LspSocket.LEN_PAYLOAD;
+		for (int i = 0; i < 3; i++) {
+			queue.offer(pack(1, i), Priority.NORMAL);
+		}
+		queue.offer(pack(2, 9), Priority.NORMAL);
+
+		busy.add((short) 1);
+		assertArrayEquals(new byte[] {9}, take(queue).getPayload());
+		assertEquals(1, assigns);
+		assertEquals(3, queue.size());
+	}
+
+	@Test
+	public void testCoalescingDelay() throws InterruptedException {
+		OutputScheduler queue = new OutputScheduler(10);
+		queue.setCoalescing(TimeUnit.MILLISECONDS.toNanos(50));
+		batchLimit = LspSocket.LEN_PAYLOAD;
+
+		long queued = System.nanoTime();
+		queue.offer(pack(1, 1), Priority.NORMAL);
+
+		// O grupo incompleto aguarda outras mensagens até o vencimento
+		assertNull(take(queue));
+		queue.offer(pack(1, 2), Priority.NORMAL);
+
+		long start = System.nanoTime();
+		InternalPack p = queue.take(assigner, 1, TimeUnit.SECONDS);
+		assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+		assertTrue(System.nanoTime() - queued >= TimeUnit.MILLISECONDS.toNanos(50));
+		assertEquals(2, BatchPack.split(ByteBuffer.wrap(p.getPayload())).size());
+	}
+
+	/*
+	 * Fila limitada em bytes e por um orçamento, devolvido na retirada
+	 */
+	@Test
+	public void testByteLimit() throws InterruptedException {
+		final int charge = LspSocket.LEN_HEADER + 500;
+		ByteBudget budget = new ByteBudget(3000);
+		OutputScheduler queue = new OutputScheduler(Integer.MAX_VALUE, 2 * charge, budget);
+
+		assertTrue(queue.offer(new Pack((short) 1, new byte[500]), Priority.NORMAL));
+		assertTrue(queue.offer(new Pack((short) 2, new byte[500]), Priority.NORMAL));
+		assertFalse(queue.offer(new Pack((short) 3, new byte[500]), Priority.NORMAL));
+		assertFalse(queue.offer(new Pack((short) 3, new byte[500]), Priority.NORMAL, 10, TimeUnit.MILLISECONDS));
+		assertEquals(2 * charge, queue.bytes());
+		assertEquals(2 * charge, budget.getUsed());
+
+		assertEquals(1, next(queue));
+		assertEquals(charge, budget.getUsed());
+		assertTrue(queue.offer(new Pack((short) 3, new byte[500]), Priority.NORMAL));
+
+		// O orçamento também limita uma fila sem limite próprio
+		OutputScheduler other = new OutputScheduler(10, 0, budget);
+		assertTrue(other.offer(new Pack((short) 4, new byte[1000]), Priority.NORMAL));
+		assertFalse(other.offer(new Pack((short) 5, new byte[1000]), Priority.NORMAL));
+
+		queue.clear();
+		other.clear();
+		assertEquals(0, budget.getUsed());
+	}
+
+	/*
+	 * Uma conexão acima da taxa não atrasa as demais e o seu pacote sai
+	 * quando o espaçamento vence
+	 */
+	@Test
+	public void testPacing() throws InterruptedException {
+		OutputScheduler queue = new OutputScheduler(10);
+		queue.offer(pack(1), Priority.CONTROL);
+		queue.offer(pack(2), Priority.NORMAL);
+		pacedUntil.put((short) 1, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50));
+
+		assertEquals(2, next(queue));
+		assertNull(take(queue));
+
+		long start = System.nanoTime();
+		assertEquals(1, queue.take(assigner, 1, TimeUnit.SECONDS).getSeqNum());
+		long waited = System.nanoTime() - start;
+		assertTrue(waited >= TimeUnit.MILLISECONDS.toNanos(30));
+		assertTrue(waited < TimeUnit.MILLISECONDS.toNanos(500));
+	}
+}
@@ -0,0 +1,187 @@
+package lsp;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+public class PacingTest {
+	static final int MESSAGES = 20;
+	static final int RATE = 50_000;
+
+	static List<byte[]> messages() {
+		List<byte[]> payloads = new ArrayList<>();
+		for (int i = 0; i < MESSAGES; i++) {
+			byte[] payload = new byte[1000];
+			payload[0] = (byte) i;
+			payloads.add(payload);
+		}
+		return payloads;
+	}
+
+	/*
+	 * Com a taxa da conexão ou a do socket, as mensagens saem espaçadas: o
+	 * envio leva pelo menos o tempo da taxa, descontada a rajada
+	 */
+	@Test
+	public void testFixedRates() throws Exception {
+		for (LspParams params : new LspParams[] {new LspParams(500, 4).withPacing(RATE, 0),
+				new LspParams(500, 4).withPacing(0, RATE)}) {
+			LspServer server = new LspServer(0, new LspParams(500, 4));
+			LspClient client = new LspClient("localhost", server.getPort(), params);
+
+			long start = System.nanoTime();
+			List<byte[]> payloads = messages();
+			assertEquals(MESSAGES, client.write(payloads));
+			for (int i = 0; i < MESSAGES; i++) {
+				assertArrayEquals(payloads.get(i), server.read().getPayload());
+			}
+
+			long bytes = MESSAGES * 1000L - LspSocket.PACING_BURST;
+			long minimum = TimeUnit.SECONDS.toNanos(bytes) / RATE;
+			assertTrue(System.nanoTime() - start >= minimum * 8 / 10);
+
+			client.close();
+			server.closeAll();
+		}
+	}
+
+	/*
+	 * A difusão para conexões ociosas também respeita a taxa do socket
+	 */
+	@Test
+	public void testFanOutPaced() throws Exception {
+		LspServer server = new LspServer(0, new LspParams(500, 4).withPacing(0, RATE));
+		List<LspClient> clients = new ArrayList<>();
+		for (int i = 0; i < MESSAGES; i++) {
+			LspClient client = new LspClient("localhost", server.getPort(), new LspParams(500, 4));
+			server.subscribe(client.getConnId(), "pacing");
+			clients.add(client);
+		}
+
+		long start = System.nanoTime();
+		byte[] payload = new byte[1000];
+		assertEquals(MESSAGES, server.publish("pacing", payload));
+		for (LspClient client : clients) {
+			assertArrayEquals(payload, client.read());
+		}
+
+		long bytes = MESSAGES * 1000L - LspSocket.PACING_BURST;
+		long minimum = TimeUnit.SECONDS.toNanos(bytes) / RATE;
+		assertTrue(System.nanoTime() - start >= minimum * 8 / 10);
+
+		for (LspClient client : clients) {
+			client.close();
+		}
+		server.closeAll();
+	}
+
+	/*
+	 * A taxa derivada do RTT só passa a valer depois do primeiro ACK e não
+	 * impede a entrega
+	 */
+	@Test
+	public void testRttRate() throws Exception {
+		LspParams params = new LspParams(500, 4).withPacing(LspParams.RATE_FROM_RTT, 0);
+		LspServer server = new LspServer(0, params);
+		LspClient client = new LspClient("localhost", server.getPort(), params);
+
+		List<byte[]> payloads = messages();
+		assertEquals(MESSAGES, client.write(payloads));
+		for (int i = 0; i < MESSAGES; i++) {
+			assertArrayEquals(payloads.get(i), server.read().getPayload());
+		}
+		assertTrue(client.getStats().getSmoothedRttNanos() > 0);
+
+		client.close();
+		server.closeAll();
+	}
+
+	/*
+	 * Taxas acima de uma ficha por nanosegundo não são arredondadas: a 4 GB/s,
+	 * 400 MB levam 100 ms e não 400 ms
+	 */
+	@Test
+	public void testHighRate() {
+		TokenBucket bucket = new TokenBucket(4_000_000_000L, 1, new VirtualClock());
+		bucket.consume(400_000_000);
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(100), bucket.delayNanos(1));
+	}
+
+	/*
+	 * O ACK de um pacote reenviado não entra no RTT suavizado: perdendo o
+	 * primeiro envio, o RTT não passa a incluir a espera de uma época
+	 */
+	@Test
+	public void testRetransmitNotSampled() throws Exception {
+		final int epoch = 200;
+		final DatagramSocket sock = new DatagramSocket();
+		sock.setSoTimeout(5000);
+		final LspClient[] client = new LspClient[1];
+		Thread connecting = new Thread(new Runnable() {
+			public void run() {
+				try {
+					client[0] = new LspClient("localhost", sock.getLocalPort(),
+							new LspParams(epoch, 4).withPacing(LspParams.RATE_FROM_RTT, 0));
+				} catch (IOException | TimeoutException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		connecting.start();
+
+		// Aceita a conexão como um servidor sem extensões
+		DatagramPacket p = new DatagramPacket(new byte[1024], 1024);
+		sock.receive(p);
+		p.setData(ByteBuffer.allocate(6).putShort(TestUtil.ACK).putShort((short) 1).putShort((short) 0).array());
+		while (connecting.isAlive()) {
+			sock.send(p);
+			connecting.join(100);
+		}
+
+		// Descarta o primeiro envio da mensagem 1 e reconhece o reenvio
+		client[0].write("um".getBytes());
+		receiveData(sock, 1);
+		receiveData(sock, 1);
+		ack(sock, p, 1);
+
+		// A mensagem 2 é reconhecida de imediato
+		client[0].write("dois".getBytes());
+		receiveData(sock, 2);
+		ack(sock, p, 2);
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (client[0].getStats().getSmoothedRttNanos() == 0 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		long srtt = client[0].getStats().getSmoothedRttNanos();
+		assertTrue(srtt > 0);
+		assertTrue(srtt < TimeUnit.MILLISECONDS.toNanos(epoch / 2));
+
+		client[0].close();
+		sock.close();
+	}
+
+	/** Aguarda a mensagem de dados com o número de sequência informado */
+	private static void receiveData(DatagramSocket sock, int seqNum) throws IOException {
+		DatagramPacket p = new DatagramPacket(new byte[1024], 1024);
+		ByteBuffer buf;
+		do {
+			sock.receive(p);
+			buf = ByteBuffer.wrap(p.getData(), 0, p.getLength());
+		} while (buf.getShort(0) != TestUtil.DATA || buf.getShort(4) != seqNum);
+	}
+
+	private static void ack(DatagramSocket sock, DatagramPacket to, int seqNum) throws IOException {
+		byte[] bs = ByteBuffer.allocate(6).putShort(TestUtil.ACK).putShort((short) 1).putShort((short) seqNum).array();
+		sock.send(new DatagramPacket(bs, bs.length, to.getSocketAddress()));
+	}
+}
@@ -0,0 +1,65 @@
+package lsp;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class PackTest {
+	@Test
+	public void testViews() {
+		byte[] array = "xxHelloxx".getBytes();
+
+		// O vetor inteiro é devolvido sem cópia
+		Pack whole = new Pack(1, array);
+		assertSame(array, whole.getPayload());
+
+		// Um trecho é copiado somente quando pedido como vetor
+		Pack slice = new Pack(1, array, 2, 5);
+		assertEquals(5, slice.getPayloadLength());
+		assertArrayEquals("Hello".getBytes(), slice.getPayload());
+
+		ByteBuffer view = slice.getPayloadBuffer();
+		assertTrue(view.isReadOnly());
+		assertEquals(5, view.remaining());
+		assertEquals('H', view.get(0));
+
+		// O buffer direto é lido a partir da posição, que não é alterada
+		ByteBuffer direct = ByteBuffer.allocateDirect(16);
+		direct.put("--Hello".getBytes()).flip().position(2);
+		Pack fromDirect = new Pack(1, direct);
+		assertEquals(2, direct.position());
+		assertArrayEquals("Hello".getBytes(), fromDirect.getPayload());
+	}
+
+	/*
+	 * Trechos e buffers diretos chegam ao outro lado, comprimidos ou não
+	 */
+	@Test
+	public void testSendViews() throws Exception {
+		for (LspParams params : new LspParams[] {new LspParams(500, 4),
+				new LspParams(500, 4).withCompression(null)}) {
+			LspServer server = new LspServer(0, params);
+			LspClient client = new LspClient("localhost", server.getPort(), params);
+
+			byte[] array = "xxHello, server!xx".getBytes();
+			client.write(array, 2, 14);
+			assertArrayEquals("Hello, server!".getBytes(), server.read().getPayload());
+
+			ByteBuffer direct = ByteBuffer.allocateDirect(64);
+			direct.put(CompressionTest.TEXT, 0, 64).flip();
+			assertEquals(1, client.write(direct));
+			assertFalse(direct.hasRemaining());
+			Pack p = server.read();
+			assertEquals(64, p.getPayloadLength());
+			assertEquals(ByteBuffer.wrap(CompressionTest.TEXT, 0, 64), p.getPayloadBuffer());
+
+			server.write(new Pack(client.getConnId(), array, 2, 5));
+			assertEquals(ByteBuffer.wrap("Hello".getBytes()), client.readBuffer());
+
+			client.close();
+			server.closeAll();
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package lsp;
+
+import static org.junit.Assert.*;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class ParityTest {
+	/*
+	 * Cliente e servidor reais: cada mensagem vai com as cópias, mas é
+	 * entregue uma só vez
+	 */
+	@Test
+	public void testParityCopies() throws Exception {
+		LspParams params = new LspParams(500, 4).withRedundancy(2);
+		LspServer server = new LspServer(0, params);
+		LspClient client = new LspClient("localhost", server.getPort(), params);
+
+		client.write("uma".getBytes());
+		client.write("duas".getBytes());
+		assertEquals("uma", new String(server.read().getPayload()));
+		assertEquals("duas", new String(server.read().getPayload()));
+
+		// Duas cópias de cada pacote de dados, com o cabeçalho estreito. As
+		// cópias saem logo depois do original, que pode ter chegado antes.
+		long expected = 2 * (LspSocket.LEN_HEADER + 3) + 2 * (LspSocket.LEN_HEADER + 4);
+		for (int i = 0; i < 100 && client.getStats().getParityBytes() < expected; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(expected, client.getStats().getParityBytes());
+		assertEquals(0, server.getStats(client.getConnId()).getParityBytes());
+
+		client.close();
+		server.closeAll();
+	}
+
+	/*
+	 * O pacote original se perde e somente a cópia chega ao servidor
+	 */
+	@Test
+	public void testRecovery() throws Exception {
+		LspServer server = new LspServer(0, new LspParams(500, 4));
+		SocketAddress addr = new InetSocketAddress("localhost", server.getPort());
+		DatagramSocket sock = new DatagramSocket();
+		sock.setSoTimeout(1000);
+
+		// Pedido de conexão com as cópias de paridade e o cabeçalho estreito
+		send(sock, addr, LspSocket.CONNECT, (short) 0, (short) 0, new byte[] {Handshake.EXT_FEC});
+		ByteBuffer buf = receive(sock);
+		assertEquals(LspSocket.ACK, buf.getShort());
+		short connId = buf.getShort();
+		assertEquals(0, buf.getShort());
+		assertEquals(Handshake.EXT_FEC, buf.get());
+
+		// Somente a cópia chega: a mensagem é entregue e reconhecida
+		send(sock, addr, (short) (LspSocket.DATA | LspSocket.PARITY), connId, (short) 1, "perdida".getBytes());
+		assertEquals("perdida", new String(server.read().getPayload()));
+		buf = receive(sock);
+		assertEquals(LspSocket.ACK, buf.getShort());
+		assertEquals(connId, buf.getShort());
+		assertEquals(1, buf.getShort());
+		assertEquals(1, server.getStats(connId).getRecoveredPacks());
+
+		// Outra cópia da mesma mensagem é descartada sem um novo ACK...
+		send(sock, addr, (short) (LspSocket.DATA | LspSocket.PARITY), connId, (short) 1, "perdida".getBytes());
+		sock.setSoTimeout(200);
+		try {
+			receive(sock);
+			fail("Cópia repetida reconhecida");
+		} catch (SocketTimeoutException e) {
+		}
+
+		// ...enquanto o original atrasado é apenas reconhecido de novo
+		send(sock, addr, LspSocket.DATA, connId, (short) 1, "perdida".getBytes());
+		buf = receive(sock);
+		assertEquals(LspSocket.ACK, buf.getShort());
+		assertEquals(connId, buf.getShort());
+		assertEquals(1, buf.getShort());
+		assertEquals(1, server.getStats(connId).getRecoveredPacks());
+
+		sock.close();
+		server.closeAll();
+	}
+
+	/*
+	 * Uma cópia recusada pela fila de entrada cheia não conta como
+	 * recuperação; a mesma cópia, aceita depois, conta uma só vez
+	 */
+	@Test
+	public void testRecoveryInputFull() throws Exception {
+		LspServer server = new LspServer(0,
+				new LspParams(500, 4).withQueueLimits(LspSocket.LEN_WIDE_PACKAGE, 0));
+		SocketAddress addr = new InetSocketAddress("localhost", server.getPort());
+		DatagramSocket sock = new DatagramSocket();
+		sock.setSoTimeout(1000);
+
+		send(sock, addr, LspSocket.CONNECT, (short) 0, (short) 0, new byte[] {Handshake.EXT_FEC});
+		short connId = receive(sock).getShort(2);
+
+		// A primeira mensagem ocupa toda a fila de entrada
+		send(sock, addr, LspSocket.DATA, connId, (short) 1, new byte[LspSocket.LEN_PAYLOAD]);
+		assertEquals(1, receive(sock).getShort(4));
+
+		send(sock, addr, (short) (LspSocket.DATA | LspSocket.PARITY), connId, (short) 2, "copia".getBytes());
+		Thread.sleep(100);
+		assertEquals(0, server.getStats(connId).getRecoveredPacks());
+
+		// Com a fila livre, a cópia repetida é aceita
+		assertEquals(LspSocket.LEN_PAYLOAD, server.read().getPayloadLength());
+		send(sock, addr, (short) (LspSocket.DATA | LspSocket.PARITY), connId, (short) 2, "copia".getBytes());
+		assertEquals("copia", new String(server.read().getPayload()));
+		for (int i = 0; i < 100 && server.getStats(connId).getRecoveredPacks() == 0; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, server.getStats(connId).getRecoveredPacks());
+
+		sock.close();
+		server.closeAll();
+	}
+
+	static void send(DatagramSocket sock, SocketAddress addr, short msgType, short connId, short seqNum,
+			byte[] payload) throws Exception {
+		ByteBuffer buf = ByteBuffer.allocate(LspSocket.LEN_HEADER + payload.length);
+		buf.putShort(msgType).putShort(connId).putShort(seqNum).put(payload);
+		sock.send(new DatagramPacket(buf.array(), buf.capacity(), addr));
+	}
+
+	static ByteBuffer receive(DatagramSocket sock) throws Exception {
+		DatagramPacket p = new DatagramPacket(new byte[1024], 1024);
+		sock.receive(p);
+		return ByteBuffer.wrap(p.getData(), 0, p.getLength());
+	}
+}
@@ -0,0 +1,218 @@
+package lsp;
+
+import static org.junit.Assert.*;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SendJournalTest {
+	/*
+	 * Registros em anel: o início avança sobre os reconhecidos, mesmo fora de
+	 * ordem, e o espaço liberado é reaproveitado
+	 */
+	@Test
+	public void testRing() throws Exception {
+		Path file = Files.createTempFile("lsp", ".journal");
+		SendJournal journal = SendJournal.open(file, 100);
+
+		long a = journal.append(ByteBuffer.wrap(new byte[40]));
+		long b = journal.append(ByteBuffer.wrap(new byte[40]));
+		journal.acked(new long[] {b});
+		assertEquals(2, journal.size());
+		journal.acked(new long[] {a});
+		assertEquals(0, journal.size());
+
+		// Depois do fim da área, o registro continua no início
+		long c = journal.append(ByteBuffer.wrap("cccc".getBytes()));
+		journal.append(ByteBuffer.wrap(new byte[85]));
+		journal.acked(new long[] {c});
+		journal.append(ByteBuffer.wrap("d".getBytes()));
+		journal.sync();
+		journal.close();
+
+		journal = SendJournal.open(file, 0);
+		List<SendJournal.Record> pending = journal.pending();
+		assertEquals(2, pending.size());
+		assertEquals(85, pending.get(0).payload.length);
+		assertEquals(0, pending.get(1).position);
+		assertArrayEquals("d".getBytes(), pending.get(1).payload);
+		journal.close();
+
+		Files.delete(file);
+	}
+
+	/*
+	 * Com as gravações agrupadas, o registro só é gravado ao atingir o
+	 * limite em bytes ou quando o chamador pede
+	 */
+	@Test
+	public void testGroupedSync() throws Exception {
+		Path file = Files.createTempFile("lsp", ".journal");
+		SendJournal journal = SendJournal.open(file, 1000);
+
+		journal.append(ByteBuffer.wrap(new byte[40]));
+		journal.append(ByteBuffer.wrap(new byte[40]));
+		journal.sync(100);
+		assertEquals(90, journal.unsyncedBytes());
+
+		journal.append(ByteBuffer.wrap(new byte[40]));
+		journal.sync(100);
+		assertEquals(0, journal.unsyncedBytes());
+
+		journal.append(ByteBuffer.wrap(new byte[1]));
+		journal.sync();
+		assertEquals(0, journal.unsyncedBytes());
+		journal.close();
+		Files.delete(file);
+
+		// Cliente real: as escritas não aguardam a gravação até o flush
+		file = Files.createTempFile("lsp", ".journal");
+		LspParams params = new LspParams(500, 4).withJournal(file, 16 * 1024).withJournalSync(64 * 1024);
+		LspServer server = new LspServer(0, new LspParams(500, 4));
+		LspClient client = new LspClient("localhost", server.getPort(), params);
+		for (int i = 0; i < 10; i++) {
+			client.write(("msg " + i).getBytes());
+		}
+		client.flush();
+		for (int i = 0; i < 10; i++) {
+			assertEquals("msg " + i, new String(server.read().getPayload()));
+		}
+
+		client.close();
+		server.closeAll();
+		Files.delete(file);
+	}
+
+	/*
+	 * As mensagens sem ACK de um cliente encerrado são reenviadas pelo
+	 * próximo cliente com o mesmo diário, antes das novas
+	 */
+	@Test
+	public void testReplay() throws Exception {
+		Path file = Files.createTempFile("lsp", ".journal");
+		final LspParams params = new LspParams(500, 4).withJournal(file, 16 * 1024);
+
+		// Servidor que aceita a conexão e nunca reconhece os dados
+		final DatagramSocket sock = new DatagramSocket();
+		final LspClient[] client = new LspClient[1];
+		Thread connecting = new Thread(new Runnable() {
+			public void run() {
+				try {
+					client[0] = new LspClient("localhost", sock.getLocalPort(), params);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		connecting.start();
+
+		DatagramPacket p = new DatagramPacket(new byte[1024], 1024);
+		sock.receive(p);
+		ByteBuffer.wrap(p.getData()).putShort(TestUtil.ACK).putShort((short) 1).putShort((short) 0);
+		p.setLength(6);
+		while (connecting.isAlive()) {
+			sock.send(p);
+			connecting.join(250);
+		}
+
+		List<byte[]> payloads = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			payloads.add(("msg " + i).getBytes());
+		}
+		client[0].write(payloads);
+		client[0].abort();
+		sock.close();
+
+		// O novo cliente reenvia as pendentes e depois envia a nova
+		LspServer server = new LspServer(0, new LspParams(500, 4));
+		LspClient resumed = new LspClient("localhost", server.getPort(), params);
+		resumed.write("nova".getBytes());
+		for (byte[] payload : payloads) {
+			assertArrayEquals(payload, server.read().getPayload());
+		}
+		assertEquals("nova", new String(server.read().getPayload()));
+
+		resumed.close();
+		server.closeAll();
+
+		// Todas reconhecidas: nada a reenviar
+		SendJournal journal = SendJournal.open(file, 0);
+		assertTrue(journal.pending().isEmpty());
+		journal.close();
+
+		Files.delete(file);
+	}
+
+	/*
+	 * Um lote rejeitado por exceção não fica pendente: o encerramento não
+	 * aguarda por ele e o diário não o reenvia
+	 */
+	@Test(timeout = 10000)
+	public void testRejectedBatch() throws Exception {
+		Path file = Files.createTempFile("lsp", ".journal");
+		LspParams params = new LspParams(500, 4).withJournal(file, 16 * 1024);
+		LspServer server = new LspServer(0, new LspParams(500, 4));
+		LspClient client = new LspClient("localhost", server.getPort(), params);
+
+		try {
+			client.write(Arrays.asList("ok".getBytes(), new byte[LspSocket.LEN_PAYLOAD + 1]));
+			fail("Lote com payload acima do limite");
+		} catch (IllegalArgumentException e) {
+		}
+
+		// O mesmo no servidor, para o lote de outra conexão
+		try {
+			server.write(Arrays.asList(new Pack(client.getConnectionId(), new byte[LspSocket.LEN_PAYLOAD + 1])));
+			fail("Lote com payload acima do limite");
+		} catch (IllegalArgumentException e) {
+		}
+		server.closeConn(client.getConnectionId());
+
+		client.close();
+		server.closeAll();
+
+		SendJournal journal = SendJournal.open(file, 0);
+		assertTrue(journal.pending().isEmpty());
+		journal.close();
+
+		Files.delete(file);
+	}
+
+	/*
+	 * Com um diário pequeno, a escrita aguarda os ACKs para reaproveitar o
+	 * espaço
+	 */
+	@Test
+	public void testSmallJournal() throws Exception {
+		Path file = Files.createTempFile("lsp", ".journal");
+		LspParams params = new LspParams(500, 4).withJournal(file, 4 * LspSocket.LEN_WIDE_PACKAGE);
+		LspServer server = new LspServer(0, params);
+		LspClient client = new LspClient("localhost", server.getPort(), params);
+
+		for (int i = 0; i < 40; i++) {
+			byte[] payload = new byte[500];
+			payload[0] = (byte) i;
+			client.write(payload);
+		}
+		for (int i = 0; i < 40; i++) {
+			assertEquals(i, server.read().getPayload()[0]);
+		}
+
+		client.close();
+		server.closeAll();
+
+		SendJournal journal = SendJournal.open(file, 0);
+		assertEquals(0, journal.size());
+		journal.close();
+
+		Files.delete(file);
+	}
+}
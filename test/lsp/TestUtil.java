@@ -17,7 +17,12 @@ public class TestUtil {
 	static short seqNum;
 
 	static ByteBuffer connectServer(DatagramSocket sock) throws Exception {
-		DatagramPacket pack = createPacket(CONNECT, (short) 0, (short) 0, "".getBytes());
+		return connectServer(sock, port);
+	}
+
+	/* Conecta a um servidor próprio do teste, sem alterar a porta global */
+	static ByteBuffer connectServer(DatagramSocket sock, int port) throws Exception {
+		DatagramPacket pack = createPacket(port, CONNECT, (short) 0, (short) 0, "".getBytes());
 		ByteBuffer buf = ByteBuffer.wrap(pack.getData());
 		buf.asShortBuffer().put(new short[] {CONNECT, 0, 0});
 		sock.send(pack);
@@ -33,6 +38,11 @@ public class TestUtil {
 	}
 
 	static DatagramPacket createPacket(short msgType, short connId, short seqNum, byte[] payload) throws Exception {
+		return createPacket(port, msgType, connId, seqNum, payload);
+	}
+
+	static DatagramPacket createPacket(int port, short msgType, short connId, short seqNum, byte[] payload)
+			throws Exception {
 		DatagramPacket pack = createPacket();
 		ByteBuffer buf = ByteBuffer.wrap(pack.getData());
 		buf.asShortBuffer().put(new short[] {msgType, connId, seqNum});